@@ -0,0 +1,48 @@
+package com.anchore.jenkins.plugins.anchore;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * Construction of the build action for scans with many queries and gate results.
+ */
+@State(Scope.Benchmark)
+public class AnchoreActionBenchmark {
+    @Param({"4", "100", "10000"})
+    public int queries;
+
+    private TreeMap<String, String> queriesOutput;
+    private List<AnchoreGateResult> gateResults;
+    private LinkedHashMap<String, Long> phaseTimings;
+
+    @Setup
+    public void setup() {
+	queriesOutput = new TreeMap<String, String>();
+	gateResults = new ArrayList<AnchoreGateResult>();
+	for (int i=0; i<queries; i++) {
+	    queriesOutput.put("query" + i, "cve-scan all");
+	    gateResults.add(new AnchoreGateResult(Integer.toHexString(i)));
+	}
+	phaseTimings = new LinkedHashMap<String, Long>();
+	phaseTimings.put("analyze", 1000L);
+	phaseTimings.put("gate", 100L);
+    }
+
+    @Benchmark
+    public AnchoreAction construct() {
+	return(new AnchoreAction(null, "GO", "job_1", queriesOutput, gateResults, 0, phaseTimings));
+    }
+
+    @Benchmark
+    public Object exportTimings() {
+	return(new AnchoreAction(null, "GO", "job_1", queriesOutput, gateResults, 0, phaseTimings).getPhaseTimings());
+    }
+}
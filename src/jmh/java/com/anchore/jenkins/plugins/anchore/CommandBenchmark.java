@@ -0,0 +1,38 @@
+package com.anchore.jenkins.plugins.anchore;
+
+import hudson.Launcher;
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+
+/**
+ * Cost of turning an anchore command line into a launched process, with the process itself faked out.
+ */
+@State(Scope.Benchmark)
+public class CommandBenchmark {
+    @Param({"false", "true"})
+    public boolean useSudo;
+
+    private Launcher launcher;
+
+    @Setup
+    public void setup() {
+	launcher = new FakeLauncher(new byte[0]);
+    }
+
+    @Benchmark
+    public List<String> splitCommand() {
+	return(AnchoreCommandRunner.splitCommand("docker", "exec", "jenkins_anchore", "anchore", "--html", "query", "--imagefile", "/root/anchore.job_1/images", "cve-scan all"));
+    }
+
+    @Benchmark
+    public int runCommand() {
+	List<String> cmdlets = AnchoreCommandRunner.splitCommand("docker", "exec", "jenkins_anchore", "anchore", "--html", "query", "--imagefile", "/root/anchore.job_1/images", "cve-scan all");
+	return(AnchoreCommandRunner.launchCmd(launcher, AnchoreCommandRunner.buildArgs(useSudo, cmdlets), NullOutputStream.NULL_OUTPUT_STREAM, NullOutputStream.NULL_OUTPUT_STREAM));
+    }
+}
@@ -0,0 +1,75 @@
+package com.anchore.jenkins.plugins.anchore;
+
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Proc;
+import hudson.model.TaskListener;
+import hudson.remoting.Channel;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+
+/**
+ * Launcher that does not start processes: every command "exits" immediately with status 0, after
+ * writing a fixed output to its stdout.  Used to measure the plugin's own command handling.
+ */
+public class FakeLauncher extends Launcher {
+    private final byte[] output;
+
+    public FakeLauncher(byte[] output) {
+	super(TaskListener.NULL, null);
+	this.output = output;
+    }
+
+    @Override
+    public Proc launch(ProcStarter starter) throws IOException {
+	OutputStream stdout = starter.stdout();
+	if (stdout != null) {
+	    stdout.write(output);
+	}
+	return(new FakeProc());
+    }
+
+    @Override
+    public Channel launchChannel(String[] cmd, OutputStream out, FilePath workDir, Map<String, String> envVars) throws IOException {
+	throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void kill(Map<String, String> modelEnvVars) {
+    }
+
+    private static class FakeProc extends Proc {
+	@Override
+	public boolean isAlive() {
+	    return(false);
+	}
+
+	@Override
+	public void kill() {
+	}
+
+	@Override
+	public int join() {
+	    return(0);
+	}
+
+	@Override
+	public InputStream getStdout() {
+	    return(new ByteArrayInputStream(new byte[0]));
+	}
+
+	@Override
+	public InputStream getStderr() {
+	    return(new ByteArrayInputStream(new byte[0]));
+	}
+
+	@Override
+	public OutputStream getStdin() {
+	    return(null);
+	}
+    }
+}
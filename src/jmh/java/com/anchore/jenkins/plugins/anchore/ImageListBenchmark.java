@@ -0,0 +1,57 @@
+package com.anchore.jenkins.plugins.anchore;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Reading and splitting the image list file, as done while staging the build inputs.
+ */
+@State(Scope.Benchmark)
+public class ImageListBenchmark {
+    @Param({"10", "1000", "100000"})
+    public int images;
+
+    private String imageList;
+
+    @Setup
+    public void setup() {
+	StringBuilder sb = new StringBuilder();
+	for (int i=0; i<images; i++) {
+	    sb.append("registry.example.com/team/app").append(i).append(":1.0.").append(i).append(" build/app").append(i).append("/Dockerfile\n");
+	}
+	imageList = sb.toString();
+    }
+
+    @Benchmark
+    public void parseImageList(Blackhole bh) throws IOException {
+	BufferedReader br = new BufferedReader(new StringReader(imageList));
+	String line = null;
+	while ((line = br.readLine()) != null) {
+	    bh.consume(BuildWorker.parseImageLine(line));
+	}
+    }
+
+    // what setup does per line before staging: parse, validate and drop repeated images
+    @Benchmark
+    public void parseAndDedupeImageList(Blackhole bh) throws IOException {
+	BufferedReader br = new BufferedReader(new StringReader(imageList));
+	Set<String> seenImages = new HashSet<String>();
+	String line = null;
+	while ((line = br.readLine()) != null) {
+	    String[] kv = BuildWorker.parseImageLine(line);
+	    if (kv.length > 0 && BuildWorker.isValidImageId(kv[0]) && seenImages.add(kv[0])) {
+		bh.consume(kv);
+	    }
+	}
+    }
+}
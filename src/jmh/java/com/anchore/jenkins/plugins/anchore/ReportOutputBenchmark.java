@@ -0,0 +1,83 @@
+package com.anchore.jenkins.plugins.anchore;
+
+import hudson.FilePath;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Report preparation on large synthetic anchore html reports: writing the stylesheet and dropping the
+ * reports anchore left empty, and streaming a report from a (fake) anchore command into its file.
+ */
+@State(Scope.Benchmark)
+public class ReportOutputBenchmark {
+    private static final List<String> REPORTS = Arrays.asList("anchore_gates", "query1", "query2", "query3", "query4");
+
+    @Param({"100", "10000", "100000"})
+    public int rows;
+
+    private FilePath reportDir;
+    private byte[] report;
+
+    @Setup
+    public void setup() throws Exception {
+	File dir = File.createTempFile("anchore-jmh", "");
+	dir.delete();
+	reportDir = new FilePath(dir);
+	reportDir.mkdirs();
+
+	StringBuilder sb = new StringBuilder("<table>\n<tr><th>Image_Id</th><th>Repo_Tag</th><th>Gate</th><th>Trigger</th><th>Check_Output</th><th>Gate_Action</th></tr>\n");
+	for (int i=0; i<rows; i++) {
+	    sb.append("<tr><td>").append(Integer.toHexString(i)).append("</td><td>app:").append(i).append("</td><td>ANCHORESEC</td><td>VULNHIGH</td><td>High severity vulnerability found: CVE-2017-").append(i).append("</td><td>STOP</td></tr>\n");
+	}
+	sb.append("</table>\n");
+	report = sb.toString().getBytes(StandardCharsets.UTF_8);
+
+	for (String name : REPORTS.subList(0, 3)) {
+	    OutputStream os = new FilePath(reportDir, name + "_format.html").write();
+	    try {
+		os.write(report);
+	    } finally {
+		os.close();
+	    }
+	}
+    }
+
+    // the two remaining reports only hold the stylesheet header and are deleted by every invocation
+    @Setup(Level.Invocation)
+    public void writeEmptyReports() throws Exception {
+	for (String name : REPORTS.subList(3, 5)) {
+	    new FilePath(reportDir, name + "_format.html").write("<link rel=\"stylesheet\" type=\"text/css\" href=\"anchore.css\">\n", "UTF-8");
+	}
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+	reportDir.deleteRecursive();
+    }
+
+    @Benchmark
+    public void writeReportOutput() throws Exception {
+	BuildWorker.writeReportOutput(reportDir, REPORTS);
+    }
+
+    @Benchmark
+    public int streamReport() throws Exception {
+	OutputStream os = new FilePath(reportDir, "stream_format.html").write();
+	try {
+	    return(AnchoreCommandRunner.launchCmd(new FakeLauncher(report), AnchoreCommandRunner.buildArgs(false, AnchoreCommandRunner.splitCommand("docker", "exec", "jenkins_anchore", "anchore", "--html", "gate")), os, os));
+	} finally {
+	    os.close();
+	}
+    }
+}
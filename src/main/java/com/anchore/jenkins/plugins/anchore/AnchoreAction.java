@@ -1,24 +1,60 @@
 package com.anchore.jenkins.plugins.anchore;
-import hudson.model.Action;
-import hudson.model.AbstractBuild;
+import hudson.model.Api;
+import hudson.model.DirectoryBrowserSupport;
+import hudson.model.Run;
+import jenkins.model.RunAction2;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.zip.GZIPInputStream;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
 
-public class AnchoreAction implements Action {
+@ExportedBean
+public class AnchoreAction implements RunAction2 {
+    // what DirectoryBrowserSupport sends for archived artifacts unless overridden by its system property
+    private static final String DEFAULT_CSP = "sandbox; default-src 'none'; img-src 'self'; style-src 'self';";
 
     private String gateStatus;
     private String gateReportUrl;
     private String queryReportUrl;
     private TreeMap<String, String> queries;
-    private AbstractBuild<?,?> build;
+    private List<AnchoreGateResult> gateResults;
+    private String urlName;
+    private LinkedHashMap<String, Long> phaseTimings;
+    // reports indexed for paged viewing (name -> title), stored in reportIndexDir below the build directory
+    private TreeMap<String, String> reports;
+    private String reportIndexDir;
+    // manifest of the reports kept in AnchoreReportStore, relative to the build directory, null when they were archived
+    private String reportManifest;
+    private transient Run<?,?> build;
 
-    public AnchoreAction(AbstractBuild<?,?> build, String gateStatus, String euid, TreeMap<String, String> queries) {
+    public AnchoreAction(Run<?,?> build, String gateStatus, String euid, TreeMap<String, String> queries) {
+	this(build, gateStatus, euid, queries, null, 0);
+    }
+
+    // scanIndex counts the scans run within one build, so each one gets its own report page
+    public AnchoreAction(Run<?,?> build, String gateStatus, String euid, TreeMap<String, String> queries, List<AnchoreGateResult> gateResults, int scanIndex) {
+	this(build, gateStatus, euid, queries, gateResults, scanIndex, null);
+    }
+
+    public AnchoreAction(Run<?,?> build, String gateStatus, String euid, TreeMap<String, String> queries, List<AnchoreGateResult> gateResults, int scanIndex, LinkedHashMap<String, Long> phaseTimings) {
 	this.gateReportUrl = "../artifact/AnchoreReport."+euid+"/anchore_gates_format.html";
 	this.queryReportUrl = "../artifact/AnchoreReport."+euid+"/anchore_query_format.html";
         this.build = build;
 	this.gateStatus = gateStatus;
+	this.gateResults = gateResults;
+	this.phaseTimings = phaseTimings;
+	this.urlName = getUrlName(scanIndex);
 	this.queries = new TreeMap<String, String>();
 	for (Map.Entry<String, String> entry : queries.entrySet()) {
 	    this.queries.put("../artifact/AnchoreReport."+euid+"/" + entry.getKey() + "_format.html", entry.getValue());
@@ -37,13 +73,52 @@ public class AnchoreAction implements Action {
 
     @Override
     public String getUrlName() {
-	return "anchore-results";
+	if (urlName == null) {
+	    // reports recorded before scans were numbered
+	    return "anchore-results";
+	}
+	return urlName;
+    }
+
+    public static String getUrlName(int scanIndex) {
+	return (scanIndex > 0) ? "anchore-results-" + (scanIndex + 1) : "anchore-results";
+    }
+
+    // the inverse of getUrlName(int)
+    public int getScanIndex() {
+	if (urlName == null || !urlName.startsWith("anchore-results-")) {
+	    return(0);
+	}
+	try {
+	    return(Integer.parseInt(urlName.substring("anchore-results-".length())) - 1);
+	} catch (NumberFormatException e) {
+	    return(0);
+	}
+    }
+
+    @Override
+    public void onAttached(Run<?,?> r) {
+	this.build = r;
+    }
+
+    @Override
+    public void onLoad(Run<?,?> r) {
+	this.build = r;
     }
 
-    public AbstractBuild<?,?> getBuild() {
+    public Api getApi() {
+	return new Api(this);
+    }
+
+    public Run<?,?> getBuild() {
 	return this.build;
     }
 
+    @Exported
+    public String getGateStatus() {
+	return this.gateStatus;
+    }
+
     public String getGateReportUrl() {
 	return this.gateReportUrl;
     }
@@ -55,5 +130,120 @@ public class AnchoreAction implements Action {
     public Map<String, String> getQueries() {
 	return(this.queries);
     }
-}
 
+    // only present when the gate output was captured as json
+    @Exported
+    public List<AnchoreGateResult> getGateResults() {
+	return(this.gateResults);
+    }
+
+    public List<AnchoreGateResult> getGateResults(String action) {
+	List<AnchoreGateResult> ret = new ArrayList<AnchoreGateResult>();
+	if (this.gateResults != null) {
+	    for (AnchoreGateResult gateResult : this.gateResults) {
+		if (gateResult.getFinalAction().equals(action)) {
+		    ret.add(gateResult);
+		}
+	    }
+	}
+	return(ret);
+    }
+
+    // how long each phase of the scan took, empty for reports recorded before timings were kept
+    @Exported
+    public List<AnchoreMetrics.Timing> getPhaseTimings() {
+	List<AnchoreMetrics.Timing> ret = new ArrayList<AnchoreMetrics.Timing>();
+	if (this.phaseTimings != null) {
+	    for (Map.Entry<String, Long> entry : this.phaseTimings.entrySet()) {
+		ret.add(new AnchoreMetrics.Timing(entry.getKey(), entry.getValue()));
+	    }
+	}
+	return(ret);
+    }
+
+    public void setReportIndex(String reportIndexDir, TreeMap<String, String> reports) {
+	this.reportIndexDir = reportIndexDir;
+	this.reports = reports;
+    }
+
+    // empty for reports recorded before reports were indexed, those are shown from the archived html
+    public Map<String, String> getReports() {
+	if (this.reports == null) {
+	    return(new TreeMap<String, String>());
+	}
+	return(this.reports);
+    }
+
+    public boolean isIndexed(String report) {
+	return(getReports().containsKey(report));
+    }
+
+    public AnchoreReportView getReport(String name) {
+	if (this.build == null || !getReports().containsKey(name)) {
+	    return(null);
+	}
+	return(new AnchoreReportView(this, name, this.reports.get(name), new File(this.build.getRootDir(), this.reportIndexDir)));
+    }
+
+    // switches the report links from the archived artifacts to the report store
+    public void setStoredReports(String euid, String reportManifest) {
+	String archived = "../artifact/AnchoreReport."+euid+"/";
+	this.reportManifest = reportManifest;
+	this.gateReportUrl = this.gateReportUrl.replace(archived, "file/");
+	this.queryReportUrl = this.queryReportUrl.replace(archived, "file/");
+	TreeMap<String, String> stored = new TreeMap<String, String>();
+	for (Map.Entry<String, String> entry : this.queries.entrySet()) {
+	    stored.put(entry.getKey().replace(archived, "file/"), entry.getValue());
+	}
+	this.queries = stored;
+    }
+
+    public void doFile(StaplerRequest req, StaplerResponse rsp) throws IOException {
+	String name = req.getRestOfPath();
+	while (name.startsWith("/")) {
+	    name = name.substring(1);
+	}
+	if (AnchoreReportStore.isCss(name)) {
+	    rsp.sendRedirect2(req.getContextPath() + "/plugin/anchore-container-scanner/anchore.css");
+	    return;
+	}
+	if (this.build == null || this.reportManifest == null) {
+	    rsp.sendError(StaplerResponse.SC_NOT_FOUND);
+	    return;
+	}
+	String digest = AnchoreReportStore.readManifest(new File(this.build.getRootDir(), this.reportManifest)).get(name);
+	File object = (digest != null) ? AnchoreReportStore.getObject(digest) : null;
+	if (object == null || !object.isFile()) {
+	    rsp.sendError(StaplerResponse.SC_NOT_FOUND);
+	    return;
+	}
+
+	rsp.setContentType(AnchoreReportStore.getContentType(name));
+	// the reports are served from the Jenkins origin, so the same restrictions as for archived artifacts apply
+	String csp = System.getProperty(DirectoryBrowserSupport.class.getName() + ".CSP", DEFAULT_CSP);
+	if (!csp.trim().isEmpty()) {
+	    for (String header : new String[] {"Content-Security-Policy", "X-WebKit-CSP", "X-Content-Security-Policy"}) {
+		rsp.setHeader(header, csp);
+	    }
+	}
+	rsp.setHeader("X-Content-Type-Options", "nosniff");
+	String acceptEncoding = req.getHeader("Accept-Encoding");
+	InputStream in = new FileInputStream(object);
+	try {
+	    if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+		// stored compressed, so browsers can take it as is
+		rsp.setHeader("Content-Encoding", "gzip");
+	    } else {
+		in = new GZIPInputStream(in);
+	    }
+	    OutputStream out = rsp.getOutputStream();
+	    byte[] buf = new byte[65536];
+	    int n;
+	    while ((n = in.read(buf)) >= 0) {
+		out.write(buf, 0, n);
+	    }
+	} finally {
+	    in.close();
+	}
+    }
+}
@@ -0,0 +1,267 @@
+package com.anchore.jenkins.plugins.anchore;
+
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.TaskListener;
+import hudson.util.StreamTaskListener;
+import jenkins.security.MasterToSlaveCallable;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Runs a scan on the node that holds the workspace instead of driving every command from the controller.
+ *
+ * The worker runs with a local launcher, and writes its log to AnchoreReport.EUID/anchore_scan.log in the
+ * workspace (archived with the reports) instead of the build log, so neither the anchore output nor the
+ * reports cross the remoting channel while the scan runs.  Only the Summary comes back, with the last
+ * LOG_TAIL_BYTES of the log for the build log.
+ *
+ * The worker stays on the node between the scan and the Finish call that cleans up after the reports were
+ * archived.
+ */
+public class AnchoreAgentScan extends MasterToSlaveCallable<BuildWorker.Summary, IOException> {
+    private static final long serialVersionUID = 1L;
+
+    static final int LOG_TAIL_BYTES = 16 * 1024;
+
+    // euid -> worker and log of the scans running on this node
+    private static final Map<String, Scan> scans = new HashMap<String, Scan>();
+
+    private final BuildConfig config;
+    private final String euid;
+    private final String nodeName;
+    private final String containerId;
+    private final String localVol;
+    private final boolean containerHealthy;
+    private final FilePath workspace;
+    private final FilePath analysisCacheFile;
+    private final FilePath indexDir;
+
+    public AnchoreAgentScan(BuildConfig config, String euid, String nodeName, String containerId, String localVol, boolean containerHealthy, FilePath workspace, FilePath analysisCacheFile, FilePath indexDir) {
+	this.config = config;
+	this.euid = euid;
+	this.nodeName = nodeName;
+	this.containerId = containerId;
+	this.localVol = localVol;
+	this.containerHealthy = containerHealthy;
+	this.workspace = workspace;
+	this.analysisCacheFile = analysisCacheFile;
+	this.indexDir = indexDir;
+    }
+
+    private static class Scan {
+	final BuildWorker worker;
+	final TailOutputStream tail;
+
+	Scan(BuildWorker worker, TailOutputStream tail) {
+	    this.worker = worker;
+	    this.tail = tail;
+	}
+
+	void close() {
+	    worker.close();
+	    try {
+		tail.close();
+	    } catch (IOException e) {
+		// the log is only informational
+	    }
+	}
+    }
+
+    public BuildWorker.Summary call() throws IOException {
+	File reportDir = new File(workspace.getRemote(), "AnchoreReport." + euid);
+	if (!reportDir.isDirectory() && !reportDir.mkdirs()) {
+	    throw new IOException("cannot create " + reportDir);
+	}
+	TailOutputStream tail = new TailOutputStream(new FileOutputStream(new File(reportDir, "anchore_scan.log")), LOG_TAIL_BYTES);
+	TaskListener listener = new StreamTaskListener(tail);
+
+	// the controller tracks container health, let this JVM start out with what it knows
+	if (containerHealthy) {
+	    AnchoreContainerHealth.markHealthy(nodeName, containerId, config.getUseSudo());
+	}
+
+	BuildWorker worker = new BuildWorker(config, euid, nodeName, containerId, localVol, workspace, new Launcher.LocalLauncher(listener), listener);
+	Scan scan = new Scan(worker, tail);
+	synchronized (scans) {
+	    scans.put(euid, scan);
+	}
+	BuildWorker.Summary summary;
+	try {
+	    summary = worker.scan(analysisCacheFile, indexDir);
+	} catch (InterruptedException e) {
+	    finish(euid);
+	    throw new IOException("anchore scan was interrupted", e);
+	} catch (IOException e) {
+	    finish(euid);
+	    throw e;
+	} catch (RuntimeException e) {
+	    finish(euid);
+	    throw e;
+	}
+	listener.getLogger().flush();
+	summary.setLogTail(tail.getTail());
+	return(summary);
+    }
+
+    private static Scan finish(String euid) {
+	Scan scan;
+	synchronized (scans) {
+	    scan = scans.remove(euid);
+	}
+	if (scan != null) {
+	    scan.close();
+	}
+	return(scan);
+    }
+
+    /**
+     * Outcome of Finish: whether the cleanup worked and the deferred cleanup, if any.
+     */
+    public static class Cleanup implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private final boolean cleaned;
+	private final AnchoreCleanupQueue.Task task;
+	private final String logTail;
+
+	Cleanup(boolean cleaned, AnchoreCleanupQueue.Task task, String logTail) {
+	    this.cleaned = cleaned;
+	    this.task = task;
+	    this.logTail = logTail;
+	}
+
+	public boolean isCleaned() {
+	    return(cleaned);
+	}
+
+	public AnchoreCleanupQueue.Task getTask() {
+	    return(task);
+	}
+
+	public String getLogTail() {
+	    return(logTail);
+	}
+    }
+
+    /**
+     * Runs the cleanup of a scan (when cleanup is set) and releases its worker, returns null when the
+     * scan is no longer known on the node.
+     */
+    public static class Finish extends MasterToSlaveCallable<Cleanup, IOException> {
+	private static final long serialVersionUID = 1L;
+
+	private final String euid;
+	private final boolean cleanup;
+
+	public Finish(String euid, boolean cleanup) {
+	    this.euid = euid;
+	    this.cleanup = cleanup;
+	}
+
+	public Cleanup call() throws IOException {
+	    Scan scan;
+	    synchronized (scans) {
+		scan = scans.get(euid);
+	    }
+	    if (scan == null) {
+		return(null);
+	    }
+	    boolean cleaned = true;
+	    String logTail = null;
+	    try {
+		if (cleanup) {
+		    scan.tail.clear();
+		    cleaned = scan.worker.cleanup();
+		    logTail = scan.tail.getTail();
+		}
+	    } finally {
+		finish(euid);
+	    }
+	    return(new Cleanup(cleaned, scan.worker.getCleanupTask(), logTail));
+	}
+    }
+
+    /**
+     * Passes everything through to the log file and keeps the last maxBytes bytes of it.
+     */
+    static class TailOutputStream extends OutputStream {
+	private final OutputStream out;
+	private final byte[] ring;
+	private int pos;
+	private boolean wrapped;
+	// whether the oldest kept byte starts in the middle of a line
+	private boolean midLine;
+
+	TailOutputStream(OutputStream out, int maxBytes) {
+	    this.out = out;
+	    this.ring = new byte[maxBytes];
+	}
+
+	@Override
+	public synchronized void write(int b) throws IOException {
+	    out.write(b);
+	    keep((byte) b);
+	}
+
+	@Override
+	public synchronized void write(byte[] b, int off, int len) throws IOException {
+	    out.write(b, off, len);
+	    for (int i=off; i<off+len; i++) {
+		keep(b[i]);
+	    }
+	}
+
+	private void keep(byte b) {
+	    if (wrapped) {
+		midLine = (ring[pos] != '\n');
+	    }
+	    ring[pos++] = b;
+	    if (pos == ring.length) {
+		pos = 0;
+		wrapped = true;
+	    }
+	}
+
+	@Override
+	public synchronized void flush() throws IOException {
+	    out.flush();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+	    out.close();
+	}
+
+	synchronized void clear() {
+	    pos = 0;
+	    wrapped = false;
+	    midLine = false;
+	}
+
+	// the kept bytes, starting at a line boundary when the start was cut off
+	synchronized String getTail() {
+	    byte[] bytes;
+	    if (wrapped) {
+		bytes = new byte[ring.length];
+		System.arraycopy(ring, pos, bytes, 0, ring.length - pos);
+		System.arraycopy(ring, 0, bytes, ring.length - pos, pos);
+	    } else {
+		bytes = new byte[pos];
+		System.arraycopy(ring, 0, bytes, 0, pos);
+	    }
+	    String tail = new String(bytes, StandardCharsets.UTF_8);
+	    if (midLine && tail.indexOf('\n') >= 0) {
+		tail = tail.substring(tail.indexOf('\n') + 1);
+	    }
+	    return(tail);
+	}
+    }
+}
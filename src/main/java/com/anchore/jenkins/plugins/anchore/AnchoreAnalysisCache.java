@@ -0,0 +1,125 @@
+package com.anchore.jenkins.plugins.anchore;
+import hudson.FilePath;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Records which images (by docker image ID) have already been analyzed into the Anchore DB of one
+ * Anchore container, so that later builds can skip 'anchore analyze' for them.
+ *
+ * The cache lives in a small text file on the node that runs the container.  Entries are evicted
+ * least-recently-used first once the cache holds more than maxEntries images, and expire ttlMillis
+ * after they were analyzed.  The whole cache is dropped when its generation changes; the generation
+ * is derived from the Anchore container image and the policy file in use.
+ */
+public class AnchoreAnalysisCache {
+    private final FilePath cacheFile;
+    private final String generation;
+    private final int maxEntries;
+    private final long ttlMillis;
+
+    // digest -> {analyzedAt, lastUsed}, in access order so iteration starts at the LRU entry
+    private final LinkedHashMap<String, long[]> entries = new LinkedHashMap<String, long[]>(16, 0.75f, true);
+
+    private AnchoreAnalysisCache(FilePath cacheFile, String generation, int maxEntries, long ttlMillis) {
+	this.cacheFile = cacheFile;
+	this.generation = generation;
+	this.maxEntries = maxEntries;
+	this.ttlMillis = ttlMillis;
+    }
+
+    public static AnchoreAnalysisCache load(FilePath cacheFile, String generation, int maxEntries, long ttlMillis) throws IOException, InterruptedException {
+	AnchoreAnalysisCache cache = new AnchoreAnalysisCache(cacheFile, generation, maxEntries, ttlMillis);
+	if (!cacheFile.exists()) {
+	    return(cache);
+	}
+
+	BufferedReader br = new BufferedReader(new InputStreamReader(cacheFile.read(), StandardCharsets.UTF_8));
+	try {
+	    String line = br.readLine();
+	    if (line == null || !line.equals("generation " + generation)) {
+		// written for a different anchore image or policy, start over
+		return(cache);
+	    }
+	    while ((line = br.readLine()) != null) {
+		String[] kv = line.split(" ");
+		if (kv.length == 3) {
+		    try {
+			cache.entries.put(kv[0], new long[] {Long.parseLong(kv[1]), Long.parseLong(kv[2])});
+		    } catch (NumberFormatException e) {
+			// skip damaged entries
+		    }
+		}
+	    }
+	} finally {
+	    br.close();
+	}
+	return(cache);
+    }
+
+    public boolean contains(String digest) {
+	long[] entry = entries.get(digest);
+	if (entry == null) {
+	    return(false);
+	}
+	long now = System.currentTimeMillis();
+	if (ttlMillis > 0 && now - entry[0] > ttlMillis) {
+	    entries.remove(digest);
+	    return(false);
+	}
+	entry[1] = now;
+	return(true);
+    }
+
+    public void put(String digest) {
+	long now = System.currentTimeMillis();
+	entries.put(digest, new long[] {now, now});
+    }
+
+    public void remove(String digest) {
+	entries.remove(digest);
+    }
+
+    public void clear() {
+	entries.clear();
+    }
+
+    public int size() {
+	return(entries.size());
+    }
+
+    public void save() throws IOException, InterruptedException {
+	long now = System.currentTimeMillis();
+	Iterator<Map.Entry<String, long[]>> it = entries.entrySet().iterator();
+	while (it.hasNext()) {
+	    Map.Entry<String, long[]> entry = it.next();
+	    if ((ttlMillis > 0 && now - entry.getValue()[0] > ttlMillis) || entries.size() > maxEntries) {
+		it.remove();
+	    }
+	}
+
+	FilePath cacheDir = cacheFile.getParent();
+	if (cacheDir != null && !cacheDir.exists()) {
+	    cacheDir.mkdirs();
+	}
+
+	// concurrent builds on the same node may overwrite each other's updates, which only costs a re-analysis
+	BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(cacheFile.write(), StandardCharsets.UTF_8));
+	try {
+	    bw.write("generation " + generation + "\n");
+	    for (Map.Entry<String, long[]> entry : entries.entrySet()) {
+		bw.write(entry.getKey() + " " + entry.getValue()[0] + " " + entry.getValue()[1] + "\n");
+	    }
+	} finally {
+	    bw.close();
+	}
+    }
+}
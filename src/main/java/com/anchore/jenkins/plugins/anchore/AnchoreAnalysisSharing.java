@@ -0,0 +1,187 @@
+package com.anchore.jenkins.plugins.anchore;
+
+import hudson.FilePath;
+import hudson.model.TaskListener;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The analyses one scan shares with the other scans of its node, through AnchoreScanCoordinator: the images
+ * it claimed and analyzes on their behalf, exported from its container when somebody waits for them, and
+ * the images it waits for and imports into its own container instead of analyzing them again.
+ */
+public class AnchoreAnalysisSharing {
+    private final AnchoreCommandRunner runner;
+    private final TaskListener listener;
+    private final OutputStream logStream;
+    private final String nodeName;
+    private final String containerId;
+    private final String euid;
+    private final boolean debug;
+    private final long analyzeTimeout;
+    // how long the scan waits for the other scans, in all
+    private final long waitTimeout;
+    // node-level directory the analyses shared between the containers of the pool are exported to
+    private final FilePath exportDir;
+    // image ID -> image digest, of the images that could be inspected
+    private final Map<String, String> imageDigests;
+
+    // image ID -> flight key, for the analyses this scan does on behalf of the others
+    private final Map<String, String> ownedFlights = new HashMap<String, String>();
+    // images another scan on the node is analyzing, with the flight to wait for
+    private final LinkedHashMap<String, AnchoreScanCoordinator.Flight> awaitedImageLines = new LinkedHashMap<String, AnchoreScanCoordinator.Flight>();
+    // the waits for all of them end here, counted from the first join, not per image
+    private long deadline;
+
+    public AnchoreAnalysisSharing(AnchoreCommandRunner runner, String nodeName, String containerId, String euid, boolean debug, long analyzeTimeout, long waitTimeout, FilePath exportDir, Map<String, String> imageDigests, TaskListener listener) {
+	this.runner = runner;
+	this.listener = listener;
+	this.logStream = listener.getLogger();
+	this.nodeName = nodeName;
+	this.containerId = containerId;
+	this.euid = euid;
+	this.debug = debug;
+	this.analyzeTimeout = analyzeTimeout;
+	this.waitTimeout = waitTimeout;
+	this.exportDir = exportDir;
+	this.imageDigests = imageDigests;
+    }
+
+    // claims the analysis of each image for this scan, or moves it to the images to wait for when another
+    // scan on the node, in any container of the pool, is already analyzing it; returns the images to analyze
+    public List<String> join(List<String> imageLines, String anchoreImageDigest) {
+	if (anchoreImageDigest == null) {
+	    return(imageLines);
+	}
+	List<String> ret = new ArrayList<String>();
+	for (String imageLine : imageLines) {
+	    String imgId = imageLine.split(" ")[0];
+	    String digest = imageDigests.get(imgId);
+	    if (digest == null) {
+		ret.add(imageLine);
+		continue;
+	    }
+	    String key = AnchoreScanCoordinator.analysisKey(nodeName, anchoreImageDigest, digest);
+	    AnchoreScanCoordinator.Flight flight = AnchoreScanCoordinator.join(key);
+	    if (flight == null) {
+		ownedFlights.put(imgId, key);
+		ret.add(imageLine);
+	    } else {
+		listener.getLogger().println("[anchore][info] image is being analyzed by another build, it will be reused: " + imgId);
+		if (awaitedImageLines.isEmpty()) {
+		    deadline = System.currentTimeMillis() + waitTimeout;
+		}
+		awaitedImageLines.put(imageLine, flight);
+	    }
+	}
+	return(ret);
+    }
+
+    public boolean isWaiting() {
+	return(!awaitedImageLines.isEmpty());
+    }
+
+    // hands the analyses over to the scans waiting for them, exported from this scan's container
+    public void complete(List<String> imageLines, boolean succeeded) throws IOException, InterruptedException {
+	for (String imageLine : imageLines) {
+	    String imgId = imageLine.split(" ")[0];
+	    String key = ownedFlights.remove(imgId);
+	    if (key != null) {
+		String export = null;
+		if (succeeded && AnchoreScanCoordinator.getWaiters(key) > 0) {
+		    export = exportAnalysis(imgId);
+		}
+		AnchoreScanCoordinator.complete(key, succeeded, export);
+	    }
+	}
+    }
+
+    // waits for the analyses done by other scans and imports them, adding their images to imported; returns
+    // the images no analysis was handed over for in time, the caller analyzes them itself
+    public List<String> await(List<String> imported) throws IOException, InterruptedException {
+	List<String> retryImageLines = new ArrayList<String>();
+	for (Map.Entry<String, AnchoreScanCoordinator.Flight> entry : awaitedImageLines.entrySet()) {
+	    String imgId = entry.getKey().split(" ")[0];
+	    AnchoreScanCoordinator.Flight flight = entry.getValue();
+	    String export = null;
+	    try {
+		// once the deadline has passed, only the analyses that are done already are used
+		if (flight.await(Math.max(0, deadline - System.currentTimeMillis()))) {
+		    export = flight.getExport();
+		}
+		if (export != null && importAnalysis(export) == 0) {
+		    listener.getLogger().println("[anchore][info] image was analyzed by another build, imported its analysis: " + imgId);
+		    imported.add(entry.getKey());
+		} else {
+		    listener.getLogger().println("[anchore][warn] no analysis of image was handed over by another build, analyzing it again: " + imgId);
+		    retryImageLines.add(entry.getKey());
+		}
+	    } finally {
+		if (flight.release() && export != null) {
+		    new FilePath(exportDir, export).delete();
+		}
+	    }
+	}
+	awaitedImageLines.clear();
+	return(retryImageLines);
+    }
+
+    // analyses this scan claimed but never ran, the scans waiting for them do it themselves
+    public void close() {
+	for (String key : ownedFlights.values()) {
+	    AnchoreScanCoordinator.complete(key, false);
+	}
+	ownedFlights.clear();
+    }
+
+    // copies the analysis of an image out of the container, returns the name of the export or null
+    private String exportAnalysis(String imgId) throws IOException, InterruptedException {
+	String targetFile = "/root/anchore."+euid+"/export";
+	String export = imageDigests.get(imgId).replace(':', '_') + "." + euid;
+	int exitCode;
+	if (debug) {
+	    exitCode = runner.run(logStream, logStream, "docker", "exec", containerId, "anchore", "--debug", "toolbox", "--image", imgId, "export", "--outfile", targetFile);
+	} else {
+	    exitCode = runner.run(logStream, logStream, "docker", "exec", containerId, "anchore", "toolbox", "--image", imgId, "export", "--outfile", targetFile);
+	}
+	if (exitCode == 0) {
+	    exportDir.mkdirs();
+	    pruneExports();
+	    exitCode = runner.run(logStream, logStream, "docker", "cp", containerId+":"+targetFile, new FilePath(exportDir, export).getRemote());
+	}
+	if (exitCode != 0) {
+	    listener.getLogger().println("[anchore][warn] failed to export analysis for the builds waiting for it, they analyze it themselves: " + imgId);
+	    return(null);
+	}
+	return(export);
+    }
+
+    // imports an analysis exported by a scan in another container of the pool
+    private int importAnalysis(String export) throws IOException, InterruptedException {
+	String targetFile = "/root/anchore."+euid+"/import";
+	int exitCode = runner.run(logStream, logStream, "docker", "cp", new FilePath(exportDir, export).getRemote(), containerId+":"+targetFile);
+	if (exitCode != 0) {
+	    return(exitCode);
+	}
+	if (debug) {
+	    return(runner.run(analyzeTimeout, logStream, logStream, "docker", "exec", containerId, "anchore", "--debug", "toolbox", "import", "--infile", targetFile));
+	}
+	return(runner.run(analyzeTimeout, logStream, logStream, "docker", "exec", containerId, "anchore", "toolbox", "import", "--infile", targetFile));
+    }
+
+    // exports are deleted by their last importer, this catches the ones left behind by aborted scans
+    private void pruneExports() throws IOException, InterruptedException {
+	long cutoff = System.currentTimeMillis() - 2 * AnchoreScanCoordinator.FLIGHT_TIMEOUT;
+	for (FilePath export : exportDir.list()) {
+	    if (export.lastModified() < cutoff) {
+		export.delete();
+	    }
+	}
+    }
+}
@@ -11,12 +11,15 @@ import hudson.tasks.Builder;
 import hudson.model.BuildListener;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.model.Node;
+import hudson.model.Computer;
 import hudson.AbortException;
 import hudson.tasks.ArtifactArchiver;
 
 import jenkins.tasks.SimpleBuildStep;
+import org.jenkinsci.Symbol;
 import net.sf.json.JSONObject;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.QueryParameter;
 
@@ -36,9 +39,13 @@ import java.io.IOException;
 import java.io.FileNotFoundException;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.TreeMap;
 import java.util.Map;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 
@@ -46,29 +53,18 @@ import java.nio.file.*;
 import static java.nio.file.FileVisitResult.*;
 import java.nio.file.attribute.*;
 
-public class AnchoreBuilder extends Builder {
+public class AnchoreBuilder extends Builder implements SimpleBuildStep {
     private String name;
     private String policyName;
-    private String buildId;
-    private String euid;
-    private String targetImageFile;
-    private String targetPolicyFile;
-    private String containerId;
-    private String containerImageId;
-    private String localVol;
-    private String modulesVol;
     private String query1;
     private String query2;
     private String query3;
     private String query4;
+    private int workers;
+    private boolean batchStaging;
+    private boolean captureJson;
+    private boolean failFast;
 
-    private List<String> anchoreInputImages;
-    private List<String> oFiles;
-    private TreeMap<String, String> queries;
-
-    private OutputStream anchoreLogStream;
-    private boolean debug;
-    private boolean useSudo;
     private final boolean bailOnPluginFail;
     private final boolean bailOnFail;
     private final boolean bailOnWarn;
@@ -145,7 +141,43 @@ public class AnchoreBuilder extends Builder {
         return (policyName);
     }
 
-    public boolean selectPluginExitStatus(BuildListener listener) {
+    public int getWorkers() {
+	return (workers);
+    }
+
+    @DataBoundSetter
+    public void setWorkers(int workers) {
+	this.workers = workers;
+    }
+
+    public boolean getBatchStaging() {
+	return (batchStaging);
+    }
+
+    @DataBoundSetter
+    public void setBatchStaging(boolean batchStaging) {
+	this.batchStaging = batchStaging;
+    }
+
+    public boolean getCaptureJson() {
+	return (captureJson);
+    }
+
+    @DataBoundSetter
+    public void setCaptureJson(boolean captureJson) {
+	this.captureJson = captureJson;
+    }
+
+    public boolean getFailFast() {
+	return (failFast);
+    }
+
+    @DataBoundSetter
+    public void setFailFast(boolean failFast) {
+	this.failFast = failFast;
+    }
+
+    public boolean selectPluginExitStatus(TaskListener listener) {
 	if (bailOnPluginFail) {
 	    return(false);
 	}
@@ -153,148 +185,205 @@ public class AnchoreBuilder extends Builder {
 	return(true);
     }
 
+    // scans of a build that have not added their action yet; finished scans are found through their actions,
+    // so several scans in one (pipeline) build get their own report, also after a restart
+    private static final Map<Run<?,?>, Set<Integer>> runningScans = new HashMap<Run<?,?>, Set<Integer>>();
+
+    static int claimScanIndex(Run<?,?> build) {
+	synchronized (runningScans) {
+	    Set<Integer> running = runningScans.get(build);
+	    if (running == null) {
+		running = new HashSet<Integer>();
+		runningScans.put(build, running);
+	    }
+	    Set<Integer> taken = new HashSet<Integer>(running);
+	    for (AnchoreAction action : build.getActions(AnchoreAction.class)) {
+		taken.add(action.getScanIndex());
+	    }
+	    int scanIndex = 0;
+	    while (taken.contains(scanIndex)) {
+		scanIndex++;
+	    }
+	    running.add(scanIndex);
+	    return(scanIndex);
+	}
+    }
+
+    static void releaseScanIndex(Run<?,?> build, int scanIndex) {
+	synchronized (runningScans) {
+	    Set<Integer> running = runningScans.get(build);
+	    if (running != null) {
+		running.remove(scanIndex);
+		if (running.isEmpty()) {
+		    runningScans.remove(build);
+		}
+	    }
+	}
+    }
+
     @Override
     public boolean perform(AbstractBuild build, Launcher inLauncher, BuildListener listener) throws AbortException, java.lang.InterruptedException {
-	int exitCode = 0;
-	boolean rc;
-	TreeMap<String, String> queriesOutput = new TreeMap<String, String>();
-
 	/*
 	Node myNode = build.getBuiltOn();
 	Launcher launcher = myNode.createLauncher(listener);
 	*/
-	Node myNode;
-	Launcher launcher;
+	Node myNode = build.getBuiltOn();
+	if (myNode == null) {
+	    return(selectPluginExitStatus(listener));
+	}
+	return(runAnchore(build, build.getWorkspace(), myNode.createLauncher(listener), listener));
+    }
 
-	this.buildId = String.valueOf(build.getNumber());
-	this.euid = build.getParent().getDisplayName() + "_" + buildId;
-	
-	FilePath myWorkspace = build.getWorkspace();
-	FilePath myAnchoreWorkspace = new FilePath(myWorkspace, "AnchoreReport."+euid);
-	FilePath anchoreImageFile = new FilePath(myWorkspace, name);
-	FilePath anchorePolicyFile = new FilePath(myWorkspace, policyName);
+    // pipeline entry point: the 'step' call runs this on a background thread, and a failed scan fails the step
+    @Override
+    public void perform(Run<?,?> run, FilePath workspace, Launcher launcher, TaskListener listener) throws InterruptedException, IOException {
+	if (!runAnchore(run, workspace, launcher, listener)) {
+	    throw new AbortException("Anchore Container Image Scanner failed the build - please check the output above");
+	}
+    }
+
+    public boolean runAnchore(Run<?,?> build, FilePath myWorkspace, Launcher launcher, TaskListener listener) throws AbortException, java.lang.InterruptedException {
+	// the index stays claimed until the scan has added its action to the build
+	int scanIndex = claimScanIndex(build);
+	try {
+	    return(runScan(build, myWorkspace, launcher, listener, scanIndex));
+	} finally {
+	    releaseScanIndex(build, scanIndex);
+	}
+    }
+
+    private boolean runScan(Run<?,?> build, FilePath myWorkspace, Launcher launcher, TaskListener listener, int scanIndex) throws AbortException, java.lang.InterruptedException {
+	int exitCode = 0;
+	boolean rc;
+
+	// everything that changes during a scan lives in the worker, the builder itself is shared by concurrent builds
+	BuildConfig config = new BuildConfig(this, getDescriptor());
+	// the euid names directories in the workspace and the container and goes into shell commands, so only
+	// characters that are safe in all of them; the full name keeps jobs of different folders apart
+	String euid = build.getParent().getFullName().replaceAll("[^A-Za-z0-9_.-]", "_") + "_" + String.valueOf(build.getNumber());
+	if (scanIndex > 0) {
+	    euid = euid + "_" + (scanIndex + 1);
+	}
+	AnchoreContainerPool.Lease lease = null;
+	BuildWorker worker = null;
+	boolean onAgent = false;
+	BuildWorker.Summary summary = null;
+	String reportIndexDir = null;
+	String reportManifest = null;
+	LinkedHashMap<String, Long> phaseTimings = new LinkedHashMap<String, Long>();
 
 	try {
-	    
-	    myNode = build.getBuiltOn();
-	    if (myNode != null) {
-		launcher = myNode.createLauncher(listener);
-	    } else {
-		return(selectPluginExitStatus(listener));
-	    }
 
 	    listener.getLogger().println("[anchore] Anchore Plugin Started:");
-	    if (!getDescriptor().getEnabled()) {
+	    if (!config.getEnabled()) {
 		listener.getLogger().println("[anchore] Anchore plugin is disabled - please enable the plugin in the global Anchore configuration section in Jenkins and try again");
 		return(true);
 	    }
 
-	    rc = anchoreSetup(build, launcher, listener, myAnchoreWorkspace, anchoreImageFile, anchorePolicyFile);
-	    if (!rc) {
-		listener.getLogger().println("[anchore] failed to setup Anchore - please check the output above");
-		return(selectPluginExitStatus(listener));
-	    }
+	    Computer myComputer = myWorkspace.toComputer();
+	    Node myNode = (myComputer != null) ? myComputer.getNode() : null;
 
-	    if (debug) {
-		listener.getLogger().println("[anchore][config][global] enabled: " + String.valueOf(getDescriptor().getEnabled()));
-		listener.getLogger().println("[anchore][config][global] debug: " + String.valueOf(getDescriptor().getDebug()));
-		listener.getLogger().println("[anchore][config][global] useSudo: " + String.valueOf(getDescriptor().getUseSudo()));
-		listener.getLogger().println("[anchore][config][global] containerImageId: " + getDescriptor().getContainerImageId());
-		listener.getLogger().println("[anchore][config][global] containerId: " + getDescriptor().getContainerId());
-		listener.getLogger().println("[anchore][config][global] localVol: " + getDescriptor().getLocalVol());
-		listener.getLogger().println("[anchore][config][global] modulesVol: " + getDescriptor().getModulesVol());
-
-		
-		listener.getLogger().println("[anchore][config][build] doAnalyze: " + String.valueOf(doAnalyze));
-		listener.getLogger().println("[anchore][config][build] doGates: " + String.valueOf(doGate));
-		listener.getLogger().println("[anchore][config][build] doQuery: " + String.valueOf(doQuery));
-		listener.getLogger().println("[anchore][config][build] doCleanup: " + String.valueOf(doCleanup));
-		listener.getLogger().println("[anchore][config][build] imageFile: " + name);
-		listener.getLogger().println("[anchore][config][build] policyFile: " + policyName);
-		listener.getLogger().println("[anchore][config][build] stopOnGateStop: " + String.valueOf(bailOnFail));
-		listener.getLogger().println("[anchore][config][build] stopOnGateWarn: " + String.valueOf(bailOnWarn));
+	    // a node that just came online may still be preparing its anchore containers
+	    long warmupWait = AnchoreWarmup.await((myComputer != null) ? myComputer.getName() : "", listener);
+	    if (warmupWait > 0) {
+		phaseTimings.put("warmup_wait", warmupWait);
 	    }
 
-	    if (doAnalyze) {
-		listener.getLogger().println("[anchore][info][info] Running Anchore Analyzer:");
-	    
-		if (debug) {
-		    exitCode = runAnchoreCmd(launcher, anchoreLogStream, anchoreLogStream, "docker", "exec", containerId, "anchore", "--debug", "analyze", "--imagefile", targetImageFile);
-		} else {
-		    exitCode = runAnchoreCmd(launcher, anchoreLogStream, anchoreLogStream, "docker", "exec", containerId, "anchore", "analyze", "--imagefile", targetImageFile);
-		}
-
-		
-		listener.getLogger().println("[anchore][info] Done Running Anchore Analyzer: exitcode="+exitCode);
-		if (exitCode != 0) {
-		    listener.getLogger().println("[anchore][error] Anchore analyzer failed: check output above for details");
-		    if (bailOnPluginFail) {
-			return(false);
-		    }
-		}
+	    // scans on one node share its pool of anchore containers, wait here until one is free
+	    AnchoreContainerPool pool = AnchoreContainerPool.get((myComputer != null) ? myComputer.getName() : "", config.getContainerId(), config.getUseSudo());
+	    if (pool.getLeased() >= config.getPoolSize()) {
+		listener.getLogger().println("[anchore][info] all " + config.getPoolSize() + " anchore containers on this node are in use, waiting for one to be released (" + pool.getWaiting() + " builds already waiting)");
 	    }
-
-	    if (doQuery) {
-		for (Map.Entry<String, String> entry : queries.entrySet()) {
-		    String anchoreQuery = entry.getValue();
-		    if (anchoreQuery != null && !anchoreQuery.isEmpty()) {
-			listener.getLogger().println("[anchore][info] " + entry.getKey() + " : " + entry.getValue());
-
-			FilePath queryOutputFile = new FilePath(myAnchoreWorkspace, entry.getKey() + ".html");
-		    
-			listener.getLogger().println("[anchore][info] Running Anchore Query: " + entry.getValue());
-		    
-			if (debug) {
-			    exitCode = runAnchoreCmd(launcher, queryOutputFile.write(), anchoreLogStream, "docker", "exec", containerId, "anchore", "--debug", "--html", "query", "--imagefile", targetImageFile, entry.getValue());
-			} else {
-			    exitCode = runAnchoreCmd(launcher, queryOutputFile.write(), anchoreLogStream, "docker", "exec", containerId, "anchore", "--html", "query", "--imagefile", targetImageFile, entry.getValue());
-			}
-			if (queryOutputFile.exists() && queryOutputFile.length() > 0) {
-			    queriesOutput.put(entry.getKey(), entry.getValue());
-			}
-			listener.getLogger().println("[anchore][info] Done Running Anchore Query: exitcode="+exitCode);
-		    }
-		}
+	    lease = pool.lease(config.getPoolSize());
+	    listener.getLogger().println("[anchore][info] leased anchore container " + lease.getContainerId() + " (waited " + lease.getWaitMillis() + "ms)");
+	    phaseTimings.put("lease_wait", lease.getWaitMillis());
+
+	    // analysis results live in the container's DB, so the cache that tracks them lives on the node
+	    FilePath analysisCacheFile = null;
+	    if (myNode != null && myNode.getRootPath() != null) {
+		analysisCacheFile = new FilePath(myNode.getRootPath(), "anchore/analysis-cache." + lease.getContainerId());
 	    }
 
-	    if (doGate) {
-		FilePath gatesOutputFile = new FilePath(myAnchoreWorkspace, "anchore_gates.html");
-
-		listener.getLogger().println("[anchore][info] Running Anchore Gates:");
-
-		if (anchorePolicyFile.exists()) {
-		    if (debug) {
-			exitCode = runAnchoreCmd(launcher, gatesOutputFile.write(), anchoreLogStream, "docker", "exec", containerId, "anchore", "--debug", "--html", "gate", "--policy", targetPolicyFile, "--imagefile", targetImageFile);
-		    } else {
-			exitCode = runAnchoreCmd(launcher, gatesOutputFile.write(), anchoreLogStream, "docker", "exec", containerId, "anchore", "--html", "gate", "--policy", targetPolicyFile, "--imagefile", targetImageFile);
-		    }
+	    // large reports are served a page at a time from an index kept with the build
+	    reportIndexDir = "anchore/" + AnchoreAction.getUrlName(scanIndex);
+	    FilePath indexDir = new FilePath(new File(build.getRootDir(), reportIndexDir));
+
+	    onAgent = config.getRunOnAgent() && myWorkspace.isRemote();
+	    if (onAgent) {
+		listener.getLogger().println("[anchore][info] running the scan on the agent, its log is archived as AnchoreReport."+euid+"/anchore_scan.log");
+		summary = myWorkspace.act(new AnchoreAgentScan(config, euid, lease.getNodeName(), lease.getContainerId(), lease.getLocalVol(config.getLocalVol()), AnchoreContainerHealth.isHealthy(lease.getNodeName(), lease.getContainerId()), myWorkspace, analysisCacheFile, indexDir));
+		if (summary.getLogTail() != null) {
+		    listener.getLogger().println("[anchore][info] end of the scan log:");
+		    listener.getLogger().print(summary.getLogTail());
+		}
+		if (summary.isContainerRunning()) {
+		    AnchoreContainerHealth.markHealthy(lease.getNodeName(), lease.getContainerId(), config.getUseSudo());
 		} else {
-		    if (debug) {
-			exitCode = runAnchoreCmd(launcher, gatesOutputFile.write(), anchoreLogStream, "docker", "exec", containerId, "anchore", "--debug", "--html", "gate", "--imagefile", targetImageFile);
-		    } else {
-			exitCode = runAnchoreCmd(launcher, gatesOutputFile.write(), anchoreLogStream, "docker", "exec", containerId, "anchore", "--html", "gate", "--imagefile", targetImageFile);
-		    }
+		    AnchoreContainerHealth.invalidate(lease.getNodeName(), lease.getContainerId());
 		}
-
-		listener.getLogger().println("[anchore][info] Done Running Anchore Gates: exitcode="+exitCode);
-		
+	    } else {
+		worker = new BuildWorker(config, euid, lease, myWorkspace, launcher, listener);
+		summary = worker.scan(analysisCacheFile, indexDir);
 	    }
+	    phaseTimings.putAll(summary.getPhaseTimings());
+	    exitCode = summary.getGateExitCode();
 
-	    // prep output
-	    rc = prepareReportOutput(listener, myAnchoreWorkspace);
-	    if (!rc) {
+	    if (summary.getStatus() == BuildWorker.Summary.SETUP_FAILED) {
+		listener.getLogger().println("[anchore] failed to setup Anchore - please check the output above");
+		return(selectPluginExitStatus(listener));
+	    } else if (summary.getStatus() == BuildWorker.Summary.ANALYZER_FAILED) {
+		return(false);
+	    } else if (summary.getStatus() == BuildWorker.Summary.REPORT_FAILED) {
 		listener.getLogger().println("[anchore][error] failed to prepare Anchore output reports.");
 		return(selectPluginExitStatus(listener));
 	    }
+	    if (summary.isGateFailed()) {
+		// a gate that timed out or could not run says nothing about the images, it is no STOP
+		listener.getLogger().println("[anchore][error] Anchore policy evaluation did not complete - please check the output above");
+		if (!selectPluginExitStatus(listener)) {
+		    return(false);
+		}
+	    }
 
-	    // store anchore output html files using jenkins archiver (for remote storage as well)
-	    listener.getLogger().println("[anchore][info] archiving anchore results.");
-	    ArtifactArchiver artifactArchiver = new ArtifactArchiver("AnchoreReport."+euid+"/");
-	    artifactArchiver.perform(build, myWorkspace, launcher, listener);
+	    long archiveStart = System.currentTimeMillis();
+	    if (config.getStoreReports()) {
+		// reports of unchanged images are the same from build to build, keep them once and compressed
+		listener.getLogger().println("[anchore][info] storing anchore results.");
+		reportManifest = reportIndexDir + "/" + AnchoreReportStore.MANIFEST;
+		int added = AnchoreReportStore.store(new FilePath(myWorkspace, "AnchoreReport."+euid), new File(build.getRootDir(), reportManifest));
+		listener.getLogger().println("[anchore][info] stored " + added + " new reports, the others were already in the report store.");
+	    } else {
+		// store anchore output html files using jenkins archiver (for remote storage as well)
+		listener.getLogger().println("[anchore][info] archiving anchore results.");
+		ArtifactArchiver artifactArchiver = new ArtifactArchiver("AnchoreReport."+euid+"/");
+		artifactArchiver.perform(build, myWorkspace, launcher, listener);
+	    }
+	    phaseTimings.put("archive", System.currentTimeMillis() - archiveStart);
 
 	    listener.getLogger().println("[anchore][info] cleaning up anchore artifacts in workspace.");
 
-	    rc = anchoreCleanup(build, launcher, listener, myAnchoreWorkspace);
+	    long cleanupStart = System.currentTimeMillis();
+	    AnchoreCleanupQueue.Task cleanupTask = null;
+	    if (onAgent) {
+		AnchoreAgentScan.Cleanup cleanup = myWorkspace.act(new AnchoreAgentScan.Finish(euid, true));
+		rc = (cleanup != null) && cleanup.isCleaned();
+		if (cleanup != null) {
+		    cleanupTask = cleanup.getTask();
+		    if (!rc && cleanup.getLogTail() != null) {
+			listener.getLogger().print(cleanup.getLogTail());
+		    }
+		}
+	    } else {
+		rc = worker.cleanup();
+		cleanupTask = worker.getCleanupTask();
+	    }
+	    if (cleanupTask != null) {
+		// the verdict is known at this point, the rest is done by the cleanup queue after the build step
+		// returns; it keeps the container leased until then
+		AnchoreCleanupQueue.submit(cleanupTask, lease);
+		lease = null;
+	    }
+	    phaseTimings.put("cleanup", System.currentTimeMillis() - cleanupStart);
 	    if (!rc) {
 		listener.getLogger().println("[anchore][error] failed to clean up anchore artifacts in workspace.");
 		return(selectPluginExitStatus(listener));
@@ -303,83 +392,79 @@ public class AnchoreBuilder extends Builder {
 	} catch (RuntimeException e) {
             listener.getLogger().println("[anchore][error] RuntimeException:" + e.toString());
 	    return(selectPluginExitStatus(listener));
+        } catch (InterruptedException e) {
+	    throw e;
         } catch (Exception e) {
             listener.getLogger().println("[anchore][error] Exception:" + e.toString());
 	    return(selectPluginExitStatus(listener));
         } finally {
+	    if (worker != null) {
+		worker.close();
+	    }
+	    if (onAgent) {
+		// releases the worker on the agent if the scan did not get as far as the cleanup
+		try {
+		    myWorkspace.act(new AnchoreAgentScan.Finish(euid, false));
+		} catch (Exception e) {
+		    listener.getLogger().println("[anchore][warn] failed to release the scan on the agent: " + e.toString());
+		}
+	    }
+	    if (lease != null) {
+		lease.release();
+	    }
+
+	    // failed and aborted scans are timed as well, they are often the slow ones
+	    if (summary == null && worker != null) {
+		phaseTimings.putAll(worker.getPhaseTimings());
+	    }
+	    if (!phaseTimings.isEmpty()) {
+		AnchoreMetrics.record(phaseTimings);
+		StringBuilder timingLine = new StringBuilder();
+		for (Map.Entry<String, Long> entry : phaseTimings.entrySet()) {
+		    timingLine.append(" ").append(entry.getKey()).append("=").append(entry.getValue()).append("ms");
+		}
+		listener.getLogger().println("[anchore][info] phase timings:" + timingLine.toString());
+	    }
 	    listener.getLogger().println("[anchore][info] Anchore Plugin Finished");
 	}
-	
-	if (doGate) {
-	    if (exitCode == 0) {
-		listener.getLogger().println("[anchore][info] Anchore Gate Policy Final Action: GO");
 
-		// add the link in jenkins UI for anchore results
-		build.addAction(new AnchoreAction(build, "GO", euid, queriesOutput));
+	TreeMap<String, String> queriesOutput = summary.getQueriesOutput();
+	List<AnchoreGateResult> gateResults = summary.getGateResults();
+
+	String gateStatus = "";
+	if (doGate && exitCode >= 0) {
+	    gateStatus = (exitCode == 0) ? "GO" : (exitCode == 2) ? "WARN" : "STOP";
+	}
 
+	// add the link in jenkins UI for anchore results
+	AnchoreAction action = new AnchoreAction(build, gateStatus, euid, queriesOutput, gateResults, scanIndex, phaseTimings);
+	action.setReportIndex(reportIndexDir, summary.getIndexedReports());
+	if (reportManifest != null) {
+	    action.setStoredReports(euid, reportManifest);
+	}
+	build.addAction(action);
+
+	if (doGate && exitCode >= 0) {
+	    if (exitCode == 0) {
+		listener.getLogger().println("[anchore][info] Anchore Gate Policy Final Action: GO");
 		return(true);
 	    } else if (exitCode == 2) {
 		listener.getLogger().println("[anchore][warn] Anchore Gate Policy Final Action: WARN");
-
-		// add the link in jenkins UI for anchore results
-		build.addAction(new AnchoreAction(build, "WARN", euid, queriesOutput));
-
 		if (bailOnWarn) {
 		    return(false);
 		} else {
 		    listener.getLogger().println("[anchore][info] Final action is WARN but plugin is configured to return success even on policy failure.");
 		    return(true);
 		}
-
 	    } else {
 		listener.getLogger().println("[anchore][warn] Anchore Gate Policy Final Action: STOP");
-		
-		// add the link in jenkins UI for anchore results
-		build.addAction(new AnchoreAction(build, "STOP", euid, queriesOutput));
-		
 		if (bailOnFail) {
 		    return(false);
-	    } else {
+		} else {
 		    listener.getLogger().println("[anchore][warn] Final action is STOP but plugin is configured to return success even on policy failure.");
 		    return(true);
 		}
 	    }
-	} else {
-	    // add the link in jenkins UI for anchore results
-	    build.addAction(new AnchoreAction(build, "", euid, queriesOutput));
-	}
-
-	return(true);
-    }
-
-    public boolean anchoreCleanup(AbstractBuild build, Launcher launcher, BuildListener listener, FilePath myAnchoreWorkspace) {
-	int exitCode=0;
-
-	// clean up the workspace items (as they should have been archived)
-	try {
-	    myAnchoreWorkspace.deleteRecursive();
-	} catch (Exception e) {
-	    e.printStackTrace();
-	    listener.getLogger().println("Exception:" + e.toString());
-	    return(false);
-	}
-
-	// clean up the build in anchore (if cleanup is set in config)
-	exitCode = runAnchoreCmd(launcher, anchoreLogStream, anchoreLogStream, "docker", "exec", containerId, "rm", "-rf", "/root/anchore."+euid);
-	if (exitCode != 0) {
-	    listener.getLogger().println("[anchore][error] failed to cleanup build artifacts inside Anchore container.");
-	    return(false);
-	}
-
-	if (doCleanup) {
-	    for (String imgId : anchoreInputImages) {
-		if (debug) {
-		    exitCode = runAnchoreCmd(launcher, anchoreLogStream, anchoreLogStream, "docker", "exec", containerId, "anchore", "--debug", "toolbox", "--image", imgId, "delete", "--dontask");
-		} else {
-		    exitCode = runAnchoreCmd(launcher, anchoreLogStream, anchoreLogStream, "docker", "exec", containerId, "anchore", "toolbox", "--image", imgId, "delete", "--dontask");
-		}
-
-	    }
 	}
 
 	return(true);
@@ -411,71 +496,6 @@ public class AnchoreBuilder extends Builder {
 	    });
     };
 
-    public boolean prepareReportOutput(BuildListener listener, FilePath myAnchoreWorkspace) {
-	BufferedWriter bw;
-	BufferedReader br;
-	try {
-	    // CSS
-	    FilePath anchoreCss = new FilePath(myAnchoreWorkspace, "anchore.css");
-	    bw = new BufferedWriter(new OutputStreamWriter(anchoreCss.write(),StandardCharsets.UTF_8));
-	    try {
-		// anchore colors: main:blue #3c7fe2 main:grey #d9e1e2 main:yellow #EEDC00 sec:blue #5BC2E7 sec:green #00B388 sec:navygrey #425563
-		String css = "table {\n"
-		    +"    border-collapse: collapse;\n"
-		    +"    width: 100%;\n"
-		    +"}\n"
-		    +"th, td {\n"
-		    +"    text-align: left;\n"
-		    +"    padding: 8px;\n"
-		    +"    transition: all 0.3s;\n"
-		    +"}\n"
-		    +"tr:nth-child(even){background-color: #eaf2f3}\n"
-		    +"th {\n"
-		    +"    background-color: #3c7fe2;;\n"
-		    +"    color: #EEDC00;\n"
-		    +"}\n"
-		    +"tr td:hover { background: #5BC2E7; color: #FFFFFF; }\n";
-
-		bw.write(css);
-	    } finally {
-		bw.close();
-	    }
-
-	    // style append to anchore outputs
-	    for (String oFile : oFiles) {
-		FilePath inFile = new FilePath(myAnchoreWorkspace, oFile + ".html");
-		if (inFile.exists()) {
-		    if (inFile.length() > 0) {
-			br = new BufferedReader(new InputStreamReader(inFile.read(), StandardCharsets.UTF_8));
-			try {
-			    bw = new BufferedWriter(new OutputStreamWriter(new FilePath(myAnchoreWorkspace, oFile + "_format.html").write(),StandardCharsets.UTF_8));
-			    try {
-				bw.write("<link rel=\"stylesheet\" type=\"text/css\" href=\"anchore.css\">\n");
-				String line = null;
-				while ((line = br.readLine()) != null) {
-				    bw.write(line + "\n");
-				}
-			    } finally {
-				bw.close();
-			    }
-			} finally {
-			    br.close();
-			}
-		    }
-		    inFile.delete();
-		}
-	    }
-	} catch (RuntimeException e) {
-	    throw e;
-	} catch (Exception e) {
-	    e.printStackTrace();
-	    listener.getLogger().println("Exception:" + e.toString());	    
-	    return(false);
-	}
-	
-	return(true);
-    }
-
     /*
     private String executeCommand(String command) {
 	StringBuffer output = new StringBuffer();
@@ -502,222 +522,13 @@ public class AnchoreBuilder extends Builder {
     }
     */
 
-    public boolean anchoreSetup(AbstractBuild build, Launcher launcher, BuildListener listener, FilePath myAnchoreWorkspace, FilePath anchoreImageFile, FilePath anchorePolicyFile) {
-	try {
-	    int exitCode = 0;
-	    boolean rc = false;
-	    //final EnvVars env = build.getEnvironment(listener);
-	    oFiles = new ArrayList<String>();
-	    anchoreInputImages = new ArrayList<String>();
-	    
-	    containerId = getDescriptor().getContainerId();
-	    containerImageId = getDescriptor().getContainerImageId();
-	    debug = getDescriptor().getDebug();
-	    localVol = getDescriptor().getLocalVol();
-	    modulesVol = getDescriptor().getModulesVol();
-	    useSudo = getDescriptor().getUseSudo();
-
-	    queries = new TreeMap<String, String>();
-	    queries.put("query1", query1);
-	    queries.put("query2", query2);
-	    queries.put("query3", query3);
-	    queries.put("query4", query4);
-
-	    // set up output directory
-	    if (!myAnchoreWorkspace.exists()) {
-		myAnchoreWorkspace.mkdirs();
-	    }
-
-	    anchoreLogStream = listener.getLogger();
-
-	    rc = runAnchoreContainer(launcher, listener);
-	    if (!rc) {
-		listener.getLogger().println("[anchore][error] failed to (re)launch backing Anchore container.");
-		return(false);
-	    }
-
-	    // set up input
-	    if (!anchoreImageFile.exists()) {
-		listener.getLogger().println("[anchore][error] cannot locate anchore image list file (needs to be created prior to anchore plugin build step): " + anchoreImageFile.getRemote());
-		return(false);
-	    }
-	    
-	    if (!anchorePolicyFile.exists()) {
-		listener.getLogger().println("[anchore][warn] policy file does not exist ("+ anchorePolicyFile.getRemote()+"), using anchore default policy.");
-	    }
-
-	    oFiles.add("anchore_gates");
-	    oFiles.add("query1");
-	    oFiles.add("query2");
-	    oFiles.add("query3");
-	    oFiles.add("query4");
-
-	    //	    gatesOutputFile = new File(htmlDir, "anchore_gates.html");
-
-	    // stage the input files
-	    exitCode = runAnchoreCmd(launcher, anchoreLogStream, anchoreLogStream, "docker", "exec", containerId, "mkdir", "-p", "/root/anchore."+euid);
-	    if (exitCode != 0) {
-		listener.getLogger().println("[anchore][error] failed to create build artifact directory inside Anchore container.");
-		return(false);
-	    }
-
-	    FilePath stagedImageFile = new FilePath(myAnchoreWorkspace, "staged_images."+euid);
-	    BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(stagedImageFile.write(), StandardCharsets.UTF_8));
-	    try {
-		BufferedReader br = new BufferedReader(new InputStreamReader(anchoreImageFile.read(), StandardCharsets.UTF_8));
-		try {
-		    String line = null;
-		    while ((line = br.readLine()) != null) {
-			String[] kv = line.split(" ");
-			String imgId;
-			try {
-			    imgId = kv[0];
-			} catch (Exception e) {
-			    imgId = null;
-			}
-			
-			if (imgId != null) {
-			    String targetFile = "";
-			    exitCode = 1;			    
-			    try {
-				String dfile = kv[1];
-				targetFile = "/root/anchore."+euid+"/dfile."+imgId;
-				exitCode = runAnchoreCmd(launcher, anchoreLogStream, anchoreLogStream, "docker", "cp", dfile, containerId+":"+targetFile);
-			    } catch (Exception e) {
-				listener.getLogger().println("[anchore][warn] failed to add image to target image file in the anchore container, skipping: " + imgId);
-				exitCode = 1;
-			    }
-			    bw.write(imgId + " " + targetFile + "\n");
-			    anchoreInputImages.add(imgId);
-			}
-		    }
-		} finally {
-		    br.close();
-		}
-	    } finally {
-		bw.close();
-	    }
-
-	    targetImageFile = "/root/anchore."+euid+"/images";
-	    exitCode = runAnchoreCmd(launcher, anchoreLogStream, anchoreLogStream,"docker", "cp", stagedImageFile.getRemote(), containerId+":"+targetImageFile);
-
-	    if (anchorePolicyFile.exists()) {
-		targetPolicyFile = "/root/anchore."+euid+"/policy";
-		exitCode = runAnchoreCmd(launcher, anchoreLogStream, anchoreLogStream, "docker", "cp", anchorePolicyFile.getRemote(), containerId+":"+targetPolicyFile);
-	    }
-
-	} catch (RuntimeException e) {
-	    e.printStackTrace();
-            listener.getLogger().println("RuntimeException:" + e.toString());
-	    return(false);
-        } catch (Exception e) {
-	    e.printStackTrace();
-            listener.getLogger().println("Exception:" + e.toString());
-	    return(false);
-        } finally {
-	    listener.getLogger().println("[anchore][info] setup complete.");
-	}
-
-	return(true);
-    }
-
-    public boolean isAnchoreRunning(Launcher launcher, BuildListener listener) {
-	int exitCode = 0;
-
-	exitCode = runAnchoreCmd(launcher, anchoreLogStream, anchoreLogStream, "docker", "start", containerId);
-	if (exitCode != 0) {
-	    return(false);
-	}
-	return(true);
-
-    }
-
-    public boolean isAnchoreImageAvailable(Launcher launcher, BuildListener listener) {
-	int exitCode = 0;
-
-	exitCode = runAnchoreCmd(launcher, anchoreLogStream, anchoreLogStream, "docker", "inspect", containerImageId);
-	if (exitCode != 0) {
-	    return(false);
-	}
-	return(true);
-
-    }
-
-    public boolean runAnchoreContainer(Launcher launcher, BuildListener listener) {
-	int exitCode = 0;	
-
-	if (!isAnchoreRunning(launcher, listener)) {
-	    if (isAnchoreImageAvailable(launcher, listener)) {
-
-		String cmdstr;
-		cmdstr = "docker run -d -v /var/run/docker.sock:/var/run/docker.sock";
-		if (localVol != null && !localVol.isEmpty()) {
-		    cmdstr = cmdstr + " -v " + localVol + ":/root/.anchore";
-		    //exitCode = runAnchoreCmd(launcher, anchoreLogStream, anchoreLogStream, "docker", "run", "-d", "-v", "/var/run/docker.sock:/var/run/docker.sock", "-v", localVol+":/root/.anchore", "--name", containerId, containerImageId);
-		} else {
-		    //		    exitCode = runAnchoreCmd(launcher, anchoreLogStream, anchoreLogStream, "docker", "run", "-d", "-v", "/var/run/docker.sock:/var/run/docker.sock", "--name", containerId, containerImageId);
-		}
-		if (modulesVol != null && !modulesVol.isEmpty()) {
-		    cmdstr = cmdstr + " -v " + modulesVol +":/root/anchore_modules";
-		}
-		cmdstr = cmdstr + " --name " + containerId + " " + containerImageId;
-		exitCode = runAnchoreCmd(launcher, anchoreLogStream, anchoreLogStream, cmdstr);
-
-	    } else {
-		// image is not available
-		listener.getLogger().println("[anchore][error] anchore container not running and anchore image ("+containerImageId+") is not available on local dockerhost");
-		return(false);
-	    }
-	} else {
-	    listener.getLogger().println("[anchore][info] anchore container is running");
-	    exitCode = 0;
-	}
-
-	if (exitCode == 0) {
-	    listener.getLogger().println("[anchore][info] anchore container has been launched");
-	    return(true);
-	}
-	listener.getLogger().println("[anchore][error] anchore container ("+containerId+") not running and failed to launch anchore container ("+containerImageId+") image from scratch.");
-	return(false);	    
-    }
-
-    public int runAnchoreCmd(Launcher launcher, OutputStream soutStream, OutputStream serrStream, String... cmd) {
-	int exitCode = 0;
-	ArgumentListBuilder args = new ArgumentListBuilder();
-	
-	if (this.useSudo) {
-	    args.add("sudo");
-	}
-	for (String cmdstr : cmd) {
-	    for (String cmdlet : cmdstr.split(" ")) {
-		args.add(cmdlet);
-	    }
-	}
-
-	Launcher.ProcStarter ps = launcher.launch();
-	ps.cmds(args);
-	ps.stdin(null);
-	ps.stderr(serrStream);
-	ps.stdout(soutStream);
-
-	try {
-	    exitCode = ps.join();
-	} catch (Exception e) {
-	    if (soutStream != null) {
-		//soutStream.println("command returned non-zero exitcode: " + exitCode);
-	    }
-	    return(1);
-	}
-
-	return(exitCode);
-    }
-
     @Override
     public DescriptorImpl getDescriptor() {
         return (DescriptorImpl)super.getDescriptor();
     }
 
     @Extension // This indicates to Jenkins that this is an implementation of an extension point.
+    @Symbol("anchore")
     public static class DescriptorImpl extends BuildStepDescriptor<Builder> {
         private boolean debug;
         private boolean enabled;
@@ -726,6 +537,21 @@ public class AnchoreBuilder extends Builder {
 	private String localVol;
 	private String modulesVol;
 	private boolean useSudo;
+	private int analysisCacheSize;
+	private int analysisCacheTtl;
+	private boolean useSession;
+	private int poolSize;
+	private boolean deferCleanup;
+	private int gateCacheSize;
+	private int gateCacheTtl;
+	private boolean runOnAgent;
+	private boolean storeReports;
+	private int analyzeTimeout;
+	private int gateTimeout;
+	private int queryTimeout;
+	private String containerCpus;
+	private String containerMemory;
+	private boolean warmup;
 
         public DescriptorImpl() {
             load();
@@ -744,10 +570,25 @@ public class AnchoreBuilder extends Builder {
 	    debug = formData.getBoolean("debug");
 	    enabled = formData.getBoolean("enabled");
 	    useSudo = formData.getBoolean("useSudo");
+	    useSession = formData.getBoolean("useSession");
 	    containerImageId = formData.getString("containerImageId");
 	    containerId = formData.getString("containerId");
 	    localVol = formData.getString("localVol");
 	    modulesVol = formData.getString("modulesVol");
+	    analysisCacheSize = formData.optInt("analysisCacheSize", 0);
+	    analysisCacheTtl = formData.optInt("analysisCacheTtl", 0);
+	    poolSize = formData.optInt("poolSize", 1);
+	    deferCleanup = formData.getBoolean("deferCleanup");
+	    gateCacheSize = formData.optInt("gateCacheSize", 0);
+	    gateCacheTtl = formData.optInt("gateCacheTtl", 0);
+	    runOnAgent = formData.getBoolean("runOnAgent");
+	    storeReports = formData.getBoolean("storeReports");
+	    analyzeTimeout = formData.optInt("analyzeTimeout", 0);
+	    gateTimeout = formData.optInt("gateTimeout", 0);
+	    queryTimeout = formData.optInt("queryTimeout", 0);
+	    containerCpus = formData.getString("containerCpus");
+	    containerMemory = formData.getString("containerMemory");
+	    warmup = formData.getBoolean("warmup");
 	    
             save();
             return super.configure(req,formData);
@@ -762,6 +603,9 @@ public class AnchoreBuilder extends Builder {
 	public boolean getUseSudo() {
             return useSudo;
         }
+	public boolean getUseSession() {
+	    return useSession;
+	}
 	public String getContainerImageId() {
 	    return containerImageId;
 	}
@@ -774,6 +618,48 @@ public class AnchoreBuilder extends Builder {
 	public String getModulesVol() {
 	    return modulesVol;
 	}
+	public int getAnalysisCacheSize() {
+	    return analysisCacheSize;
+	}
+	public int getAnalysisCacheTtl() {
+	    return analysisCacheTtl;
+	}
+	public int getPoolSize() {
+	    return poolSize;
+	}
+	public boolean getDeferCleanup() {
+	    return deferCleanup;
+	}
+	public int getGateCacheSize() {
+	    return gateCacheSize;
+	}
+	public int getGateCacheTtl() {
+	    return gateCacheTtl;
+	}
+	public boolean getRunOnAgent() {
+	    return runOnAgent;
+	}
+	public boolean getStoreReports() {
+	    return storeReports;
+	}
+	public int getAnalyzeTimeout() {
+	    return analyzeTimeout;
+	}
+	public int getGateTimeout() {
+	    return gateTimeout;
+	}
+	public int getQueryTimeout() {
+	    return queryTimeout;
+	}
+	public String getContainerCpus() {
+	    return containerCpus;
+	}
+	public String getContainerMemory() {
+	    return containerMemory;
+	}
+	public boolean getWarmup() {
+	    return warmup;
+	}
     }
 
 }
@@ -0,0 +1,344 @@
+package com.anchore.jenkins.plugins.anchore;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.XmlFile;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.LogTaskListener;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.Jenkins;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs scan cleanup (removing the report directory from the workspace, the build directory from the
+ * Anchore container and, if configured, the analyzed images from the Anchore DB) on a background thread
+ * after the build step has finished.  The scan hands its container lease over with the cleanup, and the
+ * lease is released once the cleanup has run, so no other scan uses the container while images are
+ * deleted from its DB.
+ *
+ * Pending cleanups are kept in JENKINS_HOME/anchore-cleanup.xml until they are done, so they are picked up
+ * again after a restart.  Cleanups that pile up for one container are batched into a single
+ * 'docker exec ... sh -c' on its node.  A batch whose container is leased by a scan is run again as soon
+ * as that lease is released.  Build directories that were never cleaned up, e.g. because the build was
+ * aborted, are swept from the containers of all pools once they are older than STALE_MINUTES, as long as
+ * deferred cleanup is enabled.
+ */
+public class AnchoreCleanupQueue {
+    private static final Logger LOGGER = Logger.getLogger(AnchoreCleanupQueue.class.getName());
+
+    static final int STALE_MINUTES = 24 * 60;
+
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor(new NamingThreadFactory(new DaemonThreadFactory(), "Anchore cleanup"));
+
+    // guarded by AnchoreCleanupQueue.class
+    private static List<Task> pending;
+    private static boolean scheduled;
+    // "<node>/<pool container>/<slot>" of the containers batches were skipped for because they were leased
+    private static final Set<String> skipped = new HashSet<String>();
+
+    /**
+     * Cleanup of one scan.
+     */
+    public static class Task implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private final String nodeName;
+	private final String containerId;
+	private final boolean useSudo;
+	private final String euid;
+	private final String reportDir;
+	private final List<String> images;
+	// the pool slot of the container, to lease it again for cleanups picked up after a restart
+	private String poolContainerId;
+	private int slot;
+	private transient AnchoreContainerPool.Lease lease;
+
+	public Task(String nodeName, String containerId, boolean useSudo, String euid, String reportDir, List<String> images) {
+	    this.nodeName = nodeName;
+	    this.containerId = containerId;
+	    this.useSudo = useSudo;
+	    this.euid = euid;
+	    this.reportDir = reportDir;
+	    this.images = new ArrayList<String>(images);
+	}
+
+	private String getTarget() {
+	    return(nodeName + "/" + containerId + "/" + useSudo);
+	}
+    }
+
+    private static String slotKey(String nodeName, String poolContainerId, int slot) {
+	return(nodeName + "/" + poolContainerId + "/" + slot);
+    }
+
+    private static XmlFile getQueueFile() {
+	Jenkins jenkins = Jenkins.getInstance();
+	if (jenkins == null) {
+	    return(null);
+	}
+	return(new XmlFile(new File(jenkins.getRootDir(), "anchore-cleanup.xml")));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static synchronized List<Task> getPending() {
+	if (pending == null) {
+	    pending = new ArrayList<Task>();
+	    XmlFile queueFile = getQueueFile();
+	    if (queueFile != null && queueFile.exists()) {
+		try {
+		    pending.addAll((List<Task>)queueFile.read());
+		} catch (Exception e) {
+		    LOGGER.log(Level.WARNING, "failed to load pending anchore cleanups", e);
+		}
+	    }
+	}
+	return(pending);
+    }
+
+    private static synchronized void persist() {
+	XmlFile queueFile = getQueueFile();
+	if (queueFile == null) {
+	    return;
+	}
+	try {
+	    if (getPending().isEmpty()) {
+		queueFile.delete();
+	    } else {
+		queueFile.write(new ArrayList<Task>(getPending()));
+	    }
+	} catch (IOException e) {
+	    LOGGER.log(Level.WARNING, "failed to save pending anchore cleanups", e);
+	}
+    }
+
+    // takes over the lease of the task's container, it is released once the task has run
+    public static void submit(Task task, AnchoreContainerPool.Lease lease) {
+	task.poolContainerId = lease.getPoolContainerId();
+	task.slot = lease.getSlot();
+	task.lease = lease;
+	submit(task);
+    }
+
+    public static void submit(Task task) {
+	synchronized (AnchoreCleanupQueue.class) {
+	    getPending().add(task);
+	    persist();
+	}
+	schedule();
+    }
+
+    public static synchronized int getPendingCount() {
+	return(getPending().size());
+    }
+
+    // called by the pool for every released lease, runs the batches that were skipped for that container
+    static void released(String nodeName, String poolContainerId, int slot) {
+	synchronized (AnchoreCleanupQueue.class) {
+	    if (!skipped.remove(slotKey(nodeName, poolContainerId, slot))) {
+		return;
+	    }
+	}
+	schedule();
+    }
+
+    private static synchronized void schedule() {
+	if (scheduled || getPending().isEmpty()) {
+	    return;
+	}
+	scheduled = true;
+	executor.submit(new Runnable() {
+		public void run() {
+		    synchronized (AnchoreCleanupQueue.class) {
+			scheduled = false;
+		    }
+		    drain();
+		}
+	    });
+    }
+
+    // runs everything that is pending right now, one batch per container
+    private static void drain() {
+	Map<String, List<Task>> batches = new LinkedHashMap<String, List<Task>>();
+	synchronized (AnchoreCleanupQueue.class) {
+	    for (Task task : getPending()) {
+		List<Task> batch = batches.get(task.getTarget());
+		if (batch == null) {
+		    batch = new ArrayList<Task>();
+		    batches.put(task.getTarget(), batch);
+		}
+		batch.add(task);
+	    }
+	}
+
+	TaskListener listener = new LogTaskListener(LOGGER, Level.FINE);
+	for (List<Task> batch : batches.values()) {
+	    AnchoreContainerPool.Lease lease = leaseBatch(batch);
+	    if (lease == null && batch.get(0).poolContainerId != null) {
+		// a scan is using the container, the batch runs again when it releases it; the lease is tried
+		// once more in case it was released before the batch was marked
+		String slot = slotKey(batch.get(0).nodeName, batch.get(0).poolContainerId, batch.get(0).slot);
+		synchronized (AnchoreCleanupQueue.class) {
+		    skipped.add(slot);
+		}
+		lease = leaseBatch(batch);
+		if (lease == null) {
+		    continue;
+		}
+		synchronized (AnchoreCleanupQueue.class) {
+		    skipped.remove(slot);
+		}
+	    }
+	    boolean done;
+	    try {
+		done = runBatch(batch, listener);
+	    } catch (InterruptedException e) {
+		return;
+	    } catch (Exception e) {
+		LOGGER.log(Level.WARNING, "anchore cleanup failed", e);
+		done = false;
+	    } finally {
+		if (lease != null) {
+		    lease.release();
+		}
+	    }
+	    if (done) {
+		synchronized (AnchoreCleanupQueue.class) {
+		    getPending().removeAll(batch);
+		    persist();
+		}
+	    }
+	}
+    }
+
+    // the lease one of the batch's scans handed over, or a new one if the container is free; takes the lease
+    // away from the tasks, since a batch that fails is retried under a new one
+    private static AnchoreContainerPool.Lease leaseBatch(List<Task> batch) {
+	AnchoreContainerPool.Lease lease = null;
+	synchronized (AnchoreCleanupQueue.class) {
+	    for (Task task : batch) {
+		if (task.lease != null) {
+		    lease = task.lease;
+		    task.lease = null;
+		}
+	    }
+	}
+	Task first = batch.get(0);
+	if (lease == null && first.poolContainerId != null) {
+	    lease = AnchoreContainerPool.get(first.nodeName, first.poolContainerId, first.useSudo).tryLease(first.slot);
+	}
+	return(lease);
+    }
+
+    private static boolean runBatch(List<Task> batch, TaskListener listener) throws IOException, InterruptedException {
+	Task first = batch.get(0);
+	Node node = AnchoreContainerPool.getNode(first.nodeName);
+	if (node == null || node.toComputer() == null || !node.toComputer().isOnline()) {
+	    // retried by the next sweep once the node is back
+	    return(false);
+	}
+
+	StringBuilder script = new StringBuilder();
+	List<String> buildDirs = new ArrayList<String>();
+	for (Task task : batch) {
+	    if (task.reportDir != null) {
+		FilePath reportDir = node.createPath(task.reportDir);
+		if (reportDir != null) {
+		    reportDir.deleteRecursive();
+		}
+	    }
+	    for (String image : task.images) {
+		script.append("anchore toolbox --image ").append(AnchoreSession.quote(image)).append(" delete --dontask; ");
+	    }
+	    buildDirs.add(AnchoreSession.quote("/root/anchore." + task.euid));
+	}
+	script.append("rm -rf");
+	for (String buildDir : buildDirs) {
+	    script.append(" ").append(buildDir);
+	}
+
+	List<String> cmd = new ArrayList<String>();
+	cmd.add("docker");
+	cmd.add("exec");
+	cmd.add(first.containerId);
+	cmd.add("sh");
+	cmd.add("-c");
+	cmd.add(script.toString());
+	int exitCode = AnchoreCommandRunner.launchCmd(node.createLauncher(listener), AnchoreCommandRunner.buildArgs(first.useSudo, cmd), listener.getLogger(), listener.getLogger());
+	if (exitCode != 0) {
+	    AnchoreContainerHealth.invalidate(first.nodeName, first.containerId);
+	    LOGGER.log(Level.WARNING, "anchore cleanup in container {0} on node ''{1}'' failed: exitcode={2}", new Object[] {first.containerId, first.nodeName, exitCode});
+	    return(false);
+	}
+	return(true);
+    }
+
+    private static void sweep(TaskListener listener) throws InterruptedException {
+	for (AnchoreContainerPool pool : AnchoreContainerPool.getPools().values()) {
+	    Node node = AnchoreContainerPool.getNode(pool.getNodeName());
+	    if (node == null || node.toComputer() == null || !node.toComputer().isOnline()) {
+		continue;
+	    }
+	    for (int slot=0; slot<pool.getSlotCount(); slot++) {
+		List<String> cmd = new ArrayList<String>();
+		cmd.add("docker");
+		cmd.add("exec");
+		cmd.add(AnchoreContainerPool.getSlotContainerId(pool.getContainerId(), slot));
+		cmd.add("find");
+		cmd.add("/root");
+		cmd.add("-maxdepth");
+		cmd.add("1");
+		cmd.add("-name");
+		cmd.add("anchore.*");
+		cmd.add("-mmin");
+		cmd.add("+" + STALE_MINUTES);
+		cmd.add("-exec");
+		cmd.add("rm");
+		cmd.add("-rf");
+		cmd.add("{}");
+		cmd.add("+");
+		AnchoreCommandRunner.launchCmd(node.createLauncher(listener), AnchoreCommandRunner.buildArgs(pool.isUseSudo(), cmd), listener.getLogger(), listener.getLogger());
+	    }
+	}
+    }
+
+    @Extension
+    public static class Sweeper extends AsyncPeriodicWork {
+	public Sweeper() {
+	    super("Anchore cleanup sweep");
+	}
+
+	@Override
+	public long getRecurrencePeriod() {
+	    return(HOUR);
+	}
+
+	@Override
+	protected void execute(TaskListener listener) throws InterruptedException {
+	    // cleanups left over from a restart or an offline node
+	    schedule();
+	    Jenkins jenkins = Jenkins.getInstance();
+	    AnchoreBuilder.DescriptorImpl descriptor = (jenkins != null) ? jenkins.getDescriptorByType(AnchoreBuilder.DescriptorImpl.class) : null;
+	    if (descriptor == null || !descriptor.getDeferCleanup()) {
+		// without deferred cleanup nothing is removed from the containers behind the scans' backs
+		return;
+	    }
+	    sweep(listener);
+	}
+    }
+}
@@ -0,0 +1,284 @@
+package com.anchore.jenkins.plugins.anchore;
+
+import hudson.Launcher;
+import hudson.Proc;
+import hudson.model.TaskListener;
+import hudson.util.ArgumentListBuilder;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the commands of one scan on the node, through the launcher, or over the scan's session for
+ * commands in the anchore container.  Commands in the container run under a shell that records their pid
+ * in a file, so a command that runs too long or whose build is aborted is killed along with everything it
+ * started in the container, and nothing else.
+ */
+public class AnchoreCommandRunner {
+    // returned for commands that did not run to completion, real exit codes are never negative
+    public static final int FAILED = -1;
+    public static final int TIMED_OUT = -2;
+    public static final int ABORTED = -3;
+
+    private final Launcher launcher;
+    private final TaskListener listener;
+    private final boolean useSudo;
+    private final String containerId;
+    private final String euid;
+    private final OutputStream logStream;
+    // numbers the pid files of the commands run in the container
+    private final AtomicInteger commandCount = new AtomicInteger();
+    // pid files of the commands running in the container, what cancelAll() kills
+    private final Set<String> runningPidFiles = new HashSet<String>();
+    private volatile AnchoreSession session;
+    // kills the commands that run out of time, started with the first command that has a timeout
+    private ScheduledExecutorService timer;
+
+    public AnchoreCommandRunner(Launcher launcher, boolean useSudo, String containerId, String euid, TaskListener listener) {
+	this.launcher = launcher;
+	this.listener = listener;
+	this.useSudo = useSudo;
+	this.containerId = containerId;
+	this.euid = euid;
+	this.logStream = listener.getLogger();
+    }
+
+    public Launcher getLauncher() {
+	return(launcher);
+    }
+
+    public boolean getUseSudo() {
+	return(useSudo);
+    }
+
+    // commands in the container go over the session while it is set, null runs each one separately
+    public void setSession(AnchoreSession session) {
+	this.session = session;
+    }
+
+    public AnchoreSession getSession() {
+	return(session);
+    }
+
+    public int run(OutputStream soutStream, OutputStream serrStream, String... cmd) {
+	return(run(0, soutStream, serrStream, cmd));
+    }
+
+    // a command that runs longer than timeoutMillis (if > 0) is killed along with what it started inside the
+    // container and returns TIMED_OUT, one whose build is aborted is killed the same way and returns ABORTED
+    public int run(long timeoutMillis, OutputStream soutStream, OutputStream serrStream, String... cmd) {
+	List<String> cmdlets = splitCommand(cmd);
+
+	if (Thread.currentThread().isInterrupted()) {
+	    // the build is being aborted, start nothing new
+	    return(ABORTED);
+	}
+
+	// 'docker exec <container> ...' can go over the open session instead of a new docker process, unless
+	// it may have to be killed on its own
+	boolean inContainer = cmdlets.size() > 3 && cmdlets.get(0).equals("docker") && cmdlets.get(1).equals("exec") && cmdlets.get(2).equals(containerId);
+	String pidFile = null;
+	if (inContainer) {
+	    // the command runs under a shell that records its pid, so that it alone can be killed
+	    pidFile = "/root/anchore." + euid + ".pid." + commandCount.incrementAndGet();
+	    List<String> wrapped = new ArrayList<String>(cmdlets.subList(0, 3));
+	    wrapped.add("sh");
+	    wrapped.add("-c");
+	    wrapped.add("echo $$ > " + pidFile + "; \"$@\"; rc=$?; rm -f " + pidFile + "; exit $rc");
+	    wrapped.add("sh");
+	    wrapped.addAll(cmdlets.subList(3, cmdlets.size()));
+	    cmdlets = wrapped;
+	    synchronized (runningPidFiles) {
+		runningPidFiles.add(pidFile);
+	    }
+	}
+	try {
+	    return(exec(timeoutMillis, soutStream, serrStream, cmdlets, inContainer, pidFile));
+	} finally {
+	    if (pidFile != null) {
+		synchronized (runningPidFiles) {
+		    runningPidFiles.remove(pidFile);
+		}
+	    }
+	}
+    }
+
+    private int exec(long timeoutMillis, OutputStream soutStream, OutputStream serrStream, List<String> cmdlets, boolean inContainer, final String pidFile) {
+	AnchoreSession session = this.session;
+	if (session != null && inContainer && timeoutMillis <= 0) {
+	    Integer sessionExitCode;
+	    try {
+		sessionExitCode = session.tryExec(cmdlets.subList(3, cmdlets.size()), soutStream, serrStream);
+	    } catch (InterruptedException e) {
+		// the shell of the session is still running the command
+		killInContainer(pidFile);
+		session.close();
+		Thread.currentThread().interrupt();
+		return(ABORTED);
+	    }
+	    if (sessionExitCode != null) {
+		return(sessionExitCode);
+	    }
+	}
+
+	Launcher.ProcStarter ps = launcher.launch();
+	ps.cmds(buildArgs(useSudo, cmdlets));
+	ps.stdin(null);
+	ps.stderr(serrStream);
+	ps.stdout(soutStream);
+
+	final boolean inContainerKill = inContainer;
+	try {
+	    final Proc proc = ps.start();
+	    if (timeoutMillis <= 0) {
+		return(proc.join());
+	    }
+	    // only the kill decides that the command timed out: one that fails on its own after its time is up
+	    // is neither reported as timed out nor killed again
+	    final AtomicBoolean timedOut = new AtomicBoolean();
+	    ScheduledFuture<?> killer = getTimer().schedule(new Runnable() {
+		    public void run() {
+			try {
+			    if (proc.isAlive()) {
+				timedOut.set(true);
+				if (inContainerKill) {
+				    killInContainer(pidFile);
+				}
+				proc.kill();
+			    }
+			} catch (Exception e) {
+			    listener.getLogger().println("[anchore][warn] failed to kill anchore command: " + e.toString());
+			}
+		    }
+		}, timeoutMillis, TimeUnit.MILLISECONDS);
+	    int exitCode;
+	    try {
+		exitCode = proc.join();
+	    } finally {
+		killer.cancel(false);
+	    }
+	    if (timedOut.get()) {
+		listener.getLogger().println("[anchore][warn] anchore command did not finish within " + (timeoutMillis / 60000L) + " minutes and was killed: " + cmdlets);
+		return(TIMED_OUT);
+	    }
+	    return(exitCode);
+	} catch (InterruptedException e) {
+	    // the docker client is gone, the command it started inside the container is not
+	    if (inContainer) {
+		killInContainer(pidFile);
+	    }
+	    Thread.currentThread().interrupt();
+	    return(ABORTED);
+	} catch (Exception e) {
+	    listener.getLogger().println("[anchore][warn] failed to run anchore command: " + e.toString());
+	    return(FAILED);
+	}
+    }
+
+    private synchronized ScheduledExecutorService getTimer() {
+	if (timer == null) {
+	    timer = Executors.newSingleThreadScheduledExecutor(new NamingThreadFactory(new DaemonThreadFactory(), "Anchore command timeout"));
+	}
+	return(timer);
+    }
+
+    // kills the commands of the build still running inside the container, killing the docker exec clients
+    // alone leaves them running.  Only the commands this runner started are killed, by their pid files.
+    public void cancelAll() {
+	List<String> pidFiles;
+	synchronized (runningPidFiles) {
+	    pidFiles = new ArrayList<String>(runningPidFiles);
+	}
+	// not through the session, which may be busy with one of them; it is only closed once they are gone,
+	// a cancelled command may have left it in the middle of its output
+	if (!pidFiles.isEmpty()) {
+	    killInContainer(pidFiles);
+	}
+	AnchoreSession session = this.session;
+	if (session != null) {
+	    session.close();
+	}
+    }
+
+    public void close() {
+	AnchoreSession session = this.session;
+	this.session = null;
+	if (session != null) {
+	    session.close();
+	}
+	synchronized (this) {
+	    if (timer != null) {
+		timer.shutdownNow();
+		timer = null;
+	    }
+	}
+    }
+
+    private void killInContainer(String pidFile) {
+	killInContainer(Arrays.asList(pidFile));
+    }
+
+    // kills the commands that recorded their pids in pidFiles and everything they started, children first
+    // so nothing is left to start new ones; the other commands of the build keep running
+    private void killInContainer(List<String> pidFiles) {
+	StringBuilder files = new StringBuilder();
+	for (String pidFile : pidFiles) {
+	    files.append(" ").append(pidFile);
+	}
+	String script = "k() { for c in $(pgrep -P $1); do k $c; done; kill $1 2>/dev/null; }; for f in" + files + "; do [ -f $f ] && k $(cat $f); rm -f $f; done";
+	launchCmd(launcher, buildArgs(useSudo, Arrays.asList("docker", "exec", containerId, "sh", "-c", script)), logStream, logStream);
+    }
+
+    public static List<String> splitCommand(String... cmd) {
+	List<String> cmdlets = new ArrayList<String>();
+
+	for (String cmdstr : cmd) {
+	    for (String cmdlet : cmdstr.split(" ")) {
+		cmdlets.add(cmdlet);
+	    }
+	}
+	return(cmdlets);
+    }
+
+    public static ArgumentListBuilder buildArgs(boolean useSudo, List<String> cmdlets) {
+	ArgumentListBuilder args = new ArgumentListBuilder();
+
+	if (useSudo) {
+	    args.add("sudo");
+	}
+	for (String cmdlet : cmdlets) {
+	    args.add(cmdlet);
+	}
+	return(args);
+    }
+
+    public static int launchCmd(Launcher launcher, ArgumentListBuilder args, OutputStream soutStream, OutputStream serrStream) {
+	int exitCode = 0;
+
+	Launcher.ProcStarter ps = launcher.launch();
+	ps.cmds(args);
+	ps.stdin(null);
+	ps.stderr(serrStream);
+	ps.stdout(soutStream);
+
+	try {
+	    exitCode = ps.join();
+	} catch (Exception e) {
+	    return(1);
+	}
+
+	return(exitCode);
+    }
+}
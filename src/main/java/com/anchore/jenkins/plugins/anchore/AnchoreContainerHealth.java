@@ -0,0 +1,148 @@
+package com.anchore.jenkins.plugins.anchore;
+
+import hudson.Extension;
+import hudson.Launcher;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.util.ArgumentListBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers which Anchore containers were recently seen running, so a scan can skip the
+ * 'docker start' / 'docker inspect' round trip when its container is known to be healthy.
+ *
+ * A container is marked healthy when a scan (re)started it or the background probe found it running,
+ * and stays healthy for HEALTHY_TTL.  The probe re-checks every known container with a single
+ * 'docker inspect' on its node once a minute, so containers in regular use normally never expire.  A
+ * failed probe or a failed command inside the container drops the state, and the next scan goes through
+ * the full start path again.
+ */
+public class AnchoreContainerHealth {
+    static final long HEALTHY_TTL = 2 * 60 * 1000L;
+    // containers no scan asked about for this long are no longer probed
+    static final long IDLE_TIMEOUT = 60 * 60 * 1000L;
+
+    // "<node>/<containerId>" -> state
+    private static final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    private static class Entry {
+	final String nodeName;
+	final String containerId;
+	boolean useSudo;
+	long healthyAt;
+	long usedAt;
+
+	Entry(String nodeName, String containerId) {
+	    this.nodeName = nodeName;
+	    this.containerId = containerId;
+	}
+    }
+
+    private static Entry getEntry(String nodeName, String containerId) {
+	String key = nodeName + "/" + containerId;
+	Entry entry = entries.get(key);
+	if (entry == null) {
+	    entry = new Entry(nodeName, containerId);
+	    entries.put(key, entry);
+	}
+	return(entry);
+    }
+
+    public static boolean isHealthy(String nodeName, String containerId) {
+	long now = System.currentTimeMillis();
+	synchronized (entries) {
+	    Entry entry = getEntry(nodeName, containerId);
+	    entry.usedAt = now;
+	    return(entry.healthyAt > 0 && now - entry.healthyAt < HEALTHY_TTL);
+	}
+    }
+
+    public static void markHealthy(String nodeName, String containerId, boolean useSudo) {
+	long now = System.currentTimeMillis();
+	synchronized (entries) {
+	    Entry entry = getEntry(nodeName, containerId);
+	    entry.useSudo = useSudo;
+	    entry.healthyAt = now;
+	    entry.usedAt = now;
+	}
+    }
+
+    public static void invalidate(String nodeName, String containerId) {
+	synchronized (entries) {
+	    Entry entry = entries.get(nodeName + "/" + containerId);
+	    if (entry != null) {
+		entry.healthyAt = 0;
+	    }
+	}
+    }
+
+    private static void probe(Entry entry, TaskListener listener) throws InterruptedException {
+	Node node = AnchoreContainerPool.getNode(entry.nodeName);
+	Computer computer = (node != null) ? node.toComputer() : null;
+	if (computer == null || !computer.isOnline()) {
+	    invalidate(entry.nodeName, entry.containerId);
+	    return;
+	}
+
+	ArgumentListBuilder args = new ArgumentListBuilder();
+	if (entry.useSudo) {
+	    args.add("sudo");
+	}
+	args.add("docker", "inspect", "-f", "{{.State.Running}}", entry.containerId);
+
+	ByteArrayOutputStream running = new ByteArrayOutputStream();
+	int exitCode;
+	try {
+	    Launcher launcher = node.createLauncher(listener);
+	    exitCode = launcher.launch().cmds(args).stdin(null).stdout(running).stderr(listener.getLogger()).join();
+	} catch (java.io.IOException e) {
+	    exitCode = 1;
+	}
+
+	if (exitCode == 0 && new String(running.toByteArray(), StandardCharsets.UTF_8).trim().equals("true")) {
+	    markHealthy(entry.nodeName, entry.containerId, entry.useSudo);
+	} else {
+	    listener.getLogger().println("[anchore][warn] anchore container " + entry.containerId + " on node '" + entry.nodeName + "' is not running");
+	    invalidate(entry.nodeName, entry.containerId);
+	}
+    }
+
+    @Extension
+    public static class Probe extends AsyncPeriodicWork {
+	public Probe() {
+	    super("Anchore container health probe");
+	}
+
+	@Override
+	public long getRecurrencePeriod() {
+	    return(MIN);
+	}
+
+	@Override
+	protected void execute(TaskListener listener) throws InterruptedException {
+	    List<Entry> probes = new ArrayList<Entry>();
+	    long now = System.currentTimeMillis();
+	    synchronized (entries) {
+		for (Map.Entry<String, Entry> e : new ArrayList<Map.Entry<String, Entry>>(entries.entrySet())) {
+		    if (now - e.getValue().usedAt > IDLE_TIMEOUT) {
+			entries.remove(e.getKey());
+		    } else if (e.getValue().healthyAt > 0) {
+			// only containers believed healthy are probed, the others get restarted by the next scan
+			probes.add(e.getValue());
+		    }
+		}
+	    }
+	    for (Entry entry : probes) {
+		probe(entry, listener);
+	    }
+	}
+    }
+}
@@ -0,0 +1,266 @@
+package com.anchore.jenkins.plugins.anchore;
+
+import hudson.model.Node;
+import jenkins.model.Jenkins;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Hands out Anchore containers to scans.  Each node runs a pool of up to poolSize Anchore containers, all
+ * started lazily from the configured Anchore container image: slot 0 is the configured container name
+ * (so existing single container setups keep their container), slot N is named containerId_N.  A scan
+ * leases a free slot for its whole run and releases it after cleanup; when all slots of a node are
+ * leased, the scan waits for one to be released.
+ *
+ * Containers of one pool do not share a data volume: slot N mounts localVol_N.  The Anchore DB keeps
+ * each image in its own directory, so the analyzers of one scan, which work on distinct images (the image
+ * list is deduplicated before it is split into shards), run side by side in one container.  Separate scans
+ * are not kept apart that way: they may analyze the same image at the same time and delete images from
+ * the DB during cleanup, so each gets a container and DB of its own.
+ */
+@ExportedBean
+public class AnchoreContainerPool {
+    // "<node>/<containerId>" -> pool
+    private static final Map<String, AnchoreContainerPool> pools = new HashMap<String, AnchoreContainerPool>();
+
+    private final String nodeName;
+    private final String containerId;
+    private final TreeSet<Integer> leased = new TreeSet<Integer>();
+    // largest pool size used so far, and whether docker needs sudo on the node (from the latest scan)
+    private int slotCount;
+    private boolean useSudo;
+
+    // queueing / backpressure statistics
+    private int waiting;
+    private int maxWaiting;
+    private long leaseCount;
+    private long waitCount;
+    private long totalWaitMillis;
+    private long maxWaitMillis;
+
+    private AnchoreContainerPool(String nodeName, String containerId) {
+	this.nodeName = nodeName;
+	this.containerId = containerId;
+    }
+
+    public static AnchoreContainerPool get(String nodeName, String containerId, boolean useSudo) {
+	String key = nodeName + "/" + containerId;
+	AnchoreContainerPool pool;
+	synchronized (pools) {
+	    pool = pools.get(key);
+	    if (pool == null) {
+		pool = new AnchoreContainerPool(nodeName, containerId);
+		pools.put(key, pool);
+	    }
+	}
+	synchronized (pool) {
+	    pool.useSudo = useSudo;
+	}
+	return(pool);
+    }
+
+    public static Map<String, AnchoreContainerPool> getPools() {
+	synchronized (pools) {
+	    return(new TreeMap<String, AnchoreContainerPool>(pools));
+	}
+    }
+
+    // pools are keyed by node name, "" being the master
+    public static Node getNode(String nodeName) {
+	Jenkins jenkins = Jenkins.getInstance();
+	if (jenkins == null) {
+	    return(null);
+	}
+	return(nodeName.isEmpty() ? jenkins : jenkins.getNode(nodeName));
+    }
+
+    public static String getSlotContainerId(String containerId, int slot) {
+	if (slot == 0) {
+	    return(containerId);
+	}
+	return(containerId + "_" + slot);
+    }
+
+    public static String getSlotLocalVol(String localVol, int slot) {
+	if (slot == 0 || localVol == null || localVol.isEmpty()) {
+	    return(localVol);
+	}
+	return(localVol + "_" + slot);
+    }
+
+    /**
+     * Blocks until one of the poolSize slots is free and leases it.  The pool size is passed on every
+     * call, so a changed global configuration takes effect with the next lease.
+     */
+    public Lease lease(int poolSize) throws InterruptedException {
+	int size = (poolSize > 1) ? poolSize : 1;
+	long start = System.currentTimeMillis();
+	boolean waited = false;
+
+	synchronized (this) {
+	    slotCount = Math.max(slotCount, size);
+	    waiting++;
+	    maxWaiting = Math.max(maxWaiting, waiting);
+	    try {
+		while (true) {
+		    for (int slot=0; slot<size; slot++) {
+			if (!leased.contains(slot)) {
+			    leased.add(slot);
+			    long waitMillis = System.currentTimeMillis() - start;
+			    leaseCount++;
+			    if (waited) {
+				waitCount++;
+			    }
+			    totalWaitMillis += waitMillis;
+			    maxWaitMillis = Math.max(maxWaitMillis, waitMillis);
+			    return(new Lease(slot, waitMillis));
+			}
+		    }
+		    waited = true;
+		    wait();
+		}
+	    } finally {
+		waiting--;
+	    }
+	}
+    }
+
+    /**
+     * Blocks until the given slot is free and leases it.  Used to prepare one particular container without
+     * a scan or cleanup running in it at the same time.
+     */
+    public synchronized Lease leaseSlot(int slot) throws InterruptedException {
+	slotCount = Math.max(slotCount, slot + 1);
+	long start = System.currentTimeMillis();
+	while (leased.contains(slot)) {
+	    wait();
+	}
+	leased.add(slot);
+	leaseCount++;
+	return(new Lease(slot, System.currentTimeMillis() - start));
+    }
+
+    /**
+     * Leases the given slot if it is free, without waiting.  Used for work that has to run on one particular
+     * container, such as a cleanup that outlived its scan.
+     */
+    public synchronized Lease tryLease(int slot) {
+	if (leased.contains(slot)) {
+	    return(null);
+	}
+	leased.add(slot);
+	leaseCount++;
+	return(new Lease(slot, 0));
+    }
+
+    private void release(int slot) {
+	synchronized (this) {
+	    leased.remove(slot);
+	    notifyAll();
+	}
+	// cleanups that had to wait for the container
+	AnchoreCleanupQueue.released(nodeName, containerId, slot);
+    }
+
+    @Exported
+    public String getNodeName() {
+	return(nodeName);
+    }
+
+    @Exported
+    public String getContainerId() {
+	return(containerId);
+    }
+
+    @Exported
+    public synchronized int getSlotCount() {
+	return(slotCount);
+    }
+
+    public synchronized boolean isUseSudo() {
+	return(useSudo);
+    }
+
+    @Exported
+    public synchronized int getLeased() {
+	return(leased.size());
+    }
+
+    @Exported
+    public synchronized int getWaiting() {
+	return(waiting);
+    }
+
+    @Exported
+    public synchronized int getMaxWaiting() {
+	return(maxWaiting);
+    }
+
+    @Exported
+    public synchronized long getLeaseCount() {
+	return(leaseCount);
+    }
+
+    @Exported
+    public synchronized long getWaitCount() {
+	return(waitCount);
+    }
+
+    @Exported
+    public synchronized long getTotalWaitMillis() {
+	return(totalWaitMillis);
+    }
+
+    @Exported
+    public synchronized long getMaxWaitMillis() {
+	return(maxWaitMillis);
+    }
+
+    public class Lease {
+	private final int slot;
+	private final long waitMillis;
+	private boolean released;
+
+	private Lease(int slot, long waitMillis) {
+	    this.slot = slot;
+	    this.waitMillis = waitMillis;
+	}
+
+	public int getSlot() {
+	    return(slot);
+	}
+
+	public long getWaitMillis() {
+	    return(waitMillis);
+	}
+
+	public String getNodeName() {
+	    return(nodeName);
+	}
+
+	// the configured container name the pool was created for
+	public String getPoolContainerId() {
+	    return(containerId);
+	}
+
+	public String getContainerId() {
+	    return(getSlotContainerId(containerId, slot));
+	}
+
+	public String getLocalVol(String localVol) {
+	    return(getSlotLocalVol(localVol, slot));
+	}
+
+	public synchronized void release() {
+	    if (!released) {
+		released = true;
+		AnchoreContainerPool.this.release(slot);
+	    }
+	}
+    }
+}
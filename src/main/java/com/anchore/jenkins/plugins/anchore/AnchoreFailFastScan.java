@@ -0,0 +1,197 @@
+package com.anchore.jenkins.plugins.anchore;
+
+import hudson.model.TaskListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fail fast mode: analyzes and gates every image on its own, up to 'workers' images at a time.  With
+ * bailOnFail, the first STOP result cancels the images still in progress, so a failing build gives up its
+ * executor without waiting for the rest.  The anchore commands themselves are left to the Steps, this
+ * class only schedules the images and combines their results.
+ *
+ * An image that could not be analyzed cannot pass the gates and counts as STOP.  An image whose gates
+ * did not complete (or failed with an exception) has no verdict at all: that is a plugin failure, which
+ * the build step handles as such, and it does not cancel the other images.
+ */
+public class AnchoreFailFastScan {
+    // task result of an image whose analysis failed, it is not gated
+    private static final int NOT_ANALYZED = Integer.MIN_VALUE;
+
+    /**
+     * The work done for one image, called from the worker threads.
+     */
+    public interface Steps {
+	// analyzes the image if it needs to be, 0 when it is ready to be gated
+	int analyze(int image) throws IOException, InterruptedException;
+
+	// gates the image, returns the gate exit code or one of the AnchoreCommandRunner failures
+	int gate(int image) throws IOException, InterruptedException;
+
+	// kills the commands of the images still in progress
+	void cancel();
+    }
+
+    private final List<String> imgIds;
+    private final int workers;
+    private final boolean bailOnFail;
+    private final Steps steps;
+    private final TaskListener listener;
+
+    private final int[] analyzeExitCodes;
+    // gate exit code per image, null for the images that were not evaluated
+    private final Integer[] gateExitCodes;
+    private final boolean[] notAnalyzed;
+    private boolean stopped;
+    private boolean gateFailed;
+
+    public AnchoreFailFastScan(List<String> imgIds, int workers, boolean bailOnFail, Steps steps, TaskListener listener) {
+	this.imgIds = imgIds;
+	this.workers = workers;
+	this.bailOnFail = bailOnFail;
+	this.steps = steps;
+	this.listener = listener;
+	this.analyzeExitCodes = new int[imgIds.size()];
+	this.gateExitCodes = new Integer[imgIds.size()];
+	this.notAnalyzed = new boolean[imgIds.size()];
+    }
+
+    /**
+     * Runs all images and returns the combined gate exit code of the images that were evaluated, or
+     * AnchoreCommandRunner.FAILED when the gates of all of them failed.
+     */
+    public int run() throws InterruptedException {
+	final int images = imgIds.size();
+	if (images == 0) {
+	    return(0);
+	}
+
+	ExecutorService pool = Executors.newFixedThreadPool(Math.min(workers, images), new NamingThreadFactory(new DaemonThreadFactory(), "Anchore worker"));
+	try {
+	    // results are taken in completion order, so a STOP is seen as soon as its image is done
+	    CompletionService<Integer> completion = new ExecutorCompletionService<Integer>(pool);
+	    Map<Future<Integer>, Integer> futures = new HashMap<Future<Integer>, Integer>();
+	    for (int i=0; i<images; i++) {
+		futures.put(completion.submit(new ImageTask(i)), i);
+	    }
+	    for (int done=0; done<images && !stopped; done++) {
+		Future<Integer> future = completion.take();
+		int i = futures.get(future);
+		int gateExitCode;
+		try {
+		    gateExitCode = future.get();
+		} catch (ExecutionException e) {
+		    listener.getLogger().println("[anchore][error] policy evaluation failed for image " + imgIds.get(i) + ": " + e.getCause());
+		    gateFailed = true;
+		    continue;
+		}
+		if (gateExitCode == NOT_ANALYZED) {
+		    listener.getLogger().println("[anchore][error] analysis did not complete for image, it counts as STOP: " + imgIds.get(i));
+		    notAnalyzed[i] = true;
+		} else if (gateExitCode < 0) {
+		    listener.getLogger().println("[anchore][error] policy evaluation did not complete for image: " + imgIds.get(i));
+		    gateFailed = true;
+		    continue;
+		} else {
+		    gateExitCodes[i] = gateExitCode;
+		}
+		if (isStop(i) && bailOnFail) {
+		    listener.getLogger().println("[anchore][warn] image " + imgIds.get(i) + " has a STOP result, cancelling the remaining images.");
+		    stopped = true;
+		}
+	    }
+	} catch (InterruptedException e) {
+	    pool.shutdownNow();
+	    steps.cancel();
+	    throw e;
+	} finally {
+	    pool.shutdownNow();
+	}
+	if (stopped) {
+	    steps.cancel();
+	}
+	// cancelled commands return once their processes are gone, wait for them before the reports are read
+	if (!pool.awaitTermination(60, TimeUnit.SECONDS)) {
+	    listener.getLogger().println("[anchore][warn] cancelled anchore commands did not finish in time.");
+	}
+
+	int exitCode = 0;
+	int verdicts = 0;
+	for (int i=0; i<images; i++) {
+	    if (gateExitCodes[i] == null && !notAnalyzed[i]) {
+		if (stopped) {
+		    listener.getLogger().println("[anchore][info] policy evaluation was cancelled for image: " + imgIds.get(i));
+		}
+		continue;
+	    }
+	    verdicts++;
+	    if (isStop(i)) {
+		exitCode = 1;
+	    } else if (gateExitCodes[i] == 2 && exitCode == 0) {
+		exitCode = 2;
+	    }
+	}
+	if (gateFailed && verdicts == 0) {
+	    return(AnchoreCommandRunner.FAILED);
+	}
+	return(exitCode);
+    }
+
+    public boolean isStopped() {
+	return(stopped);
+    }
+
+    // true when the policy evaluation of some image did not complete, a plugin failure rather than a verdict
+    public boolean isGateFailed() {
+	return(gateFailed);
+    }
+
+    // whether the image has a gate result (and gate output) to report
+    public boolean isEvaluated(int image) {
+	return(gateExitCodes[image] != null);
+    }
+
+    // anything but GO (0) and WARN (2) stops the build, as it does for the gates of all images at once
+    private boolean isStop(int image) {
+	return(notAnalyzed[image] || (gateExitCodes[image] != 0 && gateExitCodes[image] != 2));
+    }
+
+    // the exit code of the first analysis that failed, 0 when none did
+    public int getAnalyzerExitCode() {
+	for (int analyzeExitCode : analyzeExitCodes) {
+	    if (analyzeExitCode != 0) {
+		return(analyzeExitCode);
+	    }
+	}
+	return(0);
+    }
+
+    private class ImageTask implements Callable<Integer> {
+	private final int image;
+
+	ImageTask(int image) {
+	    this.image = image;
+	}
+
+	public Integer call() throws Exception {
+	    analyzeExitCodes[image] = steps.analyze(image);
+	    if (analyzeExitCodes[image] != 0 || Thread.currentThread().isInterrupted()) {
+		return(NOT_ANALYZED);
+	    }
+	    return(steps.gate(image));
+	}
+    }
+}
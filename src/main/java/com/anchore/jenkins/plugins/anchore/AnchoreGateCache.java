@@ -0,0 +1,193 @@
+package com.anchore.jenkins.plugins.anchore;
+import hudson.FilePath;
+import hudson.Util;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Keeps the output and exit code of 'anchore gate' runs, so that evaluating the same images against the
+ * same policy again can reuse them instead of running the gates.
+ *
+ * Each evaluation is one file in the cache directory on the node that runs the Anchore container, named by
+ * the hash of everything the evaluation depends on (see key()).  The file starts with a line holding the exit
+ * code and the time the evaluation ran, followed by the gate output as written by anchore.  Entries expire
+ * ttlMillis after they were written; once the directory holds more than maxEntries files, the ones used
+ * least recently (by modification time, which is updated on every hit) are deleted.
+ *
+ * The output files passed to get() and put() must be on the same node as the cache directory.
+ */
+public class AnchoreGateCache {
+    private final FilePath cacheDir;
+    private final int maxEntries;
+    private final long ttlMillis;
+
+    public AnchoreGateCache(FilePath cacheDir, int maxEntries, long ttlMillis) {
+	this.cacheDir = cacheDir;
+	this.maxEntries = maxEntries;
+	this.ttlMillis = ttlMillis;
+    }
+
+    public static String key(List<String> parts) {
+	try {
+	    MessageDigest md = MessageDigest.getInstance("SHA-256");
+	    for (String part : parts) {
+		md.update(part.getBytes(StandardCharsets.UTF_8));
+		md.update((byte) '\n');
+	    }
+	    return(Util.toHexString(md.digest()));
+	} catch (NoSuchAlgorithmException e) {
+	    throw new IllegalStateException(e);
+	}
+    }
+
+    // copies the cached output to outputFile and returns the exit code, or null if there is no usable entry
+    public Integer get(String key, FilePath outputFile) throws IOException, InterruptedException {
+	return(cacheDir.act(new Get(key, outputFile.getRemote(), ttlMillis)));
+    }
+
+    public void put(String key, FilePath outputFile, int exitCode) throws IOException, InterruptedException {
+	cacheDir.act(new Put(key, outputFile.getRemote(), exitCode, maxEntries));
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+	byte[] buf = new byte[8192];
+	int n;
+	while ((n = in.read(buf)) >= 0) {
+	    out.write(buf, 0, n);
+	}
+    }
+
+    private static final class Get extends MasterToSlaveFileCallable<Integer> {
+	private static final long serialVersionUID = 1L;
+
+	private final String key;
+	private final String outputPath;
+	private final long ttlMillis;
+
+	Get(String key, String outputPath, long ttlMillis) {
+	    this.key = key;
+	    this.outputPath = outputPath;
+	    this.ttlMillis = ttlMillis;
+	}
+
+	public Integer invoke(File dir, VirtualChannel channel) throws IOException, InterruptedException {
+	    File entry = new File(dir, key);
+	    if (!entry.isFile()) {
+		return(null);
+	    }
+
+	    int exitCode;
+	    InputStream in = new BufferedInputStream(new FileInputStream(entry));
+	    try {
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		int c;
+		while ((c = in.read()) >= 0 && c != '\n') {
+		    header.write(c);
+		}
+		String[] kv = new String(header.toByteArray(), StandardCharsets.UTF_8).split(" ");
+		long writtenAt;
+		try {
+		    exitCode = Integer.parseInt(kv[0]);
+		    writtenAt = Long.parseLong(kv[1]);
+		} catch (RuntimeException e) {
+		    writtenAt = -1;
+		    exitCode = -1;
+		}
+		if (writtenAt < 0 || (ttlMillis > 0 && System.currentTimeMillis() - writtenAt > ttlMillis)) {
+		    in.close();
+		    entry.delete();
+		    return(null);
+		}
+
+		OutputStream out = new FileOutputStream(outputPath);
+		try {
+		    copy(in, out);
+		} finally {
+		    out.close();
+		}
+	    } finally {
+		in.close();
+	    }
+	    entry.setLastModified(System.currentTimeMillis());
+	    return(exitCode);
+	}
+    }
+
+    private static final class Put extends MasterToSlaveFileCallable<Void> {
+	private static final long serialVersionUID = 1L;
+
+	private final String key;
+	private final String outputPath;
+	private final int exitCode;
+	private final int maxEntries;
+
+	Put(String key, String outputPath, int exitCode, int maxEntries) {
+	    this.key = key;
+	    this.outputPath = outputPath;
+	    this.exitCode = exitCode;
+	    this.maxEntries = maxEntries;
+	}
+
+	public Void invoke(File dir, VirtualChannel channel) throws IOException, InterruptedException {
+	    if (!dir.isDirectory() && !dir.mkdirs()) {
+		throw new IOException("cannot create gate cache directory " + dir);
+	    }
+
+	    // written aside and renamed into place, so concurrent builds never read a partial entry
+	    File tmp = File.createTempFile(key, ".tmp", dir);
+	    try {
+		OutputStream out = new FileOutputStream(tmp);
+		try {
+		    out.write((exitCode + " " + System.currentTimeMillis() + "\n").getBytes(StandardCharsets.UTF_8));
+		    InputStream in = new FileInputStream(outputPath);
+		    try {
+			copy(in, out);
+		    } finally {
+			in.close();
+		    }
+		} finally {
+		    out.close();
+		}
+		File entry = new File(dir, key);
+		if (!tmp.renameTo(entry)) {
+		    entry.delete();
+		    if (!tmp.renameTo(entry)) {
+			throw new IOException("cannot store gate cache entry " + entry);
+		    }
+		}
+	    } finally {
+		tmp.delete();
+	    }
+
+	    File[] entries = dir.listFiles();
+	    if (entries != null && entries.length > maxEntries) {
+		Arrays.sort(entries, new Comparator<File>() {
+			public int compare(File a, File b) {
+			    long am = a.lastModified();
+			    long bm = b.lastModified();
+			    return (am < bm) ? -1 : (am > bm) ? 1 : 0;
+			}
+		    });
+		for (int i=0; i<entries.length - maxEntries; i++) {
+		    entries[i].delete();
+		}
+	    }
+	    return(null);
+	}
+    }
+}
@@ -0,0 +1,225 @@
+package com.anchore.jenkins.plugins.anchore;
+import hudson.FilePath;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import net.sf.json.JSONSerializer;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Gate evaluation result for one image, reduced from 'anchore --json gate' output to the final action,
+ * per-action counts and the triggers that did not pass.
+ */
+@ExportedBean
+public class AnchoreGateResult implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String imageId;
+    private String repoTag = "";
+    private String finalAction = "GO";
+    private int goCount;
+    private int warnCount;
+    private int stopCount;
+    private final List<Trigger> triggers = new ArrayList<Trigger>();
+
+    public AnchoreGateResult(String imageId) {
+	this.imageId = imageId;
+    }
+
+    @Exported
+    public String getImageId() {
+	return(imageId);
+    }
+
+    @Exported
+    public String getRepoTag() {
+	return(repoTag);
+    }
+
+    @Exported
+    public String getFinalAction() {
+	return(finalAction);
+    }
+
+    @Exported
+    public int getGoCount() {
+	return(goCount);
+    }
+
+    @Exported
+    public int getWarnCount() {
+	return(warnCount);
+    }
+
+    @Exported
+    public int getStopCount() {
+	return(stopCount);
+    }
+
+    @Exported
+    public List<Trigger> getTriggers() {
+	return(triggers);
+    }
+
+    private static int severity(String action) {
+	if ("STOP".equals(action)) {
+	    return(2);
+	} else if ("WARN".equals(action)) {
+	    return(1);
+	}
+	return(0);
+    }
+
+    @ExportedBean
+    public static class Trigger implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private final String gate;
+	private final String trigger;
+	private final String output;
+	private final String action;
+
+	public Trigger(String gate, String trigger, String output, String action) {
+	    this.gate = gate;
+	    this.trigger = trigger;
+	    this.output = output;
+	    this.action = action;
+	}
+
+	@Exported
+	public String getGate() {
+	    return(gate);
+	}
+
+	@Exported
+	public String getTrigger() {
+	    return(trigger);
+	}
+
+	@Exported
+	public String getOutput() {
+	    return(output);
+	}
+
+	@Exported
+	public String getAction() {
+	    return(action);
+	}
+    }
+
+    /**
+     * Parses the gate output on the node that holds it, so only the reduced results travel back.
+     */
+    public static List<AnchoreGateResult> parse(FilePath gatesJsonFile) throws IOException, InterruptedException {
+	return(gatesJsonFile.act(new ParseGateOutput()));
+    }
+
+    private static final class ParseGateOutput extends MasterToSlaveFileCallable<List<AnchoreGateResult>> {
+	private static final long serialVersionUID = 1L;
+
+	public List<AnchoreGateResult> invoke(File f, VirtualChannel channel) throws IOException {
+	    List<AnchoreGateResult> results = new ArrayList<AnchoreGateResult>();
+	    Object json = JSONSerializer.toJSON(new String(Files.readAllBytes(f.toPath()), StandardCharsets.UTF_8));
+
+	    // anchore prints either one object keyed by image ID, or a list of such objects
+	    List<JSONObject> documents = new ArrayList<JSONObject>();
+	    if (json instanceof JSONArray) {
+		for (int i=0; i<((JSONArray)json).size(); i++) {
+		    JSONObject document = ((JSONArray)json).optJSONObject(i);
+		    if (document != null) {
+			documents.add(document);
+		    }
+		}
+	    } else if (json instanceof JSONObject) {
+		documents.add((JSONObject)json);
+	    }
+
+	    for (JSONObject document : documents) {
+		Iterator<?> imageIds = document.keys();
+		while (imageIds.hasNext()) {
+		    String imageId = imageIds.next().toString();
+		    JSONObject imageOutput = document.optJSONObject(imageId);
+		    if (imageOutput != null && imageOutput.optJSONObject("result") != null) {
+			results.add(parseImage(imageId, imageOutput.getJSONObject("result")));
+		    }
+		}
+	    }
+	    return(results);
+	}
+
+	private AnchoreGateResult parseImage(String imageId, JSONObject result) {
+	    AnchoreGateResult gateResult = new AnchoreGateResult(imageId);
+	    JSONArray header = result.optJSONArray("header");
+	    JSONArray rows = result.optJSONArray("rows");
+	    if (header == null || rows == null) {
+		return(gateResult);
+	    }
+
+	    int repoTagCol = header.indexOf("Repo_Tag");
+	    int gateCol = header.indexOf("Gate");
+	    int triggerCol = header.indexOf("Trigger");
+	    int outputCol = header.indexOf("Check_Output");
+	    int actionCol = header.indexOf("Gate_Action");
+	    if (actionCol < 0) {
+		return(gateResult);
+	    }
+
+	    String finalAction = null;
+	    int worst = 0;
+	    for (int i=0; i<rows.size(); i++) {
+		JSONArray row = rows.optJSONArray(i);
+		if (row == null) {
+		    continue;
+		}
+		String gate = column(row, gateCol);
+		String action = column(row, actionCol);
+		if (repoTagCol >= 0 && gateResult.repoTag.isEmpty()) {
+		    gateResult.repoTag = column(row, repoTagCol);
+		}
+		if ("FINAL".equals(gate)) {
+		    // anchore's own verdict for the image
+		    finalAction = action;
+		    continue;
+		}
+
+		if ("STOP".equals(action)) {
+		    gateResult.stopCount++;
+		} else if ("WARN".equals(action)) {
+		    gateResult.warnCount++;
+		} else {
+		    gateResult.goCount++;
+		    continue;
+		}
+		worst = Math.max(worst, severity(action));
+		gateResult.triggers.add(new Trigger(gate, column(row, triggerCol), column(row, outputCol), action));
+	    }
+
+	    if (finalAction != null && !finalAction.isEmpty()) {
+		gateResult.finalAction = finalAction;
+	    } else if (worst == 2) {
+		gateResult.finalAction = "STOP";
+	    } else if (worst == 1) {
+		gateResult.finalAction = "WARN";
+	    }
+	    return(gateResult);
+	}
+
+	private static String column(JSONArray row, int col) {
+	    if (col < 0 || col >= row.size() || row.get(col) == null) {
+		return("");
+	    }
+	    return(row.get(col).toString());
+	}
+    }
+}
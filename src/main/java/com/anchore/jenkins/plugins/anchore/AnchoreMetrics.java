@@ -0,0 +1,215 @@
+package com.anchore.jenkins.plugins.anchore;
+
+import hudson.Extension;
+import hudson.model.Api;
+import hudson.model.RootAction;
+import jenkins.model.Jenkins;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Aggregates the per-phase timings of all scans since Jenkins started into one histogram per phase, and
+ * exposes them together with the container pool statistics and the node warm-up state at
+ * JENKINS_URL/anchore-metrics/api/json.  Node names, container ids and timings are only shown to administrators.
+ */
+@Extension
+@ExportedBean
+public class AnchoreMetrics implements RootAction {
+    // upper bounds of the histogram buckets in milliseconds, the last bucket is unbounded
+    private static final long[] BUCKET_BOUNDS = {100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000, 120000, 300000, 600000, 1800000};
+
+    private static final Map<String, Histogram> histograms = new TreeMap<String, Histogram>();
+
+    public static void record(Map<String, Long> phaseTimings) {
+	synchronized (histograms) {
+	    for (Map.Entry<String, Long> entry : phaseTimings.entrySet()) {
+		Histogram histogram = histograms.get(entry.getKey());
+		if (histogram == null) {
+		    histogram = new Histogram(entry.getKey());
+		    histograms.put(entry.getKey(), histogram);
+		}
+		histogram.update(entry.getValue());
+	    }
+	}
+    }
+
+    @Override
+    public String getIconFileName() {
+	return null;
+    }
+
+    @Override
+    public String getDisplayName() {
+	return "Anchore Metrics";
+    }
+
+    @Override
+    public String getUrlName() {
+	// the page does not exist for anyone else
+	return(Jenkins.getActiveInstance().hasPermission(Jenkins.ADMINISTER) ? "anchore-metrics" : null);
+    }
+
+    public Api getApi() {
+	Jenkins.getActiveInstance().checkPermission(Jenkins.ADMINISTER);
+	return new Api(this);
+    }
+
+    @Exported
+    public List<Histogram> getPhases() {
+	Jenkins.getActiveInstance().checkPermission(Jenkins.ADMINISTER);
+	List<Histogram> ret = new ArrayList<Histogram>();
+	synchronized (histograms) {
+	    for (Histogram histogram : histograms.values()) {
+		ret.add(histogram.copy());
+	    }
+	}
+	return(ret);
+    }
+
+    @Exported
+    public List<AnchoreContainerPool> getPools() {
+	Jenkins.getActiveInstance().checkPermission(Jenkins.ADMINISTER);
+	return(new ArrayList<AnchoreContainerPool>(AnchoreContainerPool.getPools().values()));
+    }
+
+    @Exported
+    public List<AnchoreWarmup.State> getWarmups() {
+	Jenkins.getActiveInstance().checkPermission(Jenkins.ADMINISTER);
+	return(AnchoreWarmup.getStates());
+    }
+
+    /**
+     * Duration of one phase of one scan.
+     */
+    @ExportedBean
+    public static class Timing implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private final String phase;
+	private final long millis;
+
+	public Timing(String phase, long millis) {
+	    this.phase = phase;
+	    this.millis = millis;
+	}
+
+	@Exported
+	public String getPhase() {
+	    return(phase);
+	}
+
+	@Exported
+	public long getMillis() {
+	    return(millis);
+	}
+    }
+
+    /**
+     * Fixed bucket histogram of the durations recorded for one phase.
+     */
+    @ExportedBean
+    public static class Histogram {
+	private final String phase;
+	private final long[] buckets = new long[BUCKET_BOUNDS.length + 1];
+	private long count;
+	private long totalMillis;
+	private long minMillis;
+	private long maxMillis;
+
+	Histogram(String phase) {
+	    this.phase = phase;
+	}
+
+	void update(long millis) {
+	    int bucket = 0;
+	    while (bucket < BUCKET_BOUNDS.length && millis > BUCKET_BOUNDS[bucket]) {
+		bucket++;
+	    }
+	    buckets[bucket]++;
+	    minMillis = (count == 0) ? millis : Math.min(minMillis, millis);
+	    maxMillis = Math.max(maxMillis, millis);
+	    totalMillis += millis;
+	    count++;
+	}
+
+	Histogram copy() {
+	    Histogram ret = new Histogram(phase);
+	    System.arraycopy(buckets, 0, ret.buckets, 0, buckets.length);
+	    ret.count = count;
+	    ret.totalMillis = totalMillis;
+	    ret.minMillis = minMillis;
+	    ret.maxMillis = maxMillis;
+	    return(ret);
+	}
+
+	// upper bound of the bucket holding the given percentile (max for the unbounded bucket)
+	private long percentile(double p) {
+	    long rank = (long)Math.ceil(count * p);
+	    long seen = 0;
+	    for (int i=0; i<BUCKET_BOUNDS.length; i++) {
+		seen += buckets[i];
+		if (seen >= rank) {
+		    return(Math.min(BUCKET_BOUNDS[i], maxMillis));
+		}
+	    }
+	    return(maxMillis);
+	}
+
+	@Exported
+	public String getPhase() {
+	    return(phase);
+	}
+
+	@Exported
+	public long getCount() {
+	    return(count);
+	}
+
+	@Exported
+	public long getTotalMillis() {
+	    return(totalMillis);
+	}
+
+	@Exported
+	public long getMinMillis() {
+	    return(minMillis);
+	}
+
+	@Exported
+	public long getMaxMillis() {
+	    return(maxMillis);
+	}
+
+	@Exported
+	public long getMeanMillis() {
+	    return((count == 0) ? 0 : totalMillis / count);
+	}
+
+	@Exported
+	public long getP50Millis() {
+	    return(percentile(0.50));
+	}
+
+	@Exported
+	public long getP95Millis() {
+	    return(percentile(0.95));
+	}
+
+	@Exported
+	public long[] getBucketBounds() {
+	    return(BUCKET_BOUNDS.clone());
+	}
+
+	// one count per bucket, the last one counts durations above the largest bound
+	@Exported
+	public long[] getBuckets() {
+	    return(buckets.clone());
+	}
+    }
+}
@@ -0,0 +1,476 @@
+package com.anchore.jenkins.plugins.anchore;
+
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Compact, indexed form of one anchore html report, so the report pages can be served a page of rows at
+ * a time no matter how large the report is.
+ *
+ * The html table is converted (on the node that ran the scan) into two files: NAME.rows holds the header
+ * row followed by one line per table row, cells separated by tabs (with tab, newline and backslash
+ * escaped), and NAME.idx holds the byte offset of every table row in NAME.rows as 8 byte big endian
+ * numbers.  Filtered and sorted views need one pass over NAME.rows; the resulting row order is kept in a
+ * small LRU so paging through a view does not repeat it.
+ */
+public class AnchoreReportIndex {
+    private static final int VIEW_CACHE_SIZE = 16;
+
+    // "<rows file>|<filter>|<sort column>|<order>" -> row numbers in view order
+    private static final Map<String, int[]> views = new LinkedHashMap<String, int[]>(16, 0.75f, true) {
+	    @Override
+	    protected boolean removeEldestEntry(Map.Entry<String, int[]> eldest) {
+		return(size() > VIEW_CACHE_SIZE);
+	    }
+	};
+
+    private final File rowsFile;
+    private final File idxFile;
+    private final List<String> header;
+    private final int rowCount;
+
+    private AnchoreReportIndex(File rowsFile, File idxFile, List<String> header) {
+	this.rowsFile = rowsFile;
+	this.idxFile = idxFile;
+	this.header = header;
+	this.rowCount = (int)(idxFile.length() / 8);
+    }
+
+    public static AnchoreReportIndex open(File dir, String name) throws IOException {
+	File rowsFile = new File(dir, name + ".rows");
+	File idxFile = new File(dir, name + ".idx");
+	if (!rowsFile.exists() || !idxFile.exists()) {
+	    return(null);
+	}
+	BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(rowsFile), StandardCharsets.UTF_8));
+	try {
+	    String line = br.readLine();
+	    return(new AnchoreReportIndex(rowsFile, idxFile, (line != null) ? decodeRow(line) : new ArrayList<String>()));
+	} finally {
+	    br.close();
+	}
+    }
+
+    public List<String> getHeader() {
+	return(header);
+    }
+
+    public int getRowCount() {
+	return(rowCount);
+    }
+
+    /**
+     * One page of a view of the report.  filter keeps the rows with a cell containing it (ignoring case),
+     * sortColumn (-1 for report order) sorts the rows by that column, numerically where both cells are
+     * numbers.
+     */
+    public Page getPage(int start, int size, String filter, int sortColumn, boolean descending) throws IOException {
+	int[] view = null;
+	int total = rowCount;
+	if ((filter != null && !filter.isEmpty()) || (sortColumn >= 0 && sortColumn < header.size())) {
+	    view = getView(filter, sortColumn, descending);
+	    total = view.length;
+	}
+
+	start = Math.max(0, Math.min(start, total));
+	int end = Math.min(total, start + Math.max(1, size));
+	List<List<String>> rows = new ArrayList<List<String>>();
+	if (start < end) {
+	    if (view == null) {
+		rows.addAll(readRows(start, end));
+	    } else {
+		for (int i=start; i<end; i++) {
+		    rows.addAll(readRows(view[i], view[i] + 1));
+		}
+	    }
+	}
+	return(new Page(header, rows, start, end - start, total, rowCount));
+    }
+
+    private int[] getView(String filter, final int sortColumn, final boolean descending) throws IOException {
+	String key = rowsFile.getPath() + "|" + filter + "|" + sortColumn + "|" + descending;
+	synchronized (views) {
+	    int[] view = views.get(key);
+	    if (view != null) {
+		return(view);
+	    }
+	}
+
+	String needle = (filter != null && !filter.isEmpty()) ? filter.toLowerCase(Locale.ENGLISH) : null;
+	final List<Integer> rowNumbers = new ArrayList<Integer>();
+	final List<String> sortKeys = new ArrayList<String>();
+	BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(rowsFile), StandardCharsets.UTF_8));
+	try {
+	    // skip the header
+	    String line = br.readLine();
+	    int rowNumber = 0;
+	    while ((line = br.readLine()) != null) {
+		List<String> row = decodeRow(line);
+		if (needle == null || matches(row, needle)) {
+		    rowNumbers.add(rowNumber);
+		    sortKeys.add(sortColumn >= 0 && sortColumn < row.size() ? row.get(sortColumn) : "");
+		}
+		rowNumber++;
+	    }
+	} finally {
+	    br.close();
+	}
+
+	Integer[] order = new Integer[rowNumbers.size()];
+	for (int i=0; i<order.length; i++) {
+	    order[i] = i;
+	}
+	if (sortColumn >= 0) {
+	    Arrays.sort(order, new Comparator<Integer>() {
+		    public int compare(Integer a, Integer b) {
+			int ret = compareCells(sortKeys.get(a), sortKeys.get(b));
+			return(descending ? -ret : ret);
+		    }
+		});
+	}
+	int[] view = new int[order.length];
+	for (int i=0; i<order.length; i++) {
+	    view[i] = rowNumbers.get(order[i]);
+	}
+
+	synchronized (views) {
+	    views.put(key, view);
+	}
+	return(view);
+    }
+
+    private static boolean matches(List<String> row, String needle) {
+	for (String cell : row) {
+	    if (cell.toLowerCase(Locale.ENGLISH).contains(needle)) {
+		return(true);
+	    }
+	}
+	return(false);
+    }
+
+    static int compareCells(String a, String b) {
+	try {
+	    return(Double.compare(Double.parseDouble(a), Double.parseDouble(b)));
+	} catch (NumberFormatException e) {
+	    return(a.compareToIgnoreCase(b));
+	}
+    }
+
+    // reads rows [from, to), which are stored back to back in the rows file
+    private List<List<String>> readRows(int from, int to) throws IOException {
+	long[] offsets = new long[2];
+	RandomAccessFile idx = new RandomAccessFile(idxFile, "r");
+	try {
+	    idx.seek(from * 8L);
+	    offsets[0] = idx.readLong();
+	    if (to < rowCount) {
+		idx.seek(to * 8L);
+		offsets[1] = idx.readLong();
+	    } else {
+		offsets[1] = rowsFile.length();
+	    }
+	} finally {
+	    idx.close();
+	}
+
+	byte[] data = new byte[(int)(offsets[1] - offsets[0])];
+	RandomAccessFile rows = new RandomAccessFile(rowsFile, "r");
+	try {
+	    rows.seek(offsets[0]);
+	    rows.readFully(data);
+	} finally {
+	    rows.close();
+	}
+
+	List<List<String>> ret = new ArrayList<List<String>>();
+	for (String line : new String(data, StandardCharsets.UTF_8).split("\n")) {
+	    ret.add(decodeRow(line));
+	}
+	return(ret);
+    }
+
+    static String encodeRow(List<String> row) {
+	StringBuilder sb = new StringBuilder();
+	for (int i=0; i<row.size(); i++) {
+	    if (i > 0) {
+		sb.append('\t');
+	    }
+	    String cell = row.get(i);
+	    for (int j=0; j<cell.length(); j++) {
+		char c = cell.charAt(j);
+		if (c == '\\') {
+		    sb.append("\\\\");
+		} else if (c == '\t') {
+		    sb.append("\\t");
+		} else if (c == '\n') {
+		    sb.append("\\n");
+		} else if (c == '\r') {
+		    sb.append("\\r");
+		} else {
+		    sb.append(c);
+		}
+	    }
+	}
+	return(sb.toString());
+    }
+
+    static List<String> decodeRow(String line) {
+	List<String> row = new ArrayList<String>();
+	StringBuilder cell = new StringBuilder();
+	for (int i=0; i<line.length(); i++) {
+	    char c = line.charAt(i);
+	    if (c == '\t') {
+		row.add(cell.toString());
+		cell.setLength(0);
+	    } else if (c == '\\' && i + 1 < line.length()) {
+		char e = line.charAt(++i);
+		cell.append(e == 't' ? '\t' : e == 'n' ? '\n' : e == 'r' ? '\r' : e);
+	    } else {
+		cell.append(c);
+	    }
+	}
+	row.add(cell.toString());
+	return(row);
+    }
+
+    /**
+     * One page of rows of a report view.
+     */
+    public static class Page {
+	private final List<String> header;
+	private final List<List<String>> rows;
+	private final int start;
+	private final int size;
+	private final int total;
+	private final int rowCount;
+
+	Page(List<String> header, List<List<String>> rows, int start, int size, int total, int rowCount) {
+	    this.header = header;
+	    this.rows = rows;
+	    this.start = start;
+	    this.size = size;
+	    this.total = total;
+	    this.rowCount = rowCount;
+	}
+
+	public List<String> getHeader() {
+	    return(header);
+	}
+
+	public List<List<String>> getRows() {
+	    return(rows);
+	}
+
+	public int getStart() {
+	    return(start);
+	}
+
+	public int getSize() {
+	    return(size);
+	}
+
+	// rows in the view (after filtering)
+	public int getTotal() {
+	    return(total);
+	}
+
+	// rows in the report
+	public int getRowCount() {
+	    return(rowCount);
+	}
+    }
+
+    /**
+     * Converts REPORT_format.html into REPORT.rows / REPORT.idx in the same directory, returns the number of
+     * table rows (-1 if the report holds no table).
+     */
+    public static final class Writer extends MasterToSlaveFileCallable<Integer> {
+	private static final long serialVersionUID = 1L;
+
+	static final int MAX_ROW_CHARS = 1024 * 1024;
+
+	private final String name;
+
+	public Writer(String name) {
+	    this.name = name;
+	}
+
+	public Integer invoke(File reportFile, VirtualChannel channel) throws IOException, InterruptedException {
+	    File dir = reportFile.getParentFile();
+	    File rowsFile = new File(dir, name + ".rows");
+	    File idxFile = new File(dir, name + ".idx");
+
+	    int rows = -1;
+	    long offset = 0;
+	    BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(reportFile), StandardCharsets.UTF_8));
+	    FileOutputStream rowsStream = new FileOutputStream(rowsFile);
+	    DataOutputStream idx = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(idxFile)));
+	    try {
+		BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(rowsStream, StandardCharsets.UTF_8));
+		StringBuilder buf = new StringBuilder();
+		char[] chunk = new char[8192];
+		boolean eof = false;
+		int searchFrom = 0;
+		List<String> header = null;
+		while (true) {
+		    int end = indexOfIgnoreCase(buf, "</tr>", searchFrom);
+		    if (end < 0) {
+			if (eof) {
+			    break;
+			}
+			// only the unfinished row has to be kept, everything before its <tr is outside the table rows
+			int rowStart = lastIndexOfIgnoreCase(buf, "<tr");
+			int keep = (rowStart >= 0) ? rowStart : Math.max(0, buf.length() - 2);
+			if (keep > 0) {
+			    buf.delete(0, keep);
+			}
+			if (buf.length() > MAX_ROW_CHARS) {
+			    // no anchore report has rows this long, drop it rather than buffer the rest of the file
+			    buf.setLength(0);
+			}
+			// a row end may straddle the chunk boundary
+			searchFrom = Math.max(0, buf.length() - 4);
+			int n = br.read(chunk);
+			if (n < 0) {
+			    eof = true;
+			} else {
+			    buf.append(chunk, 0, n);
+			}
+			continue;
+		    }
+
+		    List<String> row = parseCells(buf, end);
+		    buf.delete(0, end + 5);
+		    searchFrom = 0;
+		    // reports merged from several anchore runs repeat the header row
+		    if (row.isEmpty() || row.equals(header)) {
+			continue;
+		    }
+		    if (header == null) {
+			header = row;
+		    }
+
+		    String line = encodeRow(row) + "\n";
+		    if (rows >= 0) {
+			idx.writeLong(offset);
+		    }
+		    bw.write(line);
+		    offset += line.getBytes(StandardCharsets.UTF_8).length;
+		    rows++;
+		}
+		bw.flush();
+	    } finally {
+		br.close();
+		rowsStream.close();
+		idx.close();
+	    }
+	    if (rows < 0) {
+		rowsFile.delete();
+		idxFile.delete();
+	    }
+	    return(rows);
+	}
+
+	// cells of the row that ends at buf[end]
+	private static List<String> parseCells(CharSequence buf, int end) {
+	    List<String> cells = new ArrayList<String>();
+	    int pos = indexOfIgnoreCase(buf, "<tr", 0);
+	    if (pos < 0 || pos > end) {
+		return(cells);
+	    }
+	    while (true) {
+		int td = indexOfIgnoreCase(buf, "<td", pos);
+		int th = indexOfIgnoreCase(buf, "<th", pos);
+		int open = (td < 0) ? th : (th < 0) ? td : Math.min(td, th);
+		if (open < 0 || open >= end) {
+		    break;
+		}
+		int contentStart = indexOf(buf, '>', open);
+		if (contentStart < 0 || contentStart >= end) {
+		    break;
+		}
+		contentStart++;
+		int close = indexOfIgnoreCase(buf, (open == td) ? "</td" : "</th", contentStart);
+		if (close < 0 || close > end) {
+		    close = end;
+		}
+		cells.add(toText(buf.subSequence(contentStart, close)));
+		pos = close;
+	    }
+	    return(cells);
+	}
+
+	// strips tags, decodes the common entities and collapses whitespace
+	private static String toText(CharSequence html) {
+	    StringBuilder sb = new StringBuilder();
+	    boolean inTag = false;
+	    for (int i=0; i<html.length(); i++) {
+		char c = html.charAt(i);
+		if (c == '<') {
+		    inTag = true;
+		} else if (c == '>') {
+		    inTag = false;
+		} else if (!inTag) {
+		    sb.append(Character.isWhitespace(c) ? ' ' : c);
+		}
+	    }
+	    String text = sb.toString().replace("&lt;", "<").replace("&gt;", ">").replace("&quot;", "\"").replace("&#39;", "'").replace("&nbsp;", " ").replace("&amp;", "&");
+	    return(text.replaceAll(" +", " ").trim());
+	}
+
+	private static int indexOf(CharSequence buf, char c, int from) {
+	    for (int i=from; i<buf.length(); i++) {
+		if (buf.charAt(i) == c) {
+		    return(i);
+		}
+	    }
+	    return(-1);
+	}
+
+	private static int lastIndexOfIgnoreCase(CharSequence buf, String s) {
+	    for (int i=buf.length()-s.length(); i>=0; i--) {
+		int j = 0;
+		while (j < s.length() && Character.toLowerCase(buf.charAt(i+j)) == s.charAt(j)) {
+		    j++;
+		}
+		if (j == s.length()) {
+		    return(i);
+		}
+	    }
+	    return(-1);
+	}
+
+	private static int indexOfIgnoreCase(CharSequence buf, String s, int from) {
+	    for (int i=from; i+s.length()<=buf.length(); i++) {
+		int j = 0;
+		while (j < s.length() && Character.toLowerCase(buf.charAt(i+j)) == s.charAt(j)) {
+		    j++;
+		}
+		if (j == s.length()) {
+		    return(i);
+		}
+	    }
+	    return(-1);
+	}
+    }
+}
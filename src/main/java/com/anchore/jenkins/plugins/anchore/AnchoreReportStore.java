@@ -0,0 +1,289 @@
+package com.anchore.jenkins.plugins.anchore;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Job;
+import hudson.model.TaskListener;
+import hudson.remoting.Channel;
+import hudson.remoting.RemoteOutputStream;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+import jenkins.model.Jenkins;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Keeps the report files of every scan gzipped and content-addressed below JENKINS_HOME/anchore-reports,
+ * so that the reports of builds scanning unchanged images are stored once instead of once per build.
+ *
+ * An object is named by the SHA-256 of the uncompressed report, and lives in objects/<first two hex
+ * digits>/<digest>.gz.  Each build keeps a manifest of 'name digest' lines next to its report index, which
+ * AnchoreAction uses to serve the reports.  anchore.css is the same for every build and is served from the
+ * plugin instead.  Objects that no manifest refers to any more are deleted by the Sweeper.
+ */
+public class AnchoreReportStore {
+    public static final String MANIFEST = "reports.manifest";
+    private static final String CSS = "anchore.css";
+    // objects are written before the manifest that refers to them, give running builds time to finish
+    private static final long SWEEP_GRACE = 24L * 3600L * 1000L;
+
+    public static File getStoreDir() {
+	return(new File(Jenkins.getActiveInstance().getRootDir(), "anchore-reports"));
+    }
+
+    public static File getObject(String digest) {
+	return(new File(new File(new File(getStoreDir(), "objects"), digest.substring(0, 2)), digest + ".gz"));
+    }
+
+    // stores every report in reportDir and writes the manifest, returns the number of objects that were not stored yet
+    public static int store(FilePath reportDir, File manifestFile) throws IOException, InterruptedException {
+	Map<String, String> digests = reportDir.act(new Digest());
+
+	// the manifest goes first, so a sweep running meanwhile already sees the objects as in use
+	File manifestDir = manifestFile.getParentFile();
+	if (!manifestDir.isDirectory() && !manifestDir.mkdirs() && !manifestDir.isDirectory()) {
+	    throw new IOException("failed to create " + manifestDir);
+	}
+	File manifestTmp = new File(manifestDir, MANIFEST + ".tmp");
+	Writer w = new OutputStreamWriter(new FileOutputStream(manifestTmp), StandardCharsets.UTF_8);
+	try {
+	    for (Map.Entry<String, String> entry : digests.entrySet()) {
+		w.write(entry.getKey() + " " + entry.getValue() + "\n");
+	    }
+	} finally {
+	    w.close();
+	}
+	if (!manifestTmp.renameTo(manifestFile)) {
+	    manifestTmp.delete();
+	    throw new IOException("failed to write " + manifestFile);
+	}
+
+	int added = 0;
+	long now = System.currentTimeMillis();
+	for (Map.Entry<String, String> entry : digests.entrySet()) {
+	    File object = getObject(entry.getValue());
+	    // a reused object gets a new grace period, a sweep that read the manifests before ours could delete it otherwise
+	    if (object.setLastModified(now)) {
+		continue;
+	    }
+	    File dir = object.getParentFile();
+	    if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+		throw new IOException("failed to create " + dir);
+	    }
+	    File tmp = File.createTempFile(entry.getValue(), ".tmp", dir);
+	    try {
+		OutputStream out = new FileOutputStream(tmp);
+		try {
+		    reportDir.child(entry.getKey()).act(new Compress(new RemoteOutputStream(out)));
+		    // the compressed bytes arrive asynchronously, wait for them before the file is closed
+		    if (reportDir.getChannel() instanceof Channel) {
+			((Channel) reportDir.getChannel()).syncLocalIO();
+		    }
+		} finally {
+		    out.close();
+		}
+		// another build may have stored the same report meanwhile, either copy will do
+		if (!tmp.renameTo(object) && !object.exists()) {
+		    throw new IOException("failed to store " + object);
+		}
+		added++;
+	    } finally {
+		tmp.delete();
+	    }
+	}
+	return(added);
+    }
+
+    // report name -> digest, empty if the build has no manifest
+    public static Map<String, String> readManifest(File manifestFile) throws IOException {
+	Map<String, String> ret = new LinkedHashMap<String, String>();
+	if (!manifestFile.isFile()) {
+	    return(ret);
+	}
+	BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(manifestFile), StandardCharsets.UTF_8));
+	try {
+	    String line;
+	    while ((line = br.readLine()) != null) {
+		int sep = line.lastIndexOf(' ');
+		if (sep > 0) {
+		    ret.put(line.substring(0, sep), line.substring(sep + 1));
+		}
+	    }
+	} finally {
+	    br.close();
+	}
+	return(ret);
+    }
+
+    public static String getContentType(String name) {
+	if (name.endsWith(".html")) {
+	    return("text/html;charset=UTF-8");
+	} else if (name.endsWith(".json")) {
+	    return("application/json;charset=UTF-8");
+	}
+	return("text/plain;charset=UTF-8");
+    }
+
+    public static boolean isCss(String name) {
+	return(CSS.equals(name));
+    }
+
+    // deletes objects that no build manifest refers to, returns the number of objects deleted
+    public static int sweep(TaskListener listener) throws IOException {
+	File objectsDir = new File(getStoreDir(), "objects");
+	if (!objectsDir.isDirectory()) {
+	    return(0);
+	}
+
+	// collect the digests first, objects are only written by builds so anything stored after this is kept by the grace period
+	long cutoff = System.currentTimeMillis() - SWEEP_GRACE;
+	Set<String> live = new HashSet<String>();
+	for (Job<?,?> job : Jenkins.getActiveInstance().getAllItems(Job.class)) {
+	    File[] builds = job.getBuildDir().listFiles();
+	    if (builds == null) {
+		continue;
+	    }
+	    for (File build : builds) {
+		File[] scans = new File(build, "anchore").listFiles();
+		if (scans == null) {
+		    continue;
+		}
+		for (File scan : scans) {
+		    live.addAll(readManifest(new File(scan, MANIFEST)).values());
+		}
+	    }
+	}
+
+	int deleted = 0;
+	File[] dirs = objectsDir.listFiles();
+	if (dirs == null) {
+	    return(0);
+	}
+	for (File dir : dirs) {
+	    File[] objects = dir.listFiles();
+	    if (objects == null) {
+		continue;
+	    }
+	    for (File object : objects) {
+		String name = object.getName();
+		String digest = name.endsWith(".gz") ? name.substring(0, name.length() - 3) : name;
+		if (!live.contains(digest) && object.lastModified() < cutoff && object.delete()) {
+		    deleted++;
+		}
+	    }
+	}
+	listener.getLogger().println("[anchore][info] report store: " + live.size() + " reports in use, " + deleted + " unused reports deleted");
+	return(deleted);
+    }
+
+    private static final class Digest extends MasterToSlaveFileCallable<LinkedHashMap<String, String>> {
+	private static final long serialVersionUID = 1L;
+
+	public LinkedHashMap<String, String> invoke(File f, VirtualChannel channel) throws IOException {
+	    LinkedHashMap<String, String> ret = new LinkedHashMap<String, String>();
+	    digestDir(f, "", ret);
+	    return(ret);
+	}
+
+	private void digestDir(File dir, String prefix, Map<String, String> ret) throws IOException {
+	    File[] files = dir.listFiles();
+	    if (files == null) {
+		return;
+	    }
+	    Arrays.sort(files);
+	    for (File file : files) {
+		String name = prefix + file.getName();
+		if (file.isDirectory()) {
+		    digestDir(file, name + "/", ret);
+		} else if (!isCss(name)) {
+		    ret.put(name, digest(file));
+		}
+	    }
+	}
+
+	private String digest(File file) throws IOException {
+	    try {
+		MessageDigest md = MessageDigest.getInstance("SHA-256");
+		InputStream in = new DigestInputStream(new FileInputStream(file), md);
+		try {
+		    byte[] buf = new byte[8192];
+		    while (in.read(buf) >= 0) {
+			// digested as it is read
+		    }
+		} finally {
+		    in.close();
+		}
+		return(Util.toHexString(md.digest()));
+	    } catch (NoSuchAlgorithmException e) {
+		throw new IllegalStateException(e);
+	    }
+	}
+    }
+
+    // compresses on the node holding the report, so only the gzipped bytes cross the channel
+    private static final class Compress extends MasterToSlaveFileCallable<Void> {
+	private static final long serialVersionUID = 1L;
+
+	private final OutputStream out;
+
+	Compress(OutputStream out) {
+	    this.out = out;
+	}
+
+	public Void invoke(File f, VirtualChannel channel) throws IOException {
+	    OutputStream gz = new GZIPOutputStream(out, 65536);
+	    try {
+		InputStream in = new FileInputStream(f);
+		try {
+		    byte[] buf = new byte[65536];
+		    int n;
+		    while ((n = in.read(buf)) >= 0) {
+			gz.write(buf, 0, n);
+		    }
+		} finally {
+		    in.close();
+		}
+	    } finally {
+		gz.close();
+	    }
+	    return(null);
+	}
+    }
+
+    @Extension
+    public static class Sweeper extends AsyncPeriodicWork {
+	public Sweeper() {
+	    super("Anchore report store sweep");
+	}
+
+	@Override
+	public long getRecurrencePeriod() {
+	    return(7 * DAY);
+	}
+
+	@Override
+	protected void execute(TaskListener listener) throws IOException {
+	    sweep(listener);
+	}
+    }
+}
@@ -0,0 +1,93 @@
+package com.anchore.jenkins.plugins.anchore;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * One indexed report of an AnchoreAction, served a page at a time at .../anchore-results/report/NAME/
+ * (html) and .../anchore-results/report/NAME/json (json).  Both take the query parameters start, size,
+ * filter, sort (column number) and order (asc or desc).
+ */
+public class AnchoreReportView {
+    static final int DEFAULT_PAGE_SIZE = 100;
+    static final int MAX_PAGE_SIZE = 1000;
+
+    private final AnchoreAction action;
+    private final String name;
+    private final String title;
+    private final File indexDir;
+
+    public AnchoreReportView(AnchoreAction action, String name, String title, File indexDir) {
+	this.action = action;
+	this.name = name;
+	this.title = title;
+	this.indexDir = indexDir;
+    }
+
+    public AnchoreAction getAction() {
+	return(action);
+    }
+
+    public String getName() {
+	return(name);
+    }
+
+    public String getTitle() {
+	return(title);
+    }
+
+    public String getDisplayName() {
+	return(title);
+    }
+
+    private static int intParameter(StaplerRequest req, String name, int defaultValue) {
+	String value = req.getParameter(name);
+	if (value == null || value.isEmpty()) {
+	    return(defaultValue);
+	}
+	try {
+	    return(Integer.parseInt(value));
+	} catch (NumberFormatException e) {
+	    return(defaultValue);
+	}
+    }
+
+    public AnchoreReportIndex.Page getPage(StaplerRequest req) throws IOException {
+	AnchoreReportIndex index = AnchoreReportIndex.open(indexDir, name);
+	if (index == null) {
+	    return(null);
+	}
+	int size = Math.min(MAX_PAGE_SIZE, Math.max(1, intParameter(req, "size", DEFAULT_PAGE_SIZE)));
+	return(index.getPage(intParameter(req, "start", 0), size, req.getParameter("filter"), intParameter(req, "sort", -1), "desc".equals(req.getParameter("order"))));
+    }
+
+    public void doJson(StaplerRequest req, StaplerResponse rsp) throws IOException {
+	AnchoreReportIndex.Page page = getPage(req);
+	if (page == null) {
+	    rsp.sendError(StaplerResponse.SC_NOT_FOUND);
+	    return;
+	}
+
+	JSONObject json = new JSONObject();
+	json.put("name", name);
+	json.put("start", page.getStart());
+	json.put("size", page.getSize());
+	json.put("total", page.getTotal());
+	json.put("rowCount", page.getRowCount());
+	json.put("header", JSONArray.fromObject(page.getHeader()));
+	JSONArray rows = new JSONArray();
+	for (List<String> row : page.getRows()) {
+	    rows.add(JSONArray.fromObject(row));
+	}
+	json.put("rows", rows);
+
+	rsp.setContentType("application/json;charset=UTF-8");
+	rsp.getWriter().print(json.toString());
+    }
+}
@@ -0,0 +1,116 @@
+package com.anchore.jenkins.plugins.anchore;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Lets concurrent scans on one node share work on the same image: the first scan to ask for a key runs the
+ * work (analysis of an image digest, or a gate evaluation that goes to the node's gate result cache), later
+ * scans wait for it to finish and then use its result instead of repeating it.
+ *
+ * Keys name the node, not the Anchore container, so scans leasing different containers of the pool share
+ * work too.  An analysis lives in the DB of the container that ran it, so its owner exports it to a file
+ * on the node when other scans are waiting, and each of them imports that file into its own container.
+ *
+ * Flights live in the JVM that runs the scans of a node: the master, or the agent itself for scans that run
+ * on the agent.  The owner of a flight must complete it whether the work succeeded or not.
+ */
+public class AnchoreScanCoordinator {
+    // how long a scan waits for another one before doing the work itself
+    static final long FLIGHT_TIMEOUT = 60 * 60 * 1000L;
+
+    private static final Map<String, Flight> flights = new HashMap<String, Flight>();
+
+    /**
+     * Work on one key that is in progress.
+     */
+    public static class Flight {
+	private boolean done;
+	private boolean succeeded;
+	private String export;
+	private int waiters;
+
+	private synchronized void addWaiter() {
+	    waiters++;
+	}
+
+	private synchronized int getWaiters() {
+	    return(waiters);
+	}
+
+	private synchronized void complete(boolean succeeded, String export) {
+	    this.done = true;
+	    this.succeeded = succeeded;
+	    this.export = export;
+	    notifyAll();
+	}
+
+	// true when the owner finished the work successfully within timeoutMillis
+	public synchronized boolean await(long timeoutMillis) throws InterruptedException {
+	    long deadline = System.currentTimeMillis() + timeoutMillis;
+	    while (!done) {
+		long remaining = deadline - System.currentTimeMillis();
+		if (remaining <= 0) {
+		    return(false);
+		}
+		wait(remaining);
+	    }
+	    return(succeeded);
+	}
+
+	// name of the file the owner exported its result to, null if it did not export one
+	public synchronized String getExport() {
+	    return(export);
+	}
+
+	// called by every waiter once it is done with the flight, true for the last one
+	public synchronized boolean release() {
+	    waiters--;
+	    return(waiters == 0);
+	}
+    }
+
+    // returns null when the caller now owns the flight for key, or the flight in progress to wait for
+    public static Flight join(String key) {
+	synchronized (flights) {
+	    Flight flight = flights.get(key);
+	    if (flight != null) {
+		flight.addWaiter();
+		return(flight);
+	    }
+	    flights.put(key, new Flight());
+	    return(null);
+	}
+    }
+
+    // number of scans waiting for the flight in progress for key
+    public static int getWaiters(String key) {
+	Flight flight;
+	synchronized (flights) {
+	    flight = flights.get(key);
+	}
+	return((flight != null) ? flight.getWaiters() : 0);
+    }
+
+    public static void complete(String key, boolean succeeded) {
+	complete(key, succeeded, null);
+    }
+
+    public static void complete(String key, boolean succeeded, String export) {
+	Flight flight;
+	synchronized (flights) {
+	    flight = flights.remove(key);
+	}
+	if (flight != null) {
+	    flight.complete(succeeded, export);
+	}
+    }
+
+    public static String analysisKey(String nodeName, String anchoreImageDigest, String imageDigest) {
+	return("analyze/" + nodeName + "/" + anchoreImageDigest + "/" + imageDigest);
+    }
+
+    public static String gateKey(String nodeName, String gateCacheKey) {
+	return("gate/" + nodeName + "/" + gateCacheKey);
+    }
+}
@@ -0,0 +1,197 @@
+package com.anchore.jenkins.plugins.anchore;
+import hudson.Launcher;
+import hudson.Proc;
+import hudson.util.ArgumentListBuilder;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A long-lived shell inside the Anchore container ('docker exec -i <container> sh') that commands
+ * are written to one at a time, instead of spawning a new docker client process per command.
+ *
+ * After each command the shell prints a random marker followed by the exit code on stdout, and the
+ * marker alone on stderr, so both streams can be split back into per-command output.  Both streams are
+ * read on pump threads, so the caller can be interrupted while a command runs; the command keeps running
+ * in the container then, and the caller has to kill it there before it closes the session.
+ */
+public class AnchoreSession {
+    private final Proc proc;
+    private final OutputStream stdin;
+    private final InputStream stdout;
+    private final InputStream stderr;
+    private final byte[] marker;
+    private final ExecutorService pumps;
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile boolean broken;
+    private boolean closed;
+
+    AnchoreSession(Proc proc) {
+	this.proc = proc;
+	this.stdin = proc.getStdin();
+	this.stdout = new BufferedInputStream(proc.getStdout());
+	this.stderr = new BufferedInputStream(proc.getStderr());
+	// '#' does not occur in the rest of the marker, which keeps the scan in copyUntilMarker simple
+	this.marker = ("#ANCHORE" + UUID.randomUUID().toString().replace("-", "")).getBytes(StandardCharsets.UTF_8);
+	this.pumps = Executors.newFixedThreadPool(2, new NamingThreadFactory(new DaemonThreadFactory(), "Anchore session output"));
+    }
+
+    public static AnchoreSession open(Launcher launcher, boolean useSudo, String containerId) throws IOException {
+	ArgumentListBuilder args = new ArgumentListBuilder();
+	if (useSudo) {
+	    args.add("sudo");
+	}
+	args.add("docker", "exec", "-i", containerId, "sh");
+
+	Proc proc = launcher.launch().cmds(args).writeStdin().readStdout().readStderr().quiet(true).start();
+	return(new AnchoreSession(proc));
+    }
+
+    /**
+     * Runs a command inside the container and returns its exit code, or null if the session is busy
+     * with another command or no longer usable, in which case the caller should run the command itself.
+     * When the caller is interrupted, the session is no longer usable and the command is left running.
+     */
+    public Integer tryExec(List<String> cmd, OutputStream soutStream, OutputStream serrStream) throws InterruptedException {
+	if (broken || !lock.tryLock()) {
+	    return(null);
+	}
+	try {
+	    return(exec(cmd, soutStream, serrStream));
+	} catch (InterruptedException e) {
+	    broken = true;
+	    throw e;
+	} catch (Exception e) {
+	    // the command was already sent, so running it again elsewhere could duplicate its output
+	    broken = true;
+	    return(1);
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    private int exec(List<String> cmd, final OutputStream soutStream, final OutputStream serrStream) throws IOException, InterruptedException, ExecutionException {
+	String markerStr = quote(new String(marker, StandardCharsets.UTF_8));
+	StringBuilder script = new StringBuilder();
+	for (String arg : cmd) {
+	    script.append(quote(arg)).append(" ");
+	}
+	script.append("</dev/null; rc=$?; printf '%s %d\\n' ").append(markerStr).append(" $rc; printf '%s\\n' ").append(markerStr).append(" >&2\n");
+
+	Future<Boolean> stderrDone = pumps.submit(new Callable<Boolean>() {
+		public Boolean call() throws IOException {
+		    boolean found = copyUntilMarker(stderr, serrStream, marker);
+		    if (found) {
+			readLine(stderr);
+		    }
+		    return(found);
+		}
+	    });
+	// the exit code, or null if the shell went away first
+	Future<String> stdoutDone = pumps.submit(new Callable<String>() {
+		public String call() throws IOException {
+		    if (!copyUntilMarker(stdout, soutStream, marker)) {
+			return(null);
+		    }
+		    return(readLine(stdout));
+		}
+	    });
+
+	stdin.write(script.toString().getBytes(StandardCharsets.UTF_8));
+	stdin.flush();
+
+	String exitCode = stdoutDone.get();
+	if (exitCode == null || !stderrDone.get()) {
+	    throw new IOException("anchore session closed while running command");
+	}
+	return(Integer.parseInt(exitCode.trim()));
+    }
+
+    /**
+     * Ends the session without waiting for the shell: a command still running in it has to be killed
+     * by the caller first, its docker client is killed here.
+     */
+    public void close() {
+	synchronized (this) {
+	    if (closed) {
+		return;
+	    }
+	    closed = true;
+	}
+	broken = true;
+	try {
+	    stdin.write("exit\n".getBytes(StandardCharsets.UTF_8));
+	    stdin.close();
+	} catch (Exception e) {
+	    // the shell is gone already
+	}
+	try {
+	    proc.kill();
+	} catch (Exception e) {
+	    // nothing left to do
+	} finally {
+	    pumps.shutdownNow();
+	}
+    }
+
+    static boolean copyUntilMarker(InputStream in, OutputStream out, byte[] marker) throws IOException {
+	OutputStream bout = (out != null) ? new BufferedOutputStream(out) : null;
+	int matched = 0;
+	int b;
+	try {
+	    while ((b = in.read()) != -1) {
+		if (b == (marker[matched] & 0xff)) {
+		    matched++;
+		    if (matched == marker.length) {
+			return(true);
+		    }
+		    continue;
+		}
+		if (bout != null && matched > 0) {
+		    bout.write(marker, 0, matched);
+		}
+		matched = 0;
+		if (b == (marker[0] & 0xff)) {
+		    matched = 1;
+		} else if (bout != null) {
+		    bout.write(b);
+		}
+	    }
+	    if (bout != null && matched > 0) {
+		bout.write(marker, 0, matched);
+	    }
+	    return(false);
+	} finally {
+	    if (bout != null) {
+		bout.flush();
+	    }
+	}
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+	StringBuilder line = new StringBuilder();
+	int b;
+	while ((b = in.read()) != -1 && b != '\n') {
+	    line.append((char)b);
+	}
+	return(line.toString());
+    }
+
+    static String quote(String arg) {
+	return("'" + arg.replace("'", "'\\''") + "'");
+    }
+}
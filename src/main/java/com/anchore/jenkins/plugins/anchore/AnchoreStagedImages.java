@@ -0,0 +1,201 @@
+package com.anchore.jenkins.plugins.anchore;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+
+/**
+ * The staged image lines ("<image id> <dockerfile>") of one scan, spilled to a file as they are added
+ * so that image lists with many thousands of entries do not have to be held on the heap.  Only the
+ * offset of every line and a 64 bit fingerprint of every image ID stay in memory; the fingerprints
+ * dedupe the list, a fingerprint hit is confirmed against the line in the file.
+ *
+ * Lines are read back through a small window of the file, so iterating over the list reads the file
+ * sequentially.  The file is deleted by close().
+ */
+public class AnchoreStagedImages extends AbstractList<String> implements Closeable {
+    private static final int WINDOW_SIZE = 64 * 1024;
+
+    private File file;
+    private RandomAccessFile data;
+
+    // lines appended since the last flush, and the file offset they start at
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private long flushed;
+
+    // offsets[i] is where line i starts, offsets[size] where the next line will start
+    private long[] offsets = new long[64];
+    private int size;
+
+    // open addressing table of image ID fingerprints, lines[] holds line number + 1 (0 is a free slot)
+    private long[] fingerprints = new long[128];
+    private int[] lines = new int[128];
+
+    private final byte[] window = new byte[WINDOW_SIZE];
+    private long windowStart;
+    private int windowLength;
+
+    /**
+     * @param file the spill file, created on the first line added; null for a file in the temporary directory
+     */
+    public AnchoreStagedImages(File file) {
+	this.file = file;
+    }
+
+    public synchronized boolean containsImage(String imgId) throws IOException {
+	return(lines[findSlot(imgId, fingerprint(imgId))] != 0);
+    }
+
+    /**
+     * Appends the line of an image, unless a line for the same image ID was appended before.
+     *
+     * @return false if the image was a duplicate
+     */
+    public synchronized boolean addImage(String imgId, String line) throws IOException {
+	long fingerprint = fingerprint(imgId);
+	int slot = findSlot(imgId, fingerprint);
+	if (lines[slot] != 0) {
+	    return(false);
+	}
+
+	append(line);
+	fingerprints[slot] = fingerprint;
+	lines[slot] = size;
+	if (size * 2 > lines.length) {
+	    rehash();
+	}
+	return(true);
+    }
+
+    @Override
+    public synchronized String get(int index) {
+	if (index < 0 || index >= size) {
+	    throw new IndexOutOfBoundsException("index " + index + ", size " + size);
+	}
+	try {
+	    return(read(index));
+	} catch (IOException e) {
+	    throw new IllegalStateException("failed to read staged image list " + file, e);
+	}
+    }
+
+    @Override
+    public synchronized int size() {
+	return(size);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+	pending.reset();
+	windowLength = 0;
+	if (data != null) {
+	    data.close();
+	    data = null;
+	}
+	if (file != null) {
+	    file.delete();
+	}
+    }
+
+    // the slot holding the image, or the free slot it would go to
+    private int findSlot(String imgId, long fingerprint) throws IOException {
+	int mask = lines.length - 1;
+	int slot = (int)(fingerprint ^ (fingerprint >>> 32)) & mask;
+	while (lines[slot] != 0) {
+	    if (fingerprints[slot] == fingerprint && imgId.equals(imageId(read(lines[slot] - 1)))) {
+		break;
+	    }
+	    slot = (slot + 1) & mask;
+	}
+	return(slot);
+    }
+
+    private void append(String line) throws IOException {
+	if (data == null) {
+	    if (file == null) {
+		file = File.createTempFile("anchore_staged_images", ".list");
+	    }
+	    data = new RandomAccessFile(file, "rw");
+	    data.setLength(0);
+	}
+	byte[] bytes = (line + "\n").getBytes(StandardCharsets.UTF_8);
+	pending.write(bytes);
+	if (size + 1 == offsets.length) {
+	    long[] grown = new long[offsets.length * 2];
+	    System.arraycopy(offsets, 0, grown, 0, offsets.length);
+	    offsets = grown;
+	}
+	offsets[size + 1] = offsets[size] + bytes.length;
+	size++;
+	if (pending.size() >= WINDOW_SIZE) {
+	    flush();
+	}
+    }
+
+    private void flush() throws IOException {
+	if (pending.size() > 0) {
+	    data.seek(flushed);
+	    data.write(pending.toByteArray());
+	    flushed += pending.size();
+	    pending.reset();
+	}
+    }
+
+    private String read(int index) throws IOException {
+	long start = offsets[index];
+	int length = (int)(offsets[index + 1] - start - 1);
+	if (start + length > flushed) {
+	    flush();
+	}
+	if (length > WINDOW_SIZE) {
+	    byte[] bytes = new byte[length];
+	    data.seek(start);
+	    data.readFully(bytes);
+	    return(new String(bytes, StandardCharsets.UTF_8));
+	}
+	if (start < windowStart || start + length > windowStart + windowLength) {
+	    data.seek(start);
+	    windowStart = start;
+	    windowLength = (int)Math.min(WINDOW_SIZE, flushed - start);
+	    data.readFully(window, 0, windowLength);
+	}
+	return(new String(window, (int)(start - windowStart), length, StandardCharsets.UTF_8));
+    }
+
+    private void rehash() {
+	long[] oldFingerprints = fingerprints;
+	int[] oldLines = lines;
+	fingerprints = new long[oldLines.length * 2];
+	lines = new int[oldLines.length * 2];
+	int mask = lines.length - 1;
+	for (int i=0; i<oldLines.length; i++) {
+	    if (oldLines[i] != 0) {
+		int slot = (int)(oldFingerprints[i] ^ (oldFingerprints[i] >>> 32)) & mask;
+		while (lines[slot] != 0) {
+		    slot = (slot + 1) & mask;
+		}
+		fingerprints[slot] = oldFingerprints[i];
+		lines[slot] = oldLines[i];
+	    }
+	}
+    }
+
+    private static String imageId(String line) {
+	int space = line.indexOf(' ');
+	return((space < 0) ? line : line.substring(0, space));
+    }
+
+    // 64 bit FNV-1a
+    static long fingerprint(String imgId) {
+	long hash = 0xcbf29ce484222325L;
+	for (int i=0; i<imgId.length(); i++) {
+	    hash ^= imgId.charAt(i);
+	    hash *= 0x100000001b3L;
+	}
+	return(hash);
+    }
+}
@@ -0,0 +1,546 @@
+package com.anchore.jenkins.plugins.anchore;
+
+import hudson.Extension;
+import hudson.model.Action;
+import hudson.model.Api;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import jenkins.model.TransientActionFactory;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Project level view of the gate results of all builds of a job, at JOB_URL/anchore-trend/.
+ *
+ * Every finished build appends one line per scanned image (or one line per scan when the gate output was not
+ * captured as json) to JOB_DIR/anchore-trend.log:
+ *
+ *   BUILD TIME STATUS IMAGE REPOTAG WARN STOP
+ *
+ * The file is only ever appended to.  A summary of it is kept in memory, holding the current status of each
+ * image with the build that status started at and the counts of the most recent builds; it is built by reading
+ * the file once and then updated as builds finish, so apart from one bit per recorded build its size does not
+ * grow with the number of builds.  The full history of an image is streamed from the file on request.
+ */
+@ExportedBean
+public class AnchoreTrend implements Action {
+    private static final Logger LOGGER = Logger.getLogger(AnchoreTrend.class.getName());
+
+    static final String TREND_FILE = "anchore-trend.log";
+    // used in place of the image when a scan did not record per-image results
+    static final String ALL_IMAGES = "-";
+
+    private static final int MAX_BUILDS = 100;
+    private static final int MAX_IMAGES = 500;
+    private static final int MAX_HISTORY = 1000;
+    private static final int MAX_SUMMARIES = 64;
+
+    // summaries of recently used jobs, keyed by trend file path
+    private static final Map<String, Summary> summaries = new LinkedHashMap<String, Summary>(16, 0.75f, true) {
+	@Override
+	protected boolean removeEldestEntry(Map.Entry<String, Summary> eldest) {
+	    return(size() > MAX_SUMMARIES);
+	}
+    };
+
+    private final Job<?,?> job;
+
+    public AnchoreTrend(Job<?,?> job) {
+	this.job = job;
+    }
+
+    @Override
+    public String getIconFileName() {
+	return "/plugin/anchore-container-scanner/images/anchore.png";
+    }
+
+    @Override
+    public String getDisplayName() {
+	return "Anchore Trend";
+    }
+
+    @Override
+    public String getUrlName() {
+	return "anchore-trend";
+    }
+
+    public Api getApi() {
+	return new Api(this);
+    }
+
+    public Job<?,?> getJob() {
+	return(job);
+    }
+
+    static File getTrendFile(Job<?,?> job) {
+	return(new File(job.getRootDir(), TREND_FILE));
+    }
+
+    private static Summary getSummary(File trendFile) throws IOException {
+	Summary summary;
+	synchronized (summaries) {
+	    summary = summaries.get(trendFile.getPath());
+	    if (summary == null) {
+		summary = new Summary(trendFile);
+		summaries.put(trendFile.getPath(), summary);
+	    }
+	}
+	summary.load();
+	return(summary);
+    }
+
+    // status of each image, most recently seen first
+    @Exported
+    public List<ImageTrend> getImages() throws IOException {
+	List<ImageTrend> ret = getSummary(getTrendFile(job)).getImages();
+	Collections.reverse(ret);
+	return(ret);
+    }
+
+    // counts of the most recent builds, oldest first
+    @Exported
+    public List<BuildTrend> getBuilds() throws IOException {
+	return(getSummary(getTrendFile(job)).getBuilds());
+    }
+
+    /**
+     * Streams the trend file and returns the last (up to MAX_HISTORY) entries of one image.
+     */
+    public List<Entry> getHistory(String image) throws IOException {
+	ArrayDeque<Entry> ret = new ArrayDeque<Entry>();
+	File trendFile = getTrendFile(job);
+	if (image == null || !trendFile.exists()) {
+	    return(new ArrayList<Entry>(ret));
+	}
+	BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(trendFile), StandardCharsets.UTF_8));
+	try {
+	    String line;
+	    while ((line = reader.readLine()) != null) {
+		Entry entry = Entry.parse(line);
+		if (entry != null && (image.equals(entry.getImage()) || image.equals(entry.getRepoTag()))) {
+		    if (ret.size() >= MAX_HISTORY) {
+			ret.removeFirst();
+		    }
+		    ret.addLast(entry);
+		}
+	    }
+	} finally {
+	    reader.close();
+	}
+	return(new ArrayList<Entry>(ret));
+    }
+
+    public void doHistory(StaplerRequest req, StaplerResponse rsp) throws IOException {
+	JSONArray history = new JSONArray();
+	for (Entry entry : getHistory(req.getParameter("image"))) {
+	    JSONObject json = new JSONObject();
+	    json.put("build", entry.getBuild());
+	    json.put("time", entry.getTime());
+	    json.put("status", entry.getStatus());
+	    json.put("image", entry.getImage());
+	    json.put("repoTag", entry.getRepoTag());
+	    json.put("warnCount", entry.getWarnCount());
+	    json.put("stopCount", entry.getStopCount());
+	    history.add(json);
+	}
+	rsp.setContentType("application/json;charset=UTF-8");
+	rsp.getWriter().print(history.toString());
+    }
+
+    /**
+     * Appends the gate results of a finished build to the trend file of its job.
+     */
+    static void record(Run<?,?> run) throws IOException {
+	List<AnchoreAction> actions = run.getActions(AnchoreAction.class);
+	if (actions == null || actions.isEmpty()) {
+	    return;
+	}
+	long time = run.getTimeInMillis();
+	List<Entry> entries = new ArrayList<Entry>();
+	for (AnchoreAction action : actions) {
+	    String status = action.getGateStatus();
+	    if (status == null || status.isEmpty()) {
+		continue;
+	    }
+	    List<AnchoreGateResult> gateResults = action.getGateResults();
+	    if (gateResults == null || gateResults.isEmpty()) {
+		entries.add(new Entry(run.getNumber(), time, status, ALL_IMAGES, "", 0, 0));
+	    } else {
+		for (AnchoreGateResult gateResult : gateResults) {
+		    entries.add(new Entry(run.getNumber(), time, gateResult.getFinalAction(), gateResult.getImageId(), gateResult.getRepoTag(), gateResult.getWarnCount(), gateResult.getStopCount()));
+		}
+	    }
+	}
+	if (!entries.isEmpty()) {
+	    getSummary(getTrendFile(run.getParent())).append(entries);
+	}
+    }
+
+    private static String clean(String value) {
+	if (value == null || value.isEmpty()) {
+	    return("-");
+	}
+	return(value.replace('\t', ' ').replace('\n', ' ').replace('\r', ' '));
+    }
+
+    /**
+     * One line of the trend file.
+     */
+    @ExportedBean
+    public static class Entry {
+	private final int build;
+	private final long time;
+	private final String status;
+	private final String image;
+	private final String repoTag;
+	private final int warnCount;
+	private final int stopCount;
+
+	Entry(int build, long time, String status, String image, String repoTag, int warnCount, int stopCount) {
+	    this.build = build;
+	    this.time = time;
+	    this.status = status;
+	    this.image = image;
+	    this.repoTag = repoTag;
+	    this.warnCount = warnCount;
+	    this.stopCount = stopCount;
+	}
+
+	static Entry parse(String line) {
+	    String[] fields = line.split("\t");
+	    if (fields.length < 7) {
+		return(null);
+	    }
+	    try {
+		return(new Entry(Integer.parseInt(fields[0]), Long.parseLong(fields[1]), fields[2], fields[3], "-".equals(fields[4]) ? "" : fields[4], Integer.parseInt(fields[5]), Integer.parseInt(fields[6])));
+	    } catch (NumberFormatException e) {
+		return(null);
+	    }
+	}
+
+	String format() {
+	    return(build + "\t" + time + "\t" + clean(status) + "\t" + clean(image) + "\t" + clean(repoTag) + "\t" + warnCount + "\t" + stopCount + "\n");
+	}
+
+	@Exported
+	public int getBuild() {
+	    return(build);
+	}
+
+	@Exported
+	public long getTime() {
+	    return(time);
+	}
+
+	@Exported
+	public String getStatus() {
+	    return(status);
+	}
+
+	@Exported
+	public String getImage() {
+	    return(image);
+	}
+
+	@Exported
+	public String getRepoTag() {
+	    return(repoTag);
+	}
+
+	@Exported
+	public int getWarnCount() {
+	    return(warnCount);
+	}
+
+	@Exported
+	public int getStopCount() {
+	    return(stopCount);
+	}
+    }
+
+    /**
+     * Current status of one image, and the build that status was first seen in.
+     */
+    @ExportedBean
+    public static class ImageTrend {
+	private final String image;
+	private String repoTag;
+	private String status;
+	private int since;
+	private int lastBuild;
+	private int builds;
+
+	ImageTrend(String image) {
+	    this.image = image;
+	}
+
+	void update(Entry entry) {
+	    if (entry.getBuild() < lastBuild) {
+		// a build that finished after a later one only adds to the count, the status is the later one's
+		builds++;
+		return;
+	    }
+	    if (!entry.getStatus().equals(status)) {
+		status = entry.getStatus();
+		since = entry.getBuild();
+	    }
+	    if (!entry.getRepoTag().isEmpty()) {
+		repoTag = entry.getRepoTag();
+	    }
+	    if (entry.getBuild() != lastBuild) {
+		builds++;
+	    }
+	    lastBuild = entry.getBuild();
+	}
+
+	ImageTrend copy() {
+	    ImageTrend ret = new ImageTrend(image);
+	    ret.repoTag = repoTag;
+	    ret.status = status;
+	    ret.since = since;
+	    ret.lastBuild = lastBuild;
+	    ret.builds = builds;
+	    return(ret);
+	}
+
+	@Exported
+	public String getImage() {
+	    return(image);
+	}
+
+	@Exported
+	public String getRepoTag() {
+	    return(repoTag == null ? "" : repoTag);
+	}
+
+	@Exported
+	public String getStatus() {
+	    return(status);
+	}
+
+	@Exported
+	public int getSince() {
+	    return(since);
+	}
+
+	@Exported
+	public int getLastBuild() {
+	    return(lastBuild);
+	}
+
+	@Exported
+	public int getBuilds() {
+	    return(builds);
+	}
+    }
+
+    /**
+     * Gate outcome counts of one build.
+     */
+    @ExportedBean
+    public static class BuildTrend {
+	private final int build;
+	private int goCount;
+	private int warnCount;
+	private int stopCount;
+
+	BuildTrend(int build) {
+	    this.build = build;
+	}
+
+	void add(String status) {
+	    if ("STOP".equals(status)) {
+		stopCount++;
+	    } else if ("WARN".equals(status)) {
+		warnCount++;
+	    } else {
+		goCount++;
+	    }
+	}
+
+	BuildTrend copy() {
+	    BuildTrend ret = new BuildTrend(build);
+	    ret.goCount = goCount;
+	    ret.warnCount = warnCount;
+	    ret.stopCount = stopCount;
+	    return(ret);
+	}
+
+	@Exported
+	public int getBuild() {
+	    return(build);
+	}
+
+	@Exported
+	public int getGoCount() {
+	    return(goCount);
+	}
+
+	@Exported
+	public int getWarnCount() {
+	    return(warnCount);
+	}
+
+	@Exported
+	public int getStopCount() {
+	    return(stopCount);
+	}
+
+	public int getTotal() {
+	    return(goCount + warnCount + stopCount);
+	}
+    }
+
+    /**
+     * Bounded in-memory summary of one trend file: the last MAX_BUILDS builds and the MAX_IMAGES most
+     * recently seen images.
+     */
+    static class Summary {
+	private final File trendFile;
+	private boolean loaded;
+	// every build in the trend file, builds do not necessarily finish in build number order
+	private final BitSet recorded = new BitSet();
+	private final TreeMap<Integer, BuildTrend> builds = new TreeMap<Integer, BuildTrend>();
+	private final Map<String, ImageTrend> images = new LinkedHashMap<String, ImageTrend>(16, 0.75f, true) {
+	    @Override
+	    protected boolean removeEldestEntry(Map.Entry<String, ImageTrend> eldest) {
+		return(size() > MAX_IMAGES);
+	    }
+	};
+
+	Summary(File trendFile) {
+	    this.trendFile = trendFile;
+	}
+
+	synchronized void load() throws IOException {
+	    if (loaded) {
+		return;
+	    }
+	    if (trendFile.exists()) {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(trendFile), StandardCharsets.UTF_8));
+		try {
+		    String line;
+		    while ((line = reader.readLine()) != null) {
+			Entry entry = Entry.parse(line);
+			if (entry != null) {
+			    update(entry);
+			}
+		    }
+		} finally {
+		    reader.close();
+		}
+	    }
+	    loaded = true;
+	}
+
+	private void update(Entry entry) {
+	    recorded.set(entry.getBuild());
+	    BuildTrend build = builds.get(entry.getBuild());
+	    if (build == null) {
+		build = new BuildTrend(entry.getBuild());
+		builds.put(entry.getBuild(), build);
+	    }
+	    build.add(entry.getStatus());
+	    while (builds.size() > MAX_BUILDS) {
+		builds.remove(builds.firstKey());
+	    }
+
+	    ImageTrend image = images.get(entry.getImage());
+	    if (image == null) {
+		image = new ImageTrend(entry.getImage());
+		images.put(entry.getImage(), image);
+	    }
+	    image.update(entry);
+	}
+
+	synchronized void append(List<Entry> entries) throws IOException {
+	    load();
+	    // a build is only recorded once, even if it completes again after a restart
+	    if (recorded.get(entries.get(0).getBuild())) {
+		return;
+	    }
+	    Writer writer = new OutputStreamWriter(new FileOutputStream(trendFile, true), StandardCharsets.UTF_8);
+	    try {
+		for (Entry entry : entries) {
+		    writer.write(entry.format());
+		}
+	    } finally {
+		writer.close();
+	    }
+	    for (Entry entry : entries) {
+		update(entry);
+	    }
+	}
+
+	synchronized List<ImageTrend> getImages() {
+	    List<ImageTrend> ret = new ArrayList<ImageTrend>();
+	    for (ImageTrend image : images.values()) {
+		ret.add(image.copy());
+	    }
+	    return(ret);
+	}
+
+	synchronized List<BuildTrend> getBuilds() {
+	    List<BuildTrend> ret = new ArrayList<BuildTrend>();
+	    for (BuildTrend build : builds.values()) {
+		ret.add(build.copy());
+	    }
+	    return(ret);
+	}
+    }
+
+    @Extension
+    public static class Listener extends RunListener<Run> {
+	@Override
+	public void onCompleted(Run run, TaskListener listener) {
+	    try {
+		record(run);
+	    } catch (IOException e) {
+		LOGGER.log(Level.WARNING, "failed to record anchore trend of " + run.getFullDisplayName(), e);
+	    }
+	}
+    }
+
+    @Extension
+    public static class Factory extends TransientActionFactory<Job> {
+	@Override
+	public Class<Job> type() {
+	    return(Job.class);
+	}
+
+	@Override
+	public Collection<? extends Action> createFor(Job target) {
+	    if (!getTrendFile(target).exists()) {
+		return(Collections.<Action>emptyList());
+	    }
+	    return(Collections.singletonList(new AnchoreTrend(target)));
+	}
+    }
+}
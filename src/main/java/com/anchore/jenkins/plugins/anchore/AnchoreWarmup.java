@@ -0,0 +1,262 @@
+package com.anchore.jenkins.plugins.anchore;
+
+import hudson.Extension;
+import hudson.Launcher;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.slaves.ComputerListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.LogTaskListener;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.Jenkins;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Gets the Anchore containers of a node ready in the background as soon as the node comes online, so the
+ * first scan on a freshly started agent does not pay for pulling and starting the container and for the
+ * initial feed sync.
+ *
+ * Every slot of the node's container pool is started the way a scan would start it (pulling the image
+ * first if the node does not have it), then 'anchore feeds sync' is run in it.  Scans on a node that is
+ * still warming up wait for it, printing its progress, for at most WAIT_TIMEOUT.  Each slot is leased
+ * from the pool while it is prepared, so a scan or cleanup that got there first is waited for rather than
+ * raced.  The state of the last warm-up of every node is shown on the Anchore metrics page, until the node
+ * is removed.
+ */
+public class AnchoreWarmup {
+    private static final Logger LOGGER = Logger.getLogger(AnchoreWarmup.class.getName());
+
+    static final long WAIT_TIMEOUT = 60 * 60 * 1000L;
+
+    private static final ExecutorService executor = Executors.newCachedThreadPool(new NamingThreadFactory(new DaemonThreadFactory(), "Anchore warm-up"));
+
+    // node name -> last warm-up, "" being the master; the states are guarded by this map
+    private static final Map<String, State> states = new TreeMap<String, State>();
+
+    @ExportedBean
+    public static class State {
+	private final String nodeName;
+	private final long startedAt;
+	private String phase;
+	private long finishedAt;
+	private boolean failed;
+
+	State(String nodeName) {
+	    this.nodeName = nodeName;
+	    this.startedAt = System.currentTimeMillis();
+	    this.phase = "queued";
+	}
+
+	void setPhase(String phase) {
+	    synchronized (states) {
+		this.phase = phase;
+		states.notifyAll();
+	    }
+	}
+
+	void finish(boolean ok) {
+	    synchronized (states) {
+		this.finishedAt = System.currentTimeMillis();
+		this.failed = !ok;
+		if (ok) {
+		    this.phase = "ready";
+		}
+		states.notifyAll();
+	    }
+	}
+
+	@Exported
+	public String getNodeName() {
+	    return(nodeName.isEmpty() ? "master" : nodeName);
+	}
+
+	@Exported
+	public String getPhase() {
+	    synchronized (states) {
+		return(phase);
+	    }
+	}
+
+	@Exported
+	public boolean isDone() {
+	    synchronized (states) {
+		return(finishedAt > 0);
+	    }
+	}
+
+	@Exported
+	public boolean isFailed() {
+	    synchronized (states) {
+		return(failed);
+	    }
+	}
+
+	@Exported
+	public long getStartedAt() {
+	    return(startedAt);
+	}
+
+	@Exported
+	public long getDurationMillis() {
+	    synchronized (states) {
+		return(((finishedAt > 0) ? finishedAt : System.currentTimeMillis()) - startedAt);
+	    }
+	}
+    }
+
+    public static List<State> getStates() {
+	prune();
+	synchronized (states) {
+	    return(new ArrayList<State>(states.values()));
+	}
+    }
+
+    // forgets the finished warm-ups of nodes that no longer exist
+    static void prune() {
+	if (Jenkins.getInstance() == null) {
+	    return;
+	}
+	synchronized (states) {
+	    Iterator<State> it = states.values().iterator();
+	    while (it.hasNext()) {
+		State state = it.next();
+		if (state.finishedAt > 0 && AnchoreContainerPool.getNode(state.nodeName) == null) {
+		    it.remove();
+		}
+	    }
+	}
+    }
+
+    // starts the warm-up of the computer's node, unless one is already running
+    public static void start(final Computer computer, final AnchoreBuilder.DescriptorImpl descriptor) {
+	prune();
+	final State state;
+	synchronized (states) {
+	    State running = states.get(computer.getName());
+	    if (running != null && running.finishedAt == 0) {
+		return;
+	    }
+	    state = new State(computer.getName());
+	    states.put(computer.getName(), state);
+	}
+
+	executor.submit(new Runnable() {
+		public void run() {
+		    boolean ok = false;
+		    try {
+			warmup(computer, descriptor, state);
+			ok = true;
+		    } catch (Exception e) {
+			LOGGER.log(Level.WARNING, "anchore warm-up of node '" + state.getNodeName() + "' failed", e);
+			state.setPhase("failed: " + e.getMessage());
+		    } finally {
+			state.finish(ok);
+		    }
+		}
+	    });
+    }
+
+    private static void warmup(Computer computer, AnchoreBuilder.DescriptorImpl descriptor, State state) throws IOException, InterruptedException {
+	TaskListener listener = new LogTaskListener(LOGGER, Level.FINE);
+	Node node = computer.getNode();
+	if (node == null) {
+	    throw new IOException("node is gone");
+	}
+	Launcher launcher = node.createLauncher(listener);
+	boolean useSudo = descriptor.getUseSudo();
+	String containerImageId = descriptor.getContainerImageId();
+	int poolSize = Math.max(1, descriptor.getPoolSize());
+	AnchoreContainerPool pool = AnchoreContainerPool.get(computer.getName(), descriptor.getContainerId(), useSudo);
+
+	for (int slot = 0; slot < poolSize; slot++) {
+	    String containerId = AnchoreContainerPool.getSlotContainerId(descriptor.getContainerId(), slot);
+
+	    state.setPhase("waiting for container " + containerId);
+	    AnchoreContainerPool.Lease lease = pool.leaseSlot(slot);
+	    try {
+		state.setPhase("starting container " + containerId);
+		if (run(launcher, useSudo, listener, "docker", "start", containerId) != 0) {
+		    if (run(launcher, useSudo, listener, "docker", "inspect", containerImageId) != 0) {
+			state.setPhase("pulling image " + containerImageId);
+			if (run(launcher, useSudo, listener, "docker", "pull", containerImageId) != 0) {
+			    throw new IOException("failed to pull anchore image " + containerImageId);
+			}
+		    }
+		    state.setPhase("creating container " + containerId);
+		    String localVol = AnchoreContainerPool.getSlotLocalVol(descriptor.getLocalVol(), slot);
+		    if (run(launcher, useSudo, listener, BuildWorker.dockerRunCmd(containerId, containerImageId, localVol, descriptor.getModulesVol(), descriptor.getContainerCpus(), descriptor.getContainerMemory())) != 0) {
+			throw new IOException("failed to start anchore container " + containerId);
+		    }
+		}
+		AnchoreContainerHealth.markHealthy(computer.getName(), containerId, useSudo);
+
+		state.setPhase("syncing feeds in container " + containerId);
+		if (run(launcher, useSudo, listener, "docker", "exec", containerId, "anchore", "feeds", "sync") != 0) {
+		    // not fatal, anchore syncs what it needs during the scan
+		    LOGGER.log(Level.WARNING, "anchore feed sync in container {0} on node ''{1}'' failed", new Object[] { containerId, state.getNodeName() });
+		}
+	    } finally {
+		lease.release();
+	    }
+	}
+    }
+
+    private static int run(Launcher launcher, boolean useSudo, TaskListener listener, String... cmd) {
+	return(AnchoreCommandRunner.launchCmd(launcher, AnchoreCommandRunner.buildArgs(useSudo, AnchoreCommandRunner.splitCommand(cmd)), listener.getLogger(), listener.getLogger()));
+    }
+
+    /**
+     * Blocks a scan until the warm-up of its node has finished, printing the progress of the warm-up while
+     * it waits.  Returns the time waited, 0 if the node is not warming up.
+     */
+    public static long await(String nodeName, TaskListener listener) throws InterruptedException {
+	long start = System.currentTimeMillis();
+	String printed = null;
+	synchronized (states) {
+	    State state = states.get(nodeName);
+	    while (state != null && state.finishedAt == 0) {
+		if (!state.phase.equals(printed)) {
+		    listener.getLogger().println("[anchore][info] waiting for the anchore warm-up of this node: " + state.phase);
+		    printed = state.phase;
+		}
+		long left = start + WAIT_TIMEOUT - System.currentTimeMillis();
+		if (left <= 0) {
+		    listener.getLogger().println("[anchore][warn] anchore warm-up of this node is taking too long, not waiting for it any longer");
+		    break;
+		}
+		states.wait(left);
+	    }
+	    if (printed != null && state.finishedAt > 0) {
+		listener.getLogger().println("[anchore][info] anchore warm-up of this node " + (state.failed ? "failed (" + state.phase + "), the scan starts the container itself" : "is done"));
+	    }
+	}
+	return((printed != null) ? System.currentTimeMillis() - start : 0);
+    }
+
+    @Extension
+    public static class Listener extends ComputerListener {
+	@Override
+	public void onOnline(Computer c, TaskListener listener) {
+	    Jenkins jenkins = Jenkins.getInstance();
+	    AnchoreBuilder.DescriptorImpl descriptor = (jenkins != null) ? jenkins.getDescriptorByType(AnchoreBuilder.DescriptorImpl.class) : null;
+	    if (descriptor == null || !descriptor.getEnabled() || !descriptor.getWarmup()) {
+		return;
+	    }
+	    listener.getLogger().println("[anchore][info] preparing the anchore container in the background");
+	    start(c, descriptor);
+	}
+    }
+}
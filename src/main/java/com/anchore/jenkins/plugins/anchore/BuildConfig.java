@@ -0,0 +1,273 @@
+package com.anchore.jenkins.plugins.anchore;
+
+import java.io.PrintStream;
+import java.io.Serializable;
+import java.util.TreeMap;
+
+/**
+ * Snapshot of the build step and global Anchore configuration, taken when a scan starts.  A running scan
+ * only reads from its snapshot, so configuration changes and concurrent builds do not affect it.
+ */
+public class BuildConfig implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    // build step configuration
+    private final String name;
+    private final String policyName;
+    private final boolean bailOnFail;
+    private final boolean bailOnWarn;
+    private final boolean bailOnPluginFail;
+    private final boolean doAnalyze;
+    private final boolean doGate;
+    private final boolean doQuery;
+    private final boolean doCleanup;
+    private final TreeMap<String, String> queries;
+    private final int workers;
+    private final boolean batchStaging;
+    private final boolean captureJson;
+    private final boolean failFast;
+
+    // global configuration
+    private final boolean enabled;
+    private final boolean debug;
+    private final boolean useSudo;
+    private final boolean useSession;
+    private final String containerImageId;
+    private final String containerId;
+    private final String localVol;
+    private final String modulesVol;
+    private final int analysisCacheSize;
+    private final int analysisCacheTtl;
+    private final int poolSize;
+    private final boolean deferCleanup;
+    private final int gateCacheSize;
+    private final int gateCacheTtl;
+    private final boolean runOnAgent;
+    private final boolean storeReports;
+    private final int analyzeTimeout;
+    private final int gateTimeout;
+    private final int queryTimeout;
+    private final String containerCpus;
+    private final String containerMemory;
+
+    public BuildConfig(AnchoreBuilder builder, AnchoreBuilder.DescriptorImpl descriptor) {
+	this.name = builder.getName();
+	this.policyName = builder.getPolicyName();
+	this.bailOnFail = builder.getBailOnFail();
+	this.bailOnWarn = builder.getBailOnWarn();
+	this.bailOnPluginFail = builder.getBailOnPluginFail();
+	this.doAnalyze = builder.getDoAnalyze();
+	this.doGate = builder.getDoGate();
+	this.doQuery = builder.getDoQuery();
+	this.doCleanup = builder.getDoCleanup();
+	this.queries = new TreeMap<String, String>();
+	this.queries.put("query1", builder.getQuery1());
+	this.queries.put("query2", builder.getQuery2());
+	this.queries.put("query3", builder.getQuery3());
+	this.queries.put("query4", builder.getQuery4());
+	// builds configured before the workers option existed load with 0, which means serial
+	this.workers = (builder.getWorkers() > 1) ? builder.getWorkers() : 1;
+	this.batchStaging = builder.getBatchStaging();
+	this.captureJson = builder.getCaptureJson();
+	this.failFast = builder.getFailFast();
+
+	this.enabled = descriptor.getEnabled();
+	this.debug = descriptor.getDebug();
+	this.useSudo = descriptor.getUseSudo();
+	this.useSession = descriptor.getUseSession();
+	this.containerImageId = descriptor.getContainerImageId();
+	this.containerId = descriptor.getContainerId();
+	this.localVol = descriptor.getLocalVol();
+	this.modulesVol = descriptor.getModulesVol();
+	this.analysisCacheSize = descriptor.getAnalysisCacheSize();
+	this.analysisCacheTtl = descriptor.getAnalysisCacheTtl();
+	this.poolSize = (descriptor.getPoolSize() > 1) ? descriptor.getPoolSize() : 1;
+	this.deferCleanup = descriptor.getDeferCleanup();
+	this.gateCacheSize = descriptor.getGateCacheSize();
+	this.gateCacheTtl = descriptor.getGateCacheTtl();
+	this.runOnAgent = descriptor.getRunOnAgent();
+	this.storeReports = descriptor.getStoreReports();
+	this.analyzeTimeout = descriptor.getAnalyzeTimeout();
+	this.gateTimeout = descriptor.getGateTimeout();
+	this.queryTimeout = descriptor.getQueryTimeout();
+	this.containerCpus = descriptor.getContainerCpus();
+	this.containerMemory = descriptor.getContainerMemory();
+    }
+
+    public String getName() {
+	return(name);
+    }
+
+    public String getPolicyName() {
+	return(policyName);
+    }
+
+    public boolean getBailOnFail() {
+	return(bailOnFail);
+    }
+
+    public boolean getBailOnWarn() {
+	return(bailOnWarn);
+    }
+
+    public boolean getBailOnPluginFail() {
+	return(bailOnPluginFail);
+    }
+
+    public boolean getDoAnalyze() {
+	return(doAnalyze);
+    }
+
+    public boolean getDoGate() {
+	return(doGate);
+    }
+
+    public boolean getDoQuery() {
+	return(doQuery);
+    }
+
+    public boolean getDoCleanup() {
+	return(doCleanup);
+    }
+
+    public TreeMap<String, String> getQueries() {
+	return(queries);
+    }
+
+    public int getWorkers() {
+	return(workers);
+    }
+
+    public boolean getBatchStaging() {
+	return(batchStaging);
+    }
+
+    public boolean getCaptureJson() {
+	return(captureJson);
+    }
+
+    public boolean getFailFast() {
+	return(failFast);
+    }
+
+    public boolean getEnabled() {
+	return(enabled);
+    }
+
+    public boolean getDebug() {
+	return(debug);
+    }
+
+    public boolean getUseSudo() {
+	return(useSudo);
+    }
+
+    public boolean getUseSession() {
+	return(useSession);
+    }
+
+    public String getContainerImageId() {
+	return(containerImageId);
+    }
+
+    public String getContainerId() {
+	return(containerId);
+    }
+
+    public String getLocalVol() {
+	return(localVol);
+    }
+
+    public String getModulesVol() {
+	return(modulesVol);
+    }
+
+    public int getAnalysisCacheSize() {
+	return(analysisCacheSize);
+    }
+
+    public int getAnalysisCacheTtl() {
+	return(analysisCacheTtl);
+    }
+
+    public int getPoolSize() {
+	return(poolSize);
+    }
+
+    public boolean getDeferCleanup() {
+	return(deferCleanup);
+    }
+
+    public int getGateCacheSize() {
+	return(gateCacheSize);
+    }
+
+    public int getGateCacheTtl() {
+	return(gateCacheTtl);
+    }
+
+    public boolean getRunOnAgent() {
+	return(runOnAgent);
+    }
+
+    public boolean getStoreReports() {
+	return(storeReports);
+    }
+
+    public int getAnalyzeTimeout() {
+	return(analyzeTimeout);
+    }
+
+    public int getGateTimeout() {
+	return(gateTimeout);
+    }
+
+    public int getQueryTimeout() {
+	return(queryTimeout);
+    }
+
+    public String getContainerCpus() {
+	return(containerCpus);
+    }
+
+    public String getContainerMemory() {
+	return(containerMemory);
+    }
+
+    public void print(PrintStream logger) {
+	logger.println("[anchore][config][global] enabled: " + String.valueOf(enabled));
+	logger.println("[anchore][config][global] debug: " + String.valueOf(debug));
+	logger.println("[anchore][config][global] useSudo: " + String.valueOf(useSudo));
+	logger.println("[anchore][config][global] useSession: " + String.valueOf(useSession));
+	logger.println("[anchore][config][global] containerImageId: " + containerImageId);
+	logger.println("[anchore][config][global] containerId: " + containerId);
+	logger.println("[anchore][config][global] localVol: " + localVol);
+	logger.println("[anchore][config][global] modulesVol: " + modulesVol);
+	logger.println("[anchore][config][global] analysisCacheSize: " + String.valueOf(analysisCacheSize));
+	logger.println("[anchore][config][global] analysisCacheTtl: " + String.valueOf(analysisCacheTtl));
+	logger.println("[anchore][config][global] poolSize: " + String.valueOf(poolSize));
+	logger.println("[anchore][config][global] deferCleanup: " + String.valueOf(deferCleanup));
+	logger.println("[anchore][config][global] gateCacheSize: " + String.valueOf(gateCacheSize));
+	logger.println("[anchore][config][global] gateCacheTtl: " + String.valueOf(gateCacheTtl));
+	logger.println("[anchore][config][global] runOnAgent: " + String.valueOf(runOnAgent));
+	logger.println("[anchore][config][global] storeReports: " + String.valueOf(storeReports));
+	logger.println("[anchore][config][global] analyzeTimeout: " + String.valueOf(analyzeTimeout));
+	logger.println("[anchore][config][global] gateTimeout: " + String.valueOf(gateTimeout));
+	logger.println("[anchore][config][global] queryTimeout: " + String.valueOf(queryTimeout));
+	logger.println("[anchore][config][global] containerCpus: " + containerCpus);
+	logger.println("[anchore][config][global] containerMemory: " + containerMemory);
+
+	logger.println("[anchore][config][build] doAnalyze: " + String.valueOf(doAnalyze));
+	logger.println("[anchore][config][build] doGates: " + String.valueOf(doGate));
+	logger.println("[anchore][config][build] doQuery: " + String.valueOf(doQuery));
+	logger.println("[anchore][config][build] doCleanup: " + String.valueOf(doCleanup));
+	logger.println("[anchore][config][build] imageFile: " + name);
+	logger.println("[anchore][config][build] policyFile: " + policyName);
+	logger.println("[anchore][config][build] stopOnGateStop: " + String.valueOf(bailOnFail));
+	logger.println("[anchore][config][build] stopOnGateWarn: " + String.valueOf(bailOnWarn));
+	logger.println("[anchore][config][build] workers: " + String.valueOf(workers));
+	logger.println("[anchore][config][build] batchStaging: " + String.valueOf(batchStaging));
+	logger.println("[anchore][config][build] captureJson: " + String.valueOf(captureJson));
+	logger.println("[anchore][config][build] failFast: " + String.valueOf(failFast));
+    }
+}
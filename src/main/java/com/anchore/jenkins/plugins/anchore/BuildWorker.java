@@ -0,0 +1,1510 @@
+package com.anchore.jenkins.plugins.anchore;
+
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.TaskListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+
+/**
+ * Runs one Anchore scan: stages the build inputs into the anchore container, runs the analyzer, queries
+ * and gates, and cleans up afterwards.  A worker holds all the state of a single build step execution and
+ * is not shared, so any number of builds can run the same (shared) AnchoreBuilder concurrently.
+ */
+public class BuildWorker {
+    // written ahead of every captured report so the archived html picks up anchore.css
+    private static final byte[] REPORT_HEADER = "<link rel=\"stylesheet\" type=\"text/css\" href=\"anchore.css\">\n".getBytes(StandardCharsets.UTF_8);
+    // image IDs, names (repo/name:tag) and digests (name@sha256:...)
+    private static final Pattern IMAGE_ID = Pattern.compile("[A-Za-z0-9][A-Za-z0-9_.:/@-]*");
+    // Dockerfile copies in flight per worker while the image list is read
+    private static final int STAGING_LOOKAHEAD = 8;
+
+    private final BuildConfig config;
+    private final String euid;
+    private final Launcher launcher;
+    private final TaskListener listener;
+    private final FilePath anchoreWorkspace;
+    private final FilePath anchoreImageFile;
+    private final FilePath anchorePolicyFile;
+
+    private final String nodeName;
+    private final String containerId;
+    private final String containerImageId;
+    private final String localVol;
+    private final String modulesVol;
+    private final boolean debug;
+    private final boolean useSudo;
+    private final OutputStream anchoreLogStream;
+    // how long one anchore command of each phase may run, 0 for no limit
+    private final long analyzeTimeout;
+    private final long gateTimeout;
+    private final long queryTimeout;
+
+    private String targetImageFile;
+    private String targetPolicyFile;
+    // spilled to a file as the image list is read, only offsets and image ID fingerprints stay in memory
+    private final AnchoreStagedImages stagedImageLines;
+    private List<String> analyzeImageLines;
+    // set when the analyses are shared with the other scans of the node
+    private AnchoreAnalysisSharing analysisSharing;
+    private final List<String> targetImageShards = new ArrayList<String>();
+    // one image file per staged image, only in fail fast mode
+    private final List<String> targetImageFiles = new ArrayList<String>();
+    private String targetAnalyzeFile;
+    private final Map<String, String> imageDigests = new HashMap<String, String>();
+    private AnchoreAnalysisCache analysisCache;
+    private AnchoreGateCache gateCache;
+    private String gateCacheGeneration;
+    private final Map<String, String> dockerfileDigests = new HashMap<String, String>();
+    private boolean containerLaunched;
+    private boolean containerRunning;
+    private boolean containerHealthCached;
+    private final AnchoreCommandRunner runner;
+    private FilePath stagingDir;
+    private final List<String> oFiles = new ArrayList<String>();
+
+    private final TreeMap<String, String> queriesOutput = new TreeMap<String, String>();
+    private List<AnchoreGateResult> gateResults;
+    private int analyzerExitCode;
+    // set when the policy evaluation of some image did not complete, a plugin failure rather than a verdict
+    private boolean gateFailed;
+    private AnchoreCleanupQueue.Task cleanupTask;
+    // phase -> duration in milliseconds, in the order the phases finished
+    private final LinkedHashMap<String, Long> phaseTimings = new LinkedHashMap<String, Long>();
+
+    public BuildWorker(BuildConfig config, String euid, AnchoreContainerPool.Lease lease, FilePath workspace, Launcher launcher, TaskListener listener) {
+	// the leased pool slot decides which container (and data volume) this scan uses
+	this(config, euid, lease.getNodeName(), lease.getContainerId(), lease.getLocalVol(config.getLocalVol()), workspace, launcher, listener);
+    }
+
+    public BuildWorker(BuildConfig config, String euid, String nodeName, String containerId, String localVol, FilePath workspace, Launcher launcher, TaskListener listener) {
+	this.config = config;
+	this.euid = euid;
+	this.launcher = launcher;
+	this.listener = listener;
+	this.anchoreWorkspace = new FilePath(workspace, "AnchoreReport."+euid);
+	this.anchoreImageFile = new FilePath(workspace, config.getName());
+	this.anchorePolicyFile = new FilePath(workspace, config.getPolicyName());
+	// next to the report directory when the workspace is local to this JVM, in the temporary directory otherwise
+	this.stagedImageLines = new AnchoreStagedImages(workspace.isRemote() ? null : new File(workspace.getRemote(), "AnchoreReport."+euid+".images"));
+
+	this.nodeName = nodeName;
+	this.containerId = containerId;
+	this.containerImageId = config.getContainerImageId();
+	this.localVol = localVol;
+	this.modulesVol = config.getModulesVol();
+	this.debug = config.getDebug();
+	this.useSudo = config.getUseSudo();
+	this.anchoreLogStream = listener.getLogger();
+	this.analyzeTimeout = config.getAnalyzeTimeout() * 60000L;
+	this.gateTimeout = config.getGateTimeout() * 60000L;
+	this.queryTimeout = config.getQueryTimeout() * 60000L;
+	this.runner = new AnchoreCommandRunner(launcher, useSudo, containerId, euid, listener);
+    }
+
+    public String getEuid() {
+	return(euid);
+    }
+
+    public TreeMap<String, String> getQueriesOutput() {
+	return(queriesOutput);
+    }
+
+    public List<AnchoreGateResult> getGateResults() {
+	return(gateResults);
+    }
+
+    public int getAnalyzerExitCode() {
+	return(analyzerExitCode);
+    }
+
+    // set by cleanup() when the cleanup is deferred, the caller hands it to AnchoreCleanupQueue
+    public AnchoreCleanupQueue.Task getCleanupTask() {
+	return(cleanupTask);
+    }
+
+    /**
+     * Runs the scan up to and including the report index: setup, analyzer, gates and queries, and the
+     * report output.  Archiving the reports and cleaning up are left to the caller.
+     */
+    public Summary scan(FilePath analysisCacheFile, FilePath indexDir) throws IOException, InterruptedException {
+	if (!setup(analysisCacheFile)) {
+	    return(new Summary(this, Summary.SETUP_FAILED, 0, null));
+	}
+
+	if (debug) {
+	    config.print(listener.getLogger());
+	}
+
+	int exitCode = 0;
+	if (config.getFailFast() && config.getDoGate()) {
+	    // each image is analyzed and gated on its own, queries only run when no image was stopped
+	    exitCode = runAnalyzerAndGatesPerImage();
+	    if (analyzerExitCode != 0) {
+		listener.getLogger().println("[anchore][error] Anchore analyzer failed: check output above for details");
+		if (config.getBailOnPluginFail()) {
+		    return(new Summary(this, Summary.ANALYZER_FAILED, exitCode, null));
+		}
+	    }
+	    if (exitCode == 1 && config.getBailOnFail()) {
+		listener.getLogger().println("[anchore][info] skipping Anchore queries, the build fails on the STOP result.");
+	    } else {
+		runQueries();
+	    }
+	} else {
+	    if (config.getDoAnalyze()) {
+		exitCode = runAnalyzer();
+		if (exitCode != 0) {
+		    listener.getLogger().println("[anchore][error] Anchore analyzer failed: check output above for details");
+		    if (config.getBailOnPluginFail()) {
+			return(new Summary(this, Summary.ANALYZER_FAILED, exitCode, null));
+		    }
+		}
+	    }
+
+	    exitCode = runQueriesAndGates();
+	}
+
+	// prep output
+	if (!prepareReportOutput()) {
+	    return(new Summary(this, Summary.REPORT_FAILED, exitCode, null));
+	}
+
+	// large reports are served a page at a time from an index kept with the build
+	return(new Summary(this, Summary.OK, exitCode, indexReports(indexDir)));
+    }
+
+    /**
+     * Outcome of scan(), everything the build step needs from the worker to record the results.
+     */
+    public static class Summary implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	public static final int OK = 0;
+	public static final int SETUP_FAILED = 1;
+	public static final int ANALYZER_FAILED = 2;
+	public static final int REPORT_FAILED = 3;
+
+	private final int status;
+	private final int gateExitCode;
+	private final boolean containerRunning;
+	private final boolean gateFailed;
+	private final TreeMap<String, String> queriesOutput;
+	private final List<AnchoreGateResult> gateResults;
+	private final TreeMap<String, String> indexedReports;
+	private final LinkedHashMap<String, Long> phaseTimings;
+	private String logTail;
+
+	Summary(BuildWorker worker, int status, int gateExitCode, TreeMap<String, String> indexedReports) {
+	    this.status = status;
+	    this.gateExitCode = gateExitCode;
+	    this.containerRunning = worker.containerRunning;
+	    this.gateFailed = worker.gateFailed;
+	    this.queriesOutput = new TreeMap<String, String>(worker.getQueriesOutput());
+	    this.gateResults = worker.getGateResults();
+	    this.indexedReports = (indexedReports != null) ? indexedReports : new TreeMap<String, String>();
+	    this.phaseTimings = worker.getPhaseTimings();
+	}
+
+	public int getStatus() {
+	    return(status);
+	}
+
+	// 0 (GO), 1 (STOP) or 2 (WARN), or negative when the gates did not complete
+	public int getGateExitCode() {
+	    return(gateExitCode);
+	}
+
+	public boolean isContainerRunning() {
+	    return(containerRunning);
+	}
+
+	// the gate exit code is that of the images that were evaluated, negative when there are none
+	public boolean isGateFailed() {
+	    return(gateFailed);
+	}
+
+	public TreeMap<String, String> getQueriesOutput() {
+	    return(queriesOutput);
+	}
+
+	public List<AnchoreGateResult> getGateResults() {
+	    return(gateResults);
+	}
+
+	public TreeMap<String, String> getIndexedReports() {
+	    return(indexedReports);
+	}
+
+	public LinkedHashMap<String, Long> getPhaseTimings() {
+	    return(phaseTimings);
+	}
+
+	// the end of the scan log, when the scan ran on the agent with its log kept there
+	public String getLogTail() {
+	    return(logTail);
+	}
+
+	void setLogTail(String logTail) {
+	    this.logTail = logTail;
+	}
+    }
+
+    public synchronized void recordPhase(String phase, long startMillis) {
+	phaseTimings.put(phase, System.currentTimeMillis() - startMillis);
+    }
+
+    public synchronized LinkedHashMap<String, Long> getPhaseTimings() {
+	return(new LinkedHashMap<String, Long>(phaseTimings));
+    }
+
+    public int runAnalyzer() throws IOException, InterruptedException {
+	int exitCode = 0;
+	long start = System.currentTimeMillis();
+
+	if (analyzeImageLines.isEmpty() && (analysisSharing == null || !analysisSharing.isWaiting())) {
+	    listener.getLogger().println("[anchore][info] all images were found in the analysis cache, skipping Anchore Analyzer.");
+	    saveAnalysisCache();
+	    return(0);
+	}
+
+	listener.getLogger().println("[anchore][info][info] Running Anchore Analyzer:");
+
+	if (analyzeImageLines.isEmpty()) {
+	    listener.getLogger().println("[anchore][info] all images not found in the analysis cache are being analyzed by other builds.");
+	} else if (targetImageShards.size() > 1) {
+	    exitCode = runParallelAnalyzer();
+	} else {
+	    if (debug) {
+		exitCode = runAnchoreCmd(analyzeTimeout, anchoreLogStream, anchoreLogStream, "docker", "exec", containerId, "anchore", "--debug", "analyze", "--imagefile", targetAnalyzeFile);
+	    } else {
+		exitCode = runAnchoreCmd(analyzeTimeout, anchoreLogStream, anchoreLogStream, "docker", "exec", containerId, "anchore", "analyze", "--imagefile", targetAnalyzeFile);
+	    }
+	    if (exitCode == 0) {
+		cacheAnalyzedImages(analyzeImageLines);
+	    }
+	    completeAnalysisFlights(analyzeImageLines, exitCode == 0);
+	}
+
+	// only wait for the other builds once this one's own analyses are done and released to them
+	int awaitedExitCode = awaitAnalysisFlights();
+	if (exitCode == 0) {
+	    exitCode = awaitedExitCode;
+	}
+	saveAnalysisCache();
+	recordPhase("analyze", start);
+	analyzerExitCode = exitCode;
+
+	listener.getLogger().println("[anchore][info] Done Running Anchore Analyzer: exitcode="+exitCode);
+	return(exitCode);
+    }
+
+    // returns the gate exit code (0 when gates are not run)
+    public int runQueriesAndGates() throws IOException, InterruptedException {
+	return(runQueriesAndGates(config.getDoGate()));
+    }
+
+    public void runQueries() throws IOException, InterruptedException {
+	runQueriesAndGates(false);
+    }
+
+    private int runQueriesAndGates(boolean runGates) throws IOException, InterruptedException {
+	int exitCode = 0;
+	final TreeMap<String, String> queries = config.getQueries();
+	final boolean captureJson = config.getCaptureJson();
+
+	// queries and gates only read the analyzed data, so they run as one concurrent stage
+	List<String> stageNames = new ArrayList<String>();
+	List<Callable<Integer>> stageTasks = new ArrayList<Callable<Integer>>();
+
+	if (config.getDoQuery()) {
+	    for (Map.Entry<String, String> entry : queries.entrySet()) {
+		final String anchoreQuery = entry.getValue();
+		if (anchoreQuery != null && !anchoreQuery.isEmpty()) {
+		    listener.getLogger().println("[anchore][info] " + entry.getKey() + " : " + entry.getValue());
+
+		    final FilePath queryOutputFile = new FilePath(anchoreWorkspace, entry.getKey() + "_format.html");
+
+		    listener.getLogger().println("[anchore][info] Running Anchore Query: " + entry.getValue());
+
+		    final String queryName = entry.getKey();
+		    stageNames.add(queryName);
+		    stageTasks.add(new Callable<Integer>() {
+			    public Integer call() throws Exception {
+				long start = System.currentTimeMillis();
+				try {
+				    if (debug) {
+					return(runAnchoreReportCmd(queryOutputFile, queryTimeout, "docker", "exec", containerId, "anchore", "--debug", "--html", "query", "--imagefile", targetImageFile, anchoreQuery));
+				    }
+				    return(runAnchoreReportCmd(queryOutputFile, queryTimeout, "docker", "exec", containerId, "anchore", "--html", "query", "--imagefile", targetImageFile, anchoreQuery));
+				} finally {
+				    recordPhase(queryName, start);
+				}
+			    }
+			});
+		}
+	    }
+	}
+
+	if (runGates) {
+	    final FilePath gatesOutputFile;
+	    if (captureJson) {
+		// the html gate report is rendered by AnchoreAction from the parsed json instead
+		gatesOutputFile = new FilePath(anchoreWorkspace, "anchore_gates.json");
+	    } else {
+		gatesOutputFile = new FilePath(anchoreWorkspace, "anchore_gates_format.html");
+	    }
+	    final List<String> gateCmd = buildGateCmd(targetImageFile, captureJson);
+	    final byte[] gateHeader = captureJson ? null : REPORT_HEADER;
+	    final String gateKey = gateCacheKey(stagedImageLines, gateHeader);
+
+	    listener.getLogger().println("[anchore][info] Running Anchore Gates:");
+
+	    stageNames.add("anchore_gates");
+	    stageTasks.add(new Callable<Integer>() {
+		    public Integer call() throws Exception {
+			long start = System.currentTimeMillis();
+			try {
+			    return(runGateCmd(gateKey, gatesOutputFile, gateHeader, gateCmd));
+			} finally {
+			    recordPhase("gate", start);
+			}
+		    }
+		});
+	}
+
+	// results come back in submission order, so the report ordering does not depend on completion order
+	List<Integer> stageExitCodes = runParallel(stageTasks, config.getWorkers());
+	for (int i=0; i<stageNames.size(); i++) {
+	    String stageName = stageNames.get(i);
+	    int stageExitCode = stageExitCodes.get(i);
+	    if (stageName.equals("anchore_gates")) {
+		exitCode = stageExitCode;
+		listener.getLogger().println("[anchore][info] Done Running Anchore Gates: exitcode="+exitCode);
+		if (exitCode < 0) {
+		    listener.getLogger().println("[anchore][error] Anchore gates did not complete: check output above for details");
+		    gateFailed = true;
+		}
+		if (captureJson) {
+		    gateResults = parseGateResults(new FilePath(anchoreWorkspace, "anchore_gates.json"));
+		}
+	    } else {
+		FilePath queryOutputFile = new FilePath(anchoreWorkspace, stageName + "_format.html");
+		if (hasReportOutput(queryOutputFile)) {
+		    queriesOutput.put(stageName, queries.get(stageName));
+		}
+		listener.getLogger().println("[anchore][info] Done Running Anchore Query ("+stageName+"): exitcode="+stageExitCode);
+	    }
+	}
+	return(exitCode);
+    }
+
+    // hash of everything a gate evaluation of the given images depends on, null when it cannot be cached
+    // the cached output is the output file as written, so whether it starts with the report header is part of the key
+    private String gateCacheKey(List<String> imageLines, byte[] header) throws IOException, InterruptedException {
+	if (gateCache == null) {
+	    return(null);
+	}
+	if (gateCacheGeneration == null) {
+	    String policyDigest = anchorePolicyFile.exists() ? anchorePolicyFile.digest() : "default";
+	    gateCacheGeneration = getContainerImageDigest() + "/" + policyDigest + "/" + (config.getCaptureJson() ? "json" : "html") + "/" + debug;
+	}
+	List<String> parts = new ArrayList<String>();
+	parts.add(gateCacheGeneration);
+	parts.add((header != null) ? new String(header, StandardCharsets.UTF_8) : "no header");
+	for (String imageLine : imageLines) {
+	    String imgId = imageLine.split(" ")[0];
+	    String digest = imageDigests.get(imgId);
+	    if (digest == null) {
+		return(null);
+	    }
+	    parts.add(digest);
+	    parts.add(dockerfileDigests.containsKey(imgId) ? dockerfileDigests.get(imgId) : "none");
+	}
+	return(AnchoreGateCache.key(parts));
+    }
+
+    private int runGateCmd(String gateKey, FilePath outputFile, byte[] header, List<String> gateCmd) throws IOException, InterruptedException {
+	if (gateKey == null) {
+	    return(runAnchoreOutputCmd(outputFile, header, gateTimeout, gateCmd.toArray(new String[gateCmd.size()])));
+	}
+
+	// a scan evaluating the same images and policy at the same time hands its result over through the cache;
+	// a waiter whose owner failed takes the evaluation over, one whose owner takes too long runs it alongside
+	String flightKey = AnchoreScanCoordinator.gateKey(nodeName, gateKey);
+	long deadline = System.currentTimeMillis() + AnchoreScanCoordinator.FLIGHT_TIMEOUT;
+	boolean owner = false;
+	while (true) {
+	    try {
+		Integer cachedExitCode = gateCache.get(gateKey, outputFile);
+		if (cachedExitCode != null) {
+		    listener.getLogger().println("[anchore][info] images and policy are unchanged, reusing cached policy evaluation: exitcode=" + cachedExitCode);
+		    return(cachedExitCode);
+		}
+	    } catch (IOException e) {
+		listener.getLogger().println("[anchore][warn] failed to read gate result cache: " + e.toString());
+	    }
+	    AnchoreScanCoordinator.Flight flight = AnchoreScanCoordinator.join(flightKey);
+	    if (flight == null) {
+		owner = true;
+		break;
+	    }
+	    listener.getLogger().println("[anchore][info] the same images and policy are being evaluated by another build, waiting for its result.");
+	    if (!flight.await(Math.max(0, deadline - System.currentTimeMillis())) && System.currentTimeMillis() >= deadline) {
+		listener.getLogger().println("[anchore][warn] the other build did not finish its policy evaluation in time, running it here.");
+		break;
+	    }
+	}
+
+	boolean stored = false;
+	try {
+	    int exitCode = runAnchoreOutputCmd(outputFile, header, gateTimeout, gateCmd.toArray(new String[gateCmd.size()]));
+
+	    // only GO (0), STOP (1) and WARN (2) with some output are results, anything else (including a
+	    // command that timed out) is an error
+	    if (exitCode >= 0 && exitCode <= 2 && outputFile.length() > ((header != null) ? header.length : 0)) {
+		try {
+		    gateCache.put(gateKey, outputFile, exitCode);
+		    stored = true;
+		} catch (IOException e) {
+		    listener.getLogger().println("[anchore][warn] failed to update gate result cache: " + e.toString());
+		}
+	    }
+	    return(exitCode);
+	} finally {
+	    if (owner) {
+		AnchoreScanCoordinator.complete(flightKey, stored);
+	    }
+	}
+    }
+
+    private List<String> buildGateCmd(String imageFile, boolean json) throws IOException, InterruptedException {
+	List<String> gateCmd = new ArrayList<String>();
+
+	gateCmd.add("docker");
+	gateCmd.add("exec");
+	gateCmd.add(containerId);
+	gateCmd.add("anchore");
+	if (debug) {
+	    gateCmd.add("--debug");
+	}
+	gateCmd.add(json ? "--json" : "--html");
+	gateCmd.add("gate");
+	if (anchorePolicyFile.exists()) {
+	    gateCmd.add("--policy");
+	    gateCmd.add(targetPolicyFile);
+	}
+	gateCmd.add("--imagefile");
+	gateCmd.add(imageFile);
+	return(gateCmd);
+    }
+
+    /**
+     * Fail fast mode, see AnchoreFailFastScan.  Returns the combined gate exit code of the images that were
+     * evaluated, their results make up the (possibly partial) gate report.
+     */
+    public int runAnalyzerAndGatesPerImage() throws IOException, InterruptedException {
+	long start = System.currentTimeMillis();
+	final boolean captureJson = config.getCaptureJson();
+	final int images = targetImageFiles.size();
+	final Set<String> toAnalyze = new HashSet<String>();
+	if (config.getDoAnalyze()) {
+	    toAnalyze.addAll(analyzeImageLines);
+	}
+
+	if (images == 0) {
+	    return(0);
+	}
+	listener.getLogger().println("[anchore][info] Running Anchore Analyzer and Gates on " + images + " images with " + config.getWorkers() + " workers (fail fast):");
+
+	final List<List<String>> gateCmds = new ArrayList<List<String>>();
+	final List<String> gateKeys = new ArrayList<String>();
+	for (int i=0; i<images; i++) {
+	    gateCmds.add(buildGateCmd(targetImageFiles.get(i), captureJson));
+	    gateKeys.add(gateCacheKey(Collections.singletonList(stagedImageLines.get(i)), null));
+	}
+
+	AnchoreFailFastScan scan = new AnchoreFailFastScan(getInputImages(), config.getWorkers(), config.getBailOnFail(), new AnchoreFailFastScan.Steps() {
+		public int analyze(int image) throws IOException, InterruptedException {
+		    String imageLine = stagedImageLines.get(image);
+		    if (!toAnalyze.contains(imageLine)) {
+			return(0);
+		    }
+		    int exitCode;
+		    if (debug) {
+			exitCode = runAnchoreCmd(analyzeTimeout, anchoreLogStream, anchoreLogStream, "docker", "exec", containerId, "anchore", "--debug", "analyze", "--imagefile", targetImageFiles.get(image));
+		    } else {
+			exitCode = runAnchoreCmd(analyzeTimeout, anchoreLogStream, anchoreLogStream, "docker", "exec", containerId, "anchore", "analyze", "--imagefile", targetImageFiles.get(image));
+		    }
+		    if (exitCode == 0) {
+			// the analysis is good whatever the gates make of it, and even if they get cancelled
+			cacheAnalyzedImages(Collections.singletonList(imageLine));
+		    }
+		    return(exitCode);
+		}
+
+		public int gate(int image) throws IOException, InterruptedException {
+		    return(runGateCmd(gateKeys.get(image), gateOutputFile(image, captureJson), null, gateCmds.get(image)));
+		}
+
+		public void cancel() {
+		    runner.cancelAll();
+		}
+	    }, listener);
+	int exitCode = scan.run();
+	saveAnalysisCache();
+	if (scan.isGateFailed()) {
+	    gateFailed = true;
+	}
+	if (analyzerExitCode == 0) {
+	    analyzerExitCode = scan.getAnalyzerExitCode();
+	}
+
+	List<FilePath> gateOutputFiles = new ArrayList<FilePath>();
+	for (int i=0; i<images; i++) {
+	    FilePath gateOutputFile = gateOutputFile(i, captureJson);
+	    if (scan.isEvaluated(i)) {
+		gateOutputFiles.add(gateOutputFile);
+	    } else if (gateOutputFile.exists()) {
+		gateOutputFile.delete();
+	    }
+	}
+
+	if (captureJson) {
+	    // the per image json output is archived as is, the parsed results are combined for the report page
+	    gateResults = new ArrayList<AnchoreGateResult>();
+	    for (FilePath gateOutputFile : gateOutputFiles) {
+		List<AnchoreGateResult> imageResults = parseGateResults(gateOutputFile);
+		if (imageResults != null) {
+		    gateResults.addAll(imageResults);
+		}
+	    }
+	} else {
+	    mergeReports(new FilePath(anchoreWorkspace, "anchore_gates_format.html"), gateOutputFiles);
+	}
+
+	recordPhase("analyze_gate", start);
+	listener.getLogger().println("[anchore][info] Done Running Anchore Analyzer and Gates: exitcode=" + exitCode + (scan.isStopped() ? " (stopped early)" : ""));
+	return(exitCode);
+    }
+
+    private FilePath gateOutputFile(int image, boolean json) {
+	return(new FilePath(anchoreWorkspace, "anchore_gates." + image + (json ? ".json" : ".html")));
+    }
+
+    private static void mergeReports(FilePath reportFile, List<FilePath> parts) throws IOException, InterruptedException {
+	OutputStream outputStream = reportFile.write();
+	try {
+	    outputStream.write(REPORT_HEADER);
+	    byte[] buf = new byte[8192];
+	    for (FilePath part : parts) {
+		InputStream inputStream = part.read();
+		try {
+		    int n;
+		    while ((n = inputStream.read(buf)) >= 0) {
+			outputStream.write(buf, 0, n);
+		    }
+		} finally {
+		    inputStream.close();
+		}
+	    }
+	} finally {
+	    outputStream.close();
+	}
+	for (FilePath part : parts) {
+	    part.delete();
+	}
+    }
+
+    public int runParallelAnalyzer() throws IOException, InterruptedException {
+	int exitCode = 0;
+	List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+
+	listener.getLogger().println("[anchore][info] analyzing " + analyzeImageLines.size() + " images in " + targetImageShards.size() + " shards with " + config.getWorkers() + " workers");
+	for (final String shardFile : targetImageShards) {
+	    final String shardPhase = "analyze_shard" + tasks.size();
+	    tasks.add(new Callable<Integer>() {
+		    public Integer call() {
+			long start = System.currentTimeMillis();
+			try {
+			    if (debug) {
+				return(runAnchoreCmd(analyzeTimeout, anchoreLogStream, anchoreLogStream, "docker", "exec", containerId, "anchore", "--debug", "analyze", "--imagefile", shardFile));
+			    }
+			    return(runAnchoreCmd(analyzeTimeout, anchoreLogStream, anchoreLogStream, "docker", "exec", containerId, "anchore", "analyze", "--imagefile", shardFile));
+			} finally {
+			    recordPhase(shardPhase, start);
+			}
+		    }
+		});
+	}
+
+	List<Integer> exitCodes = runParallel(tasks, config.getWorkers());
+	for (int i=0; i<exitCodes.size(); i++) {
+	    int shardExitCode = exitCodes.get(i);
+	    List<String> shardImageLines = new ArrayList<String>();
+	    for (int j=i; j<analyzeImageLines.size(); j+=targetImageShards.size()) {
+		shardImageLines.add(analyzeImageLines.get(j));
+	    }
+
+	    listener.getLogger().println("[anchore][info] Done Running Anchore Analyzer on shard " + i + ": exitcode=" + shardExitCode);
+	    if (shardExitCode != 0) {
+		for (String shardImageLine : shardImageLines) {
+		    listener.getLogger().println("[anchore][error] analysis did not complete for image: " + shardImageLine.split(" ")[0]);
+		}
+		if (exitCode == 0) {
+		    exitCode = shardExitCode;
+		}
+	    } else {
+		cacheAnalyzedImages(shardImageLines);
+	    }
+	    completeAnalysisFlights(shardImageLines, shardExitCode == 0);
+	}
+	return(exitCode);
+    }
+
+    private void completeAnalysisFlights(List<String> imageLines, boolean succeeded) throws IOException, InterruptedException {
+	if (analysisSharing != null) {
+	    analysisSharing.complete(imageLines, succeeded);
+	}
+    }
+
+    // waits for the analyses done by other scans, and analyzes the images they did not finish itself
+    private int awaitAnalysisFlights() throws IOException, InterruptedException {
+	if (analysisSharing == null) {
+	    return(0);
+	}
+	List<String> importedImageLines = new ArrayList<String>();
+	List<String> retryImageLines = analysisSharing.await(importedImageLines);
+	cacheAnalyzedImages(importedImageLines);
+	if (retryImageLines.isEmpty()) {
+	    return(0);
+	}
+
+	String retryFile = targetImageFile + ".retry";
+	int exitCode = stageImageFile(new FilePath(anchoreWorkspace, "staged_images."+euid+".retry"), retryImageLines, retryFile);
+	if (exitCode == 0) {
+	    if (debug) {
+		exitCode = runAnchoreCmd(analyzeTimeout, anchoreLogStream, anchoreLogStream, "docker", "exec", containerId, "anchore", "--debug", "analyze", "--imagefile", retryFile);
+	    } else {
+		exitCode = runAnchoreCmd(analyzeTimeout, anchoreLogStream, anchoreLogStream, "docker", "exec", containerId, "anchore", "analyze", "--imagefile", retryFile);
+	    }
+	}
+	if (exitCode == 0) {
+	    cacheAnalyzedImages(retryImageLines);
+	}
+	return(exitCode);
+    }
+
+    // called from the worker threads in fail fast mode
+    private synchronized void cacheAnalyzedImages(List<String> imageLines) {
+	if (analysisCache == null) {
+	    return;
+	}
+	for (String imageLine : imageLines) {
+	    String imgId = imageLine.split(" ")[0];
+	    String digest = imageDigests.get(imgId);
+	    if (digest != null) {
+		analysisCache.put(digest);
+	    }
+	}
+    }
+
+    private synchronized void saveAnalysisCache() {
+	if (analysisCache == null) {
+	    return;
+	}
+	try {
+	    analysisCache.save();
+	} catch (Exception e) {
+	    listener.getLogger().println("[anchore][warn] failed to save analysis cache: " + e.toString());
+	}
+    }
+
+    // looks up the image IDs of all images with a single 'docker inspect', falling back to one inspect per
+    // image when some image cannot be inspected
+    private void inspectImages(List<String> imgIds) {
+	if (imgIds.isEmpty()) {
+	    return;
+	}
+
+	List<String> cmd = new ArrayList<String>();
+	cmd.add("docker");
+	cmd.add("inspect");
+	cmd.add("-f");
+	cmd.add("{{.Id}}");
+	cmd.addAll(imgIds);
+
+	ByteArrayOutputStream inspectStream = new ByteArrayOutputStream();
+	int exitCode = AnchoreCommandRunner.launchCmd(launcher, AnchoreCommandRunner.buildArgs(useSudo, cmd), inspectStream, anchoreLogStream);
+	String[] lines = new String(inspectStream.toByteArray(), StandardCharsets.UTF_8).split("\n");
+	if (exitCode == 0 && lines.length == imgIds.size()) {
+	    // docker inspect prints one line per argument, in argument order
+	    for (int i=0; i<lines.length; i++) {
+		String digest = lines[i].trim();
+		if (!digest.isEmpty()) {
+		    imageDigests.put(imgIds.get(i), digest);
+		}
+	    }
+	    return;
+	}
+
+	for (String imgId : imgIds) {
+	    String digest = getImageDigest(imgId);
+	    if (digest != null) {
+		imageDigests.put(imgId, digest);
+	    }
+	}
+    }
+
+    public String getImageDigest(String imgId) {
+	ByteArrayOutputStream digestStream = new ByteArrayOutputStream();
+	int exitCode = runAnchoreCmd(digestStream, anchoreLogStream, "docker", "inspect", "-f", "{{.Id}}", imgId);
+	if (exitCode != 0) {
+	    return(null);
+	}
+	String digest = new String(digestStream.toByteArray(), StandardCharsets.UTF_8).trim();
+	if (digest.isEmpty()) {
+	    return(null);
+	}
+	return(digest);
+    }
+
+    public String getContainerImageDigest() {
+	ByteArrayOutputStream digestStream = new ByteArrayOutputStream();
+	int exitCode = runAnchoreCmd(digestStream, anchoreLogStream, "docker", "inspect", "-f", "{{.Image}}", containerId);
+	if (exitCode != 0) {
+	    return(null);
+	}
+	return(new String(digestStream.toByteArray(), StandardCharsets.UTF_8).trim());
+    }
+
+    public static List<Integer> runParallel(List<Callable<Integer>> tasks, int workers) throws InterruptedException {
+	List<Integer> exitCodes = new ArrayList<Integer>();
+	if (tasks.isEmpty()) {
+	    return(exitCodes);
+	}
+
+	ExecutorService pool = Executors.newFixedThreadPool(Math.min(workers, tasks.size()), new NamingThreadFactory(new DaemonThreadFactory(), "Anchore worker"));
+	try {
+	    // invokeAll returns futures in task order, so callers can map exit codes back to their inputs
+	    for (Future<Integer> future : pool.invokeAll(tasks)) {
+		try {
+		    exitCodes.add(future.get());
+		} catch (ExecutionException e) {
+		    exitCodes.add(1);
+		}
+	    }
+	} finally {
+	    pool.shutdownNow();
+	}
+	return(exitCodes);
+    }
+
+    public boolean cleanup() {
+	int exitCode=0;
+	long start = System.currentTimeMillis();
+
+	if (config.getDeferCleanup()) {
+	    // the verdict is known at this point, the rest is done by the cleanup queue after the build step returns
+	    List<String> deleteImages = new ArrayList<String>();
+	    if (config.getDoCleanup()) {
+		deleteImages.addAll(getInputImages());
+		for (String imgId : deleteImages) {
+		    if (analysisCache != null && imageDigests.containsKey(imgId)) {
+			analysisCache.remove(imageDigests.get(imgId));
+		    }
+		}
+		saveAnalysisCache();
+	    }
+	    cleanupTask = new AnchoreCleanupQueue.Task(nodeName, containerId, useSudo, euid, anchoreWorkspace.getRemote(), deleteImages);
+	    listener.getLogger().println("[anchore][info] cleanup queued, it will run in the background.");
+	    recordPhase("cleanup", start);
+	    return(true);
+	}
+
+	// clean up the workspace items (as they should have been archived)
+	try {
+	    anchoreWorkspace.deleteRecursive();
+	} catch (Exception e) {
+	    e.printStackTrace();
+	    listener.getLogger().println("Exception:" + e.toString());
+	    return(false);
+	}
+
+	// clean up the build in anchore (if cleanup is set in config)
+	exitCode = runAnchoreCmd(anchoreLogStream, anchoreLogStream, "docker", "exec", containerId, "rm", "-rf", "/root/anchore."+euid);
+	if (exitCode != 0) {
+	    AnchoreContainerHealth.invalidate(nodeName, containerId);
+	    listener.getLogger().println("[anchore][error] failed to cleanup build artifacts inside Anchore container.");
+	    return(false);
+	}
+
+	if (config.getDoCleanup()) {
+	    for (String imgId : getInputImages()) {
+		if (debug) {
+		    exitCode = runAnchoreCmd(anchoreLogStream, anchoreLogStream, "docker", "exec", containerId, "anchore", "--debug", "toolbox", "--image", imgId, "delete", "--dontask");
+		} else {
+		    exitCode = runAnchoreCmd(anchoreLogStream, anchoreLogStream, "docker", "exec", containerId, "anchore", "toolbox", "--image", imgId, "delete", "--dontask");
+		}
+
+		if (analysisCache != null && imageDigests.containsKey(imgId)) {
+		    analysisCache.remove(imageDigests.get(imgId));
+		}
+	    }
+	    saveAnalysisCache();
+	}
+
+	recordPhase("cleanup", start);
+	return(true);
+    }
+
+    public static boolean hasReportOutput(FilePath reportFile) throws IOException, InterruptedException {
+	return(reportFile.exists() && reportFile.length() > REPORT_HEADER.length);
+    }
+
+    public boolean prepareReportOutput() {
+	long start = System.currentTimeMillis();
+	try {
+	    writeReportOutput(anchoreWorkspace, oFiles);
+	} catch (RuntimeException e) {
+	    throw e;
+	} catch (Exception e) {
+	    e.printStackTrace();
+	    listener.getLogger().println("Exception:" + e.toString());	    
+	    return(false);
+	}
+	
+	recordPhase("report_prepare", start);
+	return(true);
+    }
+
+    // converts the html reports into AnchoreReportIndex form and copies them to indexDir (on the master),
+    // returns the names and titles of the reports that were indexed
+    public TreeMap<String, String> indexReports(FilePath indexDir) {
+	TreeMap<String, String> reports = new TreeMap<String, String>();
+	long start = System.currentTimeMillis();
+
+	for (String oFile : oFiles) {
+	    FilePath reportFile = new FilePath(anchoreWorkspace, oFile + "_format.html");
+	    try {
+		if (!hasReportOutput(reportFile)) {
+		    continue;
+		}
+		int rows = reportFile.act(new AnchoreReportIndex.Writer(oFile));
+		if (rows < 0) {
+		    continue;
+		}
+		for (String ext : new String[] {".rows", ".idx"}) {
+		    // moved out of the report directory, so it is not archived along with the html
+		    FilePath indexFile = new FilePath(anchoreWorkspace, oFile + ext);
+		    indexFile.copyTo(new FilePath(indexDir, oFile + ext));
+		    indexFile.delete();
+		}
+		reports.put(oFile, oFile.equals("anchore_gates") ? "Anchore Policy Evaluation Report" : "Anchore Image Query Report (" + config.getQueries().get(oFile) + ")");
+	    } catch (Exception e) {
+		listener.getLogger().println("[anchore][warn] failed to index report " + oFile + ", it is only available as archived html: " + e.toString());
+	    }
+	}
+
+	recordPhase("report_index", start);
+	return(reports);
+    }
+
+    public static void writeReportOutput(FilePath reportDir, List<String> reportNames) throws IOException, InterruptedException {
+	BufferedWriter bw;
+
+	// CSS
+	FilePath anchoreCss = new FilePath(reportDir, "anchore.css");
+	bw = new BufferedWriter(new OutputStreamWriter(anchoreCss.write(),StandardCharsets.UTF_8));
+	try {
+	    // anchore colors: main:blue #3c7fe2 main:grey #d9e1e2 main:yellow #EEDC00 sec:blue #5BC2E7 sec:green #00B388 sec:navygrey #425563
+	    String css = "table {\n"
+		+"    border-collapse: collapse;\n"
+		+"    width: 100%;\n"
+		+"}\n"
+		+"th, td {\n"
+		+"    text-align: left;\n"
+		+"    padding: 8px;\n"
+		+"    transition: all 0.3s;\n"
+		+"}\n"
+		+"tr:nth-child(even){background-color: #eaf2f3}\n"
+		+"th {\n"
+		+"    background-color: #3c7fe2;;\n"
+		+"    color: #EEDC00;\n"
+		+"}\n"
+		+"tr td:hover { background: #5BC2E7; color: #FFFFFF; }\n";
+
+	    bw.write(css);
+	} finally {
+	    bw.close();
+	}
+
+	// reports were written with the stylesheet header already in place, only drop the ones anchore left empty
+	for (String reportName : reportNames) {
+	    FilePath reportFile = new FilePath(reportDir, reportName + "_format.html");
+	    if (reportFile.exists() && !hasReportOutput(reportFile)) {
+		reportFile.delete();
+	    }
+	}
+    }
+
+    public boolean setup(FilePath analysisCacheFile) {
+	try {
+	    int exitCode = 0;
+	    boolean rc = false;
+	    long start = System.currentTimeMillis();
+	    // set up output directory
+	    if (!anchoreWorkspace.exists()) {
+		anchoreWorkspace.mkdirs();
+	    }
+
+	    rc = runAnchoreContainer();
+	    if (!rc) {
+		listener.getLogger().println("[anchore][error] failed to (re)launch backing Anchore container.");
+		return(false);
+	    }
+
+	    runner.setSession(null);
+	    if (config.getUseSession()) {
+		try {
+		    runner.setSession(AnchoreSession.open(launcher, useSudo, containerId));
+		    listener.getLogger().println("[anchore][info] opened persistent command session to anchore container");
+		} catch (Exception e) {
+		    listener.getLogger().println("[anchore][warn] failed to open persistent command session, running each command separately: " + e.toString());
+		}
+	    }
+	    recordPhase("container_startup", start);
+	    start = System.currentTimeMillis();
+
+	    // set up input
+	    if (!anchoreImageFile.exists()) {
+		listener.getLogger().println("[anchore][error] cannot locate anchore image list file (needs to be created prior to anchore plugin build step): " + anchoreImageFile.getRemote());
+		return(false);
+	    }
+	    
+	    if (!anchorePolicyFile.exists()) {
+		listener.getLogger().println("[anchore][warn] policy file does not exist ("+ anchorePolicyFile.getRemote()+"), using anchore default policy.");
+	    }
+
+	    // gate results do not depend on the container that computed them, all containers of the node share them
+	    if (analysisCacheFile != null && config.getGateCacheSize() > 0) {
+		gateCache = new AnchoreGateCache(new FilePath(analysisCacheFile.getParent(), "gate-cache"), config.getGateCacheSize(), config.getGateCacheTtl() * 3600L * 1000L);
+	    }
+
+	    oFiles.add("anchore_gates");
+	    oFiles.add("query1");
+	    oFiles.add("query2");
+	    oFiles.add("query3");
+	    oFiles.add("query4");
+
+	    //	    gatesOutputFile = new File(htmlDir, "anchore_gates.html");
+
+	    // stage the input files
+	    FilePath stagedImageFile;
+	    stagingDir = null;
+	    if (config.getBatchStaging()) {
+		// everything is collected locally first and copied into the container with a single docker cp below
+		stagingDir = new FilePath(anchoreWorkspace, "staging");
+		stagingDir.mkdirs();
+		stagedImageFile = new FilePath(stagingDir, "images");
+	    } else {
+		exitCode = runAnchoreCmd(anchoreLogStream, anchoreLogStream, "docker", "exec", containerId, "mkdir", "-p", "/root/anchore."+euid);
+		if (exitCode != 0 && recoverAnchoreContainer()) {
+		    exitCode = runAnchoreCmd(anchoreLogStream, anchoreLogStream, "docker", "exec", containerId, "mkdir", "-p", "/root/anchore."+euid);
+		}
+		if (exitCode != 0) {
+		    listener.getLogger().println("[anchore][error] failed to create build artifact directory inside Anchore container.");
+		    return(false);
+		}
+		stagedImageFile = new FilePath(anchoreWorkspace, "staged_images."+euid);
+	    }
+	    // Dockerfiles are copied in the background, a bounded number of entries ahead of the staged image list
+	    ExecutorService stagingPool = Executors.newFixedThreadPool(config.getWorkers(), new NamingThreadFactory(new DaemonThreadFactory(), "Anchore staging"));
+	    BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(stagedImageFile.write(), StandardCharsets.UTF_8));
+	    try {
+		BufferedReader br = new BufferedReader(new InputStreamReader(anchoreImageFile.read(), StandardCharsets.UTF_8));
+		try {
+		    // generated lists often name an image more than once, it is staged and analyzed once
+		    ArrayDeque<StagedImage> pending = new ArrayDeque<StagedImage>();
+		    int lookahead = STAGING_LOOKAHEAD * config.getWorkers();
+		    int lineNumber = 0;
+		    int duplicates = 0;
+		    String line = null;
+		    try {
+			while ((line = br.readLine()) != null) {
+			    lineNumber++;
+			    String[] kv = parseImageLine(line);
+			    if (kv.length == 0) {
+				continue;
+			    }
+			    String imgId = kv[0];
+			    if (!isValidImageId(imgId)) {
+				listener.getLogger().println("[anchore][warn] skipping invalid image on line " + lineNumber + " of the image list file: " + imgId);
+				continue;
+			    }
+			    if (stagedImageLines.containsImage(imgId) || isPending(pending, imgId)) {
+				duplicates++;
+				continue;
+			    }
+
+			    StagedImage stagedImage = new StagedImage(imgId, (kv.length > 1) ? kv[1] : null);
+			    if (stagedImage.dfile != null) {
+				stagedImage.copy = stagingPool.submit(stagedImage);
+			    }
+			    pending.addLast(stagedImage);
+			    if (pending.size() >= lookahead) {
+				writeStagedImage(pending.removeFirst(), bw);
+			    }
+			}
+			while (!pending.isEmpty()) {
+			    writeStagedImage(pending.removeFirst(), bw);
+			}
+		    } finally {
+			stagingPool.shutdownNow();
+		    }
+		    if (duplicates > 0) {
+			listener.getLogger().println("[anchore][info] skipped " + duplicates + " duplicate entries in the image list file.");
+		    }
+		} finally {
+		    br.close();
+		}
+	    } finally {
+		bw.close();
+	    }
+
+	    targetImageFile = "/root/anchore."+euid+"/images";
+	    if (stagingDir == null) {
+		exitCode = runAnchoreCmd(anchoreLogStream, anchoreLogStream,"docker", "cp", stagedImageFile.getRemote(), containerId+":"+targetImageFile);
+	    }
+
+	    analyzeImageLines = stagedImageLines;
+	    targetAnalyzeFile = targetImageFile;
+	    if (analysisCacheFile != null && config.getAnalysisCacheSize() > 0) {
+		analyzeImageLines = lookupAnalysisCache(analysisCacheFile);
+	    }
+
+	    // images analyzed by a concurrent scan are imported into this scan's container instead of analyzed again
+	    // (fail fast mode gates each image right after analyzing it, so it cannot wait for the others)
+	    boolean shareAnalysis = analysisCacheFile != null && !(config.getFailFast() && config.getDoGate());
+	    if ((gateCache != null || shareAnalysis) && imageDigests.isEmpty()) {
+		List<String> imgIds = new ArrayList<String>();
+		for (String imageLine : stagedImageLines) {
+		    imgIds.add(imageLine.split(" ")[0]);
+		}
+		inspectImages(imgIds);
+	    }
+	    if (shareAnalysis) {
+		analysisSharing = new AnchoreAnalysisSharing(runner, nodeName, containerId, euid, debug, analyzeTimeout, AnchoreScanCoordinator.FLIGHT_TIMEOUT, new FilePath(analysisCacheFile.getParent(), "analysis-exports"), imageDigests, listener);
+		analyzeImageLines = analysisSharing.join(analyzeImageLines, getContainerImageDigest());
+	    }
+
+	    if (!analyzeImageLines.isEmpty() && analyzeImageLines.size() < stagedImageLines.size()) {
+		targetAnalyzeFile = targetImageFile + ".analyze";
+		exitCode = stageImageFile(new FilePath(anchoreWorkspace, "staged_images."+euid+".analyze"), analyzeImageLines, targetAnalyzeFile);
+		if (exitCode != 0) {
+		    listener.getLogger().println("[anchore][error] failed to stage image list inside Anchore container: " + targetAnalyzeFile);
+		    return(false);
+		}
+	    }
+
+	    // in parallel mode, split the images to analyze into one image file per worker (round robin)
+	    int shards = Math.min(config.getWorkers(), analyzeImageLines.size());
+	    if (shards > 1) {
+		for (int i=0; i<shards; i++) {
+		    List<String> shardImageLines = new ArrayList<String>();
+		    for (int j=i; j<analyzeImageLines.size(); j+=shards) {
+			shardImageLines.add(analyzeImageLines.get(j));
+		    }
+		    String targetShardFile = targetImageFile + "." + i;
+		    exitCode = stageImageFile(new FilePath(anchoreWorkspace, "staged_images."+euid+"."+i), shardImageLines, targetShardFile);
+		    if (exitCode != 0) {
+			listener.getLogger().println("[anchore][error] failed to stage image shard inside Anchore container: " + targetShardFile);
+			return(false);
+		    }
+		    targetImageShards.add(targetShardFile);
+		}
+	    }
+
+	    if (config.getFailFast()) {
+		// the per image files always go through a staging directory, one docker cp instead of one per image
+		boolean ownStagingDir = (stagingDir == null);
+		if (ownStagingDir) {
+		    stagingDir = new FilePath(anchoreWorkspace, "staging");
+		    stagingDir.mkdirs();
+		}
+		for (int i=0; i<stagedImageLines.size(); i++) {
+		    String targetFile = targetImageFile + ".image" + i;
+		    stageImageFile(null, Collections.singletonList(stagedImageLines.get(i)), targetFile);
+		    targetImageFiles.add(targetFile);
+		}
+		if (ownStagingDir) {
+		    exitCode = runAnchoreCmd(anchoreLogStream, anchoreLogStream, "docker", "cp", stagingDir.getRemote() + "/.", containerId+":/root/anchore."+euid);
+		    stagingDir.deleteRecursive();
+		    stagingDir = null;
+		    if (exitCode != 0) {
+			listener.getLogger().println("[anchore][error] failed to stage image files inside Anchore container.");
+			return(false);
+		    }
+		}
+	    }
+
+	    if (anchorePolicyFile.exists()) {
+		targetPolicyFile = "/root/anchore."+euid+"/policy";
+		if (stagingDir != null) {
+		    anchorePolicyFile.copyTo(new FilePath(stagingDir, "policy"));
+		} else {
+		    exitCode = runAnchoreCmd(anchoreLogStream, anchoreLogStream, "docker", "cp", anchorePolicyFile.getRemote(), containerId+":"+targetPolicyFile);
+		}
+	    }
+
+	    if (stagingDir != null) {
+		// docker cp streams the directory into the container as one tar archive, creating the build directory
+		exitCode = runAnchoreCmd(anchoreLogStream, anchoreLogStream, "docker", "cp", stagingDir.getRemote() + "/.", containerId+":/root/anchore."+euid);
+		if (exitCode != 0 && recoverAnchoreContainer()) {
+		    exitCode = runAnchoreCmd(anchoreLogStream, anchoreLogStream, "docker", "cp", stagingDir.getRemote() + "/.", containerId+":/root/anchore."+euid);
+		}
+		stagingDir.deleteRecursive();
+		// anything staged later is copied into the container directly
+		stagingDir = null;
+		if (exitCode != 0) {
+		    listener.getLogger().println("[anchore][error] failed to stage build inputs inside Anchore container.");
+		    return(false);
+		}
+	    }
+	    recordPhase("staging", start);
+
+	} catch (RuntimeException e) {
+	    e.printStackTrace();
+            listener.getLogger().println("RuntimeException:" + e.toString());
+	    return(false);
+        } catch (Exception e) {
+	    e.printStackTrace();
+            listener.getLogger().println("Exception:" + e.toString());
+	    return(false);
+        } finally {
+	    listener.getLogger().println("[anchore][info] setup complete.");
+	}
+
+	return(true);
+    }
+
+    /**
+     * One entry of the image list file, with the copy of its Dockerfile into the build directory.
+     */
+    private class StagedImage implements Callable<Integer> {
+	final String imgId;
+	final String dfile;
+	final String targetFile;
+	Future<Integer> copy;
+	String dockerfileDigest;
+
+	StagedImage(String imgId, String dfile) {
+	    this.imgId = imgId;
+	    this.dfile = dfile;
+	    if (stagingDir != null) {
+		this.targetFile = "/root/anchore."+euid+"/dfile."+imgId.replace('/', '_');
+	    } else {
+		this.targetFile = "/root/anchore."+euid+"/dfile."+imgId;
+	    }
+	}
+
+	public Integer call() throws Exception {
+	    FilePath dockerfile = new FilePath(anchoreWorkspace.getParent(), dfile);
+	    if (gateCache != null) {
+		dockerfileDigest = dockerfile.digest();
+	    }
+	    if (stagingDir != null) {
+		dockerfile.copyTo(new FilePath(stagingDir, targetFile.substring(targetFile.lastIndexOf('/') + 1)));
+		return(0);
+	    }
+	    return(runAnchoreCmd(anchoreLogStream, anchoreLogStream, "docker", "cp", dfile, containerId+":"+targetFile));
+	}
+    }
+
+    // waits for the Dockerfile copy of an entry and adds it to the staged image list, in image list order
+    private void writeStagedImage(StagedImage stagedImage, BufferedWriter bw) throws IOException, InterruptedException {
+	String targetFile = "";
+	int exitCode = 1;
+	if (stagedImage.copy != null) {
+	    try {
+		exitCode = stagedImage.copy.get();
+	    } catch (ExecutionException e) {
+		exitCode = 1;
+	    }
+	}
+	if (exitCode == 0) {
+	    targetFile = stagedImage.targetFile;
+	    if (stagedImage.dockerfileDigest != null) {
+		dockerfileDigests.put(stagedImage.imgId, stagedImage.dockerfileDigest);
+	    }
+	} else {
+	    listener.getLogger().println("[anchore][warn] failed to add image to target image file in the anchore container, skipping: " + stagedImage.imgId);
+	}
+	bw.write(stagedImage.imgId + " " + targetFile + "\n");
+	stagedImageLines.addImage(stagedImage.imgId, stagedImage.imgId + " " + targetFile);
+    }
+
+    // the lookahead is a few entries per worker, a linear search is fine
+    private static boolean isPending(ArrayDeque<StagedImage> pending, String imgId) {
+	for (StagedImage stagedImage : pending) {
+	    if (stagedImage.imgId.equals(imgId)) {
+		return(true);
+	    }
+	}
+	return(false);
+    }
+
+    // the images of the image list, read back from the staged lines
+    private List<String> getInputImages() {
+	List<String> imgIds = new ArrayList<String>(stagedImageLines.size());
+	for (String imageLine : stagedImageLines) {
+	    imgIds.add(imageLine.substring(0, imageLine.indexOf(' ')));
+	}
+	return(imgIds);
+    }
+
+    private int stageImageFile(FilePath localFile, List<String> imageLines, String targetFile) throws IOException, InterruptedException {
+	if (stagingDir != null) {
+	    localFile = new FilePath(stagingDir, targetFile.substring(targetFile.lastIndexOf('/') + 1));
+	}
+	BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(localFile.write(), StandardCharsets.UTF_8));
+	try {
+	    for (String imageLine : imageLines) {
+		bw.write(imageLine + "\n");
+	    }
+	} finally {
+	    bw.close();
+	}
+	if (stagingDir != null) {
+	    return(0);
+	}
+	return(runAnchoreCmd(anchoreLogStream, anchoreLogStream, "docker", "cp", localFile.getRemote(), containerId+":"+targetFile));
+    }
+
+    private List<String> lookupAnalysisCache(FilePath analysisCacheFile) throws IOException, InterruptedException {
+	List<String> missedImageLines = new ArrayList<String>();
+
+	// a different anchore image or policy invalidates everything recorded so far
+	String policyDigest = "default";
+	if (anchorePolicyFile.exists()) {
+	    policyDigest = anchorePolicyFile.digest();
+	}
+	String generation = getContainerImageDigest() + "/" + policyDigest;
+	long ttlMillis = config.getAnalysisCacheTtl() * 3600L * 1000L;
+
+	try {
+	    analysisCache = AnchoreAnalysisCache.load(analysisCacheFile, generation, config.getAnalysisCacheSize(), ttlMillis);
+	} catch (IOException e) {
+	    listener.getLogger().println("[anchore][warn] failed to load analysis cache, analyzing all images: " + e.toString());
+	    return(stagedImageLines);
+	}
+	if (containerLaunched) {
+	    // a freshly launched container may not have the images recorded in the cache in its DB
+	    analysisCache.clear();
+	}
+
+	List<String> imgIds = new ArrayList<String>();
+	for (String imageLine : stagedImageLines) {
+	    imgIds.add(imageLine.split(" ")[0]);
+	}
+	inspectImages(imgIds);
+
+	for (String imageLine : stagedImageLines) {
+	    String imgId = imageLine.split(" ")[0];
+	    String digest = imageDigests.get(imgId);
+	    if (digest != null && analysisCache.contains(digest)) {
+		listener.getLogger().println("[anchore][info] image found in analysis cache, skipping analysis: " + imgId);
+	    } else {
+		missedImageLines.add(imageLine);
+	    }
+	}
+	return(missedImageLines);
+    }
+
+    public boolean isAnchoreRunning() {
+	int exitCode = 0;
+
+	exitCode = runAnchoreCmd(anchoreLogStream, anchoreLogStream, "docker", "start", containerId);
+	if (exitCode != 0) {
+	    return(false);
+	}
+	return(true);
+
+    }
+
+    public boolean isAnchoreImageAvailable() {
+	int exitCode = 0;
+
+	exitCode = runAnchoreCmd(anchoreLogStream, anchoreLogStream, "docker", "inspect", containerImageId);
+	if (exitCode != 0) {
+	    return(false);
+	}
+	return(true);
+
+    }
+
+    public boolean runAnchoreContainer() {
+	int exitCode = 0;	
+
+	containerHealthCached = false;
+	if (AnchoreContainerHealth.isHealthy(nodeName, containerId)) {
+	    listener.getLogger().println("[anchore][info] anchore container is running (cached health state)");
+	    containerHealthCached = true;
+	    containerRunning = true;
+	    return(true);
+	}
+
+	if (!isAnchoreRunning()) {
+	    if (isAnchoreImageAvailable()) {
+
+		exitCode = runAnchoreCmd(anchoreLogStream, anchoreLogStream, dockerRunCmd(containerId, containerImageId, localVol, modulesVol, config.getContainerCpus(), config.getContainerMemory()));
+		containerLaunched = true;
+
+	    } else {
+		// image is not available
+		listener.getLogger().println("[anchore][error] anchore container not running and anchore image ("+containerImageId+") is not available on local dockerhost");
+		return(false);
+	    }
+	} else {
+	    listener.getLogger().println("[anchore][info] anchore container is running");
+	    exitCode = 0;
+	}
+
+	if (exitCode == 0) {
+	    containerRunning = true;
+	    AnchoreContainerHealth.markHealthy(nodeName, containerId, useSudo);
+	    listener.getLogger().println("[anchore][info] anchore container has been launched");
+	    return(true);
+	}
+	listener.getLogger().println("[anchore][error] anchore container ("+containerId+") not running and failed to launch anchore container ("+containerImageId+") image from scratch.");
+	return(false);	    
+    }
+
+    // also used by the node warm-up, so containers come up the same either way
+    public static String dockerRunCmd(String containerId, String containerImageId, String localVol, String modulesVol, String cpus, String memory) {
+	String cmdstr;
+	cmdstr = "docker run -d -v /var/run/docker.sock:/var/run/docker.sock";
+	if (localVol != null && !localVol.isEmpty()) {
+	    cmdstr = cmdstr + " -v " + localVol + ":/root/.anchore";
+	}
+	if (modulesVol != null && !modulesVol.isEmpty()) {
+	    cmdstr = cmdstr + " -v " + modulesVol +":/root/anchore_modules";
+	}
+	// keeps a pathological image from taking the whole node away from the other builds
+	if (cpus != null && !cpus.trim().isEmpty()) {
+	    cmdstr = cmdstr + " --cpus " + cpus.trim();
+	}
+	if (memory != null && !memory.trim().isEmpty()) {
+	    cmdstr = cmdstr + " --memory " + memory.trim();
+	}
+	cmdstr = cmdstr + " --name " + containerId + " " + containerImageId;
+	return(cmdstr);
+    }
+
+    // a command failed in a container that was only assumed to be running: drop the cached state and go
+    // through the full start path once, the caller retries its command if this returns true
+    private boolean recoverAnchoreContainer() {
+	AnchoreContainerHealth.invalidate(nodeName, containerId);
+	containerRunning = false;
+	if (!containerHealthCached) {
+	    return(false);
+	}
+	listener.getLogger().println("[anchore][warn] command failed in anchore container, checking the container again");
+	return(runAnchoreContainer());
+    }
+
+    public int runAnchoreReportCmd(FilePath outputFile, long timeoutMillis, String... cmd) throws IOException, InterruptedException {
+	// the report is streamed straight into its final file, with the stylesheet link ahead of the anchore output
+	return(runAnchoreOutputCmd(outputFile, REPORT_HEADER, timeoutMillis, cmd));
+    }
+
+    public int runAnchoreOutputCmd(FilePath outputFile, byte[] header, long timeoutMillis, String... cmd) throws IOException, InterruptedException {
+	OutputStream outputStream = outputFile.write();
+	try {
+	    if (header != null) {
+		outputStream.write(header);
+	    }
+	    return(runAnchoreCmd(timeoutMillis, outputStream, anchoreLogStream, cmd));
+	} finally {
+	    outputStream.close();
+	}
+    }
+
+    private List<AnchoreGateResult> parseGateResults(FilePath gatesJsonFile) {
+	try {
+	    if (!gatesJsonFile.exists() || gatesJsonFile.length() == 0) {
+		return(null);
+	    }
+	    List<AnchoreGateResult> gateResults = AnchoreGateResult.parse(gatesJsonFile);
+	    for (AnchoreGateResult gateResult : gateResults) {
+		listener.getLogger().println("[anchore][info] gate result: " + gateResult.getImageId() + " " + gateResult.getRepoTag() + " " + gateResult.getFinalAction() + " (warn=" + gateResult.getWarnCount() + ", stop=" + gateResult.getStopCount() + ")");
+	    }
+	    return(gateResults);
+	} catch (Exception e) {
+	    listener.getLogger().println("[anchore][warn] failed to parse anchore gate json output: " + e.toString());
+	    return(null);
+	}
+    }
+
+    public void close() {
+	if (analysisSharing != null) {
+	    analysisSharing.close();
+	}
+	runner.close();
+	try {
+	    stagedImageLines.close();
+	} catch (IOException e) {
+	    listener.getLogger().println("[anchore][warn] failed to remove staged image list: " + e.toString());
+	}
+    }
+
+    // fields of one line of the image list file: the image ID, then the path of its Dockerfile (optional),
+    // no fields for blank lines and comments
+    public static String[] parseImageLine(String line) {
+	String trimmed = line.trim();
+	if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+	    return(new String[0]);
+	}
+	return(trimmed.split("\\s+"));
+    }
+
+    public static boolean isValidImageId(String imgId) {
+	return(IMAGE_ID.matcher(imgId).matches());
+    }
+
+    public int runAnchoreCmd(OutputStream soutStream, OutputStream serrStream, String... cmd) {
+	return(runner.run(soutStream, serrStream, cmd));
+    }
+
+    public int runAnchoreCmd(long timeoutMillis, OutputStream soutStream, OutputStream serrStream, String... cmd) {
+	return(runner.run(timeoutMillis, soutStream, serrStream, cmd));
+    }
+}
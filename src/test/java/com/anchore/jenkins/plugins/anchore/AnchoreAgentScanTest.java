@@ -0,0 +1,67 @@
+package com.anchore.jenkins.plugins.anchore;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+
+public class AnchoreAgentScanTest {
+    private static void write(AnchoreAgentScan.TailOutputStream tail, String s) throws Exception {
+	byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+	tail.write(bytes, 0, bytes.length);
+    }
+
+    @Test
+    public void keepsEverythingUpToMaxBytes() throws Exception {
+	ByteArrayOutputStream out = new ByteArrayOutputStream();
+	AnchoreAgentScan.TailOutputStream tail = new AnchoreAgentScan.TailOutputStream(out, 16);
+	write(tail, "line 1\n");
+	tail.write('x');
+	assertEquals("line 1\nx", tail.getTail());
+	assertEquals("line 1\nx", out.toString("UTF-8"));
+    }
+
+    @Test
+    public void keepsLastBytesFromALineBoundary() throws Exception {
+	ByteArrayOutputStream out = new ByteArrayOutputStream();
+	AnchoreAgentScan.TailOutputStream tail = new AnchoreAgentScan.TailOutputStream(out, 16);
+	write(tail, "first line\nsecond\nthird\n");
+
+	// the last 16 bytes start in the middle of the first line, which is dropped
+	assertEquals("second\nthird\n", tail.getTail());
+	// the log file still gets everything
+	assertEquals("first line\nsecond\nthird\n", out.toString("UTF-8"));
+    }
+
+    @Test
+    public void wrapsWithSingleByteWrites() throws Exception {
+	AnchoreAgentScan.TailOutputStream tail = new AnchoreAgentScan.TailOutputStream(new ByteArrayOutputStream(), 8);
+	for (byte b : "aaaa\nbbbb\ncc".getBytes(StandardCharsets.UTF_8)) {
+	    tail.write(b);
+	}
+	assertEquals("bbbb\ncc", tail.getTail());
+    }
+
+    @Test
+    public void keepsFirstLineWhenCutAtLineBoundary() throws Exception {
+	AnchoreAgentScan.TailOutputStream tail = new AnchoreAgentScan.TailOutputStream(new ByteArrayOutputStream(), 8);
+	write(tail, "abc\n1234\n567");
+	assertEquals("1234\n567", tail.getTail());
+
+	// exactly full, nothing dropped yet
+	tail = new AnchoreAgentScan.TailOutputStream(new ByteArrayOutputStream(), 8);
+	write(tail, "1234\n567");
+	assertEquals("1234\n567", tail.getTail());
+    }
+
+    @Test
+    public void clearDropsTheTail() throws Exception {
+	AnchoreAgentScan.TailOutputStream tail = new AnchoreAgentScan.TailOutputStream(new ByteArrayOutputStream(), 8);
+	write(tail, "scan output that wraps\n");
+	tail.clear();
+	write(tail, "cleanup\n");
+	assertEquals("cleanup\n", tail.getTail());
+    }
+}
@@ -0,0 +1,78 @@
+package com.anchore.jenkins.plugins.anchore;
+
+import hudson.FilePath;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AnchoreAnalysisCacheTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private FilePath cacheFile;
+
+    @Before
+    public void setUp() {
+	cacheFile = new FilePath(new File(tmp.getRoot(), "anchore/analysis-cache.c1"));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedOnSave() throws Exception {
+	AnchoreAnalysisCache cache = AnchoreAnalysisCache.load(cacheFile, "gen", 2, 0);
+	cache.put("sha256:a");
+	cache.put("sha256:b");
+	cache.put("sha256:c");
+	// a is used again, so b is the least recently used entry
+	assertTrue(cache.contains("sha256:a"));
+	cache.save();
+
+	AnchoreAnalysisCache loaded = AnchoreAnalysisCache.load(cacheFile, "gen", 2, 0);
+	assertEquals(2, loaded.size());
+	assertTrue(loaded.contains("sha256:a"));
+	assertTrue(loaded.contains("sha256:c"));
+	assertFalse(loaded.contains("sha256:b"));
+    }
+
+    @Test
+    public void expiresEntriesAfterTtl() throws Exception {
+	long now = System.currentTimeMillis();
+	cacheFile.write("generation gen\nsha256:old " + (now - 10000) + " " + now + "\nsha256:new " + now + " " + now + "\n", "UTF-8");
+
+	AnchoreAnalysisCache cache = AnchoreAnalysisCache.load(cacheFile, "gen", 10, 5000);
+	assertFalse(cache.contains("sha256:old"));
+	assertTrue(cache.contains("sha256:new"));
+
+	// an entry used recently still expires, the TTL counts from the analysis
+	cacheFile.write("generation gen\nsha256:used " + (now - 10000) + " " + now + "\n", "UTF-8");
+	cache = AnchoreAnalysisCache.load(cacheFile, "gen", 10, 5000);
+	cache.save();
+	assertEquals(0, AnchoreAnalysisCache.load(cacheFile, "gen", 10, 0).size());
+    }
+
+    @Test
+    public void otherGenerationStartsOver() throws Exception {
+	AnchoreAnalysisCache cache = AnchoreAnalysisCache.load(cacheFile, "image1/policy1", 10, 0);
+	cache.put("sha256:a");
+	cache.save();
+
+	assertEquals(1, AnchoreAnalysisCache.load(cacheFile, "image1/policy1", 10, 0).size());
+	assertEquals(0, AnchoreAnalysisCache.load(cacheFile, "image1/policy2", 10, 0).size());
+    }
+
+    @Test
+    public void skipsDamagedEntries() throws Exception {
+	long now = System.currentTimeMillis();
+	cacheFile.write("generation gen\nsha256:a " + now + " " + now + "\nsha256:b x y\ntruncated\n", "UTF-8");
+
+	AnchoreAnalysisCache cache = AnchoreAnalysisCache.load(cacheFile, "gen", 10, 0);
+	assertEquals(1, cache.size());
+	assertTrue(cache.contains("sha256:a"));
+    }
+}
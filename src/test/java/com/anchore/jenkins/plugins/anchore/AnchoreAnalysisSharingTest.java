@@ -0,0 +1,82 @@
+package com.anchore.jenkins.plugins.anchore;
+
+import hudson.FilePath;
+import hudson.util.StreamTaskListener;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AnchoreAnalysisSharingTest {
+    private static final String ANCHORE_IMAGE = "sha256:anchore";
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private final ByteArrayOutputStream log = new ByteArrayOutputStream();
+    private final Map<String, String> imageDigests = new HashMap<String, String>();
+
+    private AnchoreAnalysisSharing sharing(String node, long waitTimeout) {
+	StreamTaskListener listener = new StreamTaskListener(log);
+	AnchoreCommandRunner runner = new AnchoreCommandRunner(null, false, "anchore", "job_2", listener);
+	return(new AnchoreAnalysisSharing(runner, node, "anchore", "job_2", false, 0, waitTimeout, new FilePath(tmp.getRoot()), imageDigests, listener));
+    }
+
+    @Test
+    public void waitsForAHungOwnerAreBoundedInAll() throws Exception {
+	imageDigests.put("alpine:3", "sha256:alpine");
+	imageDigests.put("debian:9", "sha256:debian");
+	// another scan claimed both images and never finishes them
+	String alpineKey = AnchoreScanCoordinator.analysisKey("hung", ANCHORE_IMAGE, "sha256:alpine");
+	String debianKey = AnchoreScanCoordinator.analysisKey("hung", ANCHORE_IMAGE, "sha256:debian");
+	assertNull(AnchoreScanCoordinator.join(alpineKey));
+	assertNull(AnchoreScanCoordinator.join(debianKey));
+	try {
+	    AnchoreAnalysisSharing sharing = sharing("hung", 200);
+	    List<String> imageLines = Arrays.asList("alpine:3 ", "debian:9 ");
+	    assertEquals(new ArrayList<String>(), sharing.join(imageLines, ANCHORE_IMAGE));
+	    assertTrue(sharing.isWaiting());
+
+	    long start = System.currentTimeMillis();
+	    List<String> imported = new ArrayList<String>();
+	    assertEquals(imageLines, sharing.await(imported));
+	    long waited = System.currentTimeMillis() - start;
+	    assertTrue(imported.isEmpty());
+	    assertFalse(sharing.isWaiting());
+	    // one timeout for both images, not one each
+	    assertTrue("waited " + waited + "ms", waited >= 150 && waited < 400);
+	} finally {
+	    AnchoreScanCoordinator.complete(alpineKey, false);
+	    AnchoreScanCoordinator.complete(debianKey, false);
+	}
+    }
+
+    @Test
+    public void imagesWithoutDigestOrAnchoreImageAreAnalyzedHere() throws Exception {
+	imageDigests.put("alpine:3", "sha256:alpine");
+	AnchoreAnalysisSharing sharing = sharing("own", 200);
+	List<String> imageLines = Arrays.asList("alpine:3 ", "local:latest ");
+	assertEquals(imageLines, sharing("own", 200).join(imageLines, null));
+
+	// claimed by this scan, another one waits for it until this one is closed
+	assertEquals(imageLines, sharing.join(imageLines, ANCHORE_IMAGE));
+	String key = AnchoreScanCoordinator.analysisKey("own", ANCHORE_IMAGE, "sha256:alpine");
+	AnchoreScanCoordinator.Flight flight = AnchoreScanCoordinator.join(key);
+	sharing.close();
+	assertFalse(flight.await(10));
+	assertNull(flight.getExport());
+	assertNull(AnchoreScanCoordinator.join(key));
+	AnchoreScanCoordinator.complete(key, false);
+    }
+}
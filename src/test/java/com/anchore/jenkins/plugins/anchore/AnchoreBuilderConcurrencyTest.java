@@ -0,0 +1,307 @@
+package com.anchore.jenkins.plugins.anchore;
+
+import hudson.AbortException;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Proc;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.TaskListener;
+import hudson.remoting.Channel;
+import hudson.util.StreamTaskListener;
+import net.sf.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the scans of several builds through one AnchoreBuilder at the same time, against a launcher that
+ * only records the commands, and checks that the scans never share an euid, a report directory or a
+ * container of the pool.
+ */
+public class AnchoreBuilderConcurrencyTest {
+    private static final int BUILDS_PER_JOB = 4;
+    private static final int POOL_SIZE = 3;
+    private static final String CONTAINER = "anchore";
+    private static final Pattern BUILD_DIR = Pattern.compile("/root/anchore\\.([A-Za-z0-9_.-]+)/");
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Test
+    public void concurrentScansDoNotCollide() throws Exception {
+	configure();
+	final AnchoreBuilder builder = new AnchoreBuilder("anchore_images", "anchore_policy", false, false, false, false, true, "", "", "", "");
+
+	// the same job name at the top level and in a folder, their euids only differ by the folder
+	List<FreeStyleBuild> builds = new ArrayList<FreeStyleBuild>();
+	builds.addAll(runBuilds(j.createFreeStyleProject("app")));
+	builds.addAll(runBuilds(j.createFolder("team").createProject(FreeStyleProject.class, "app")));
+
+	final RecordingLauncher launcher = new RecordingLauncher();
+	final CountDownLatch start = new CountDownLatch(1);
+	ExecutorService executor = Executors.newFixedThreadPool(builds.size());
+	List<Future<String>> failures = new ArrayList<Future<String>>();
+	try {
+	    for (final FreeStyleBuild build : builds) {
+		failures.add(executor.submit(new Callable<String>() {
+			public String call() throws Exception {
+			    ByteArrayOutputStream log = new ByteArrayOutputStream();
+			    start.await();
+			    try {
+				// builds of a job share its workspace, as concurrent pipeline steps in one directory do
+				builder.perform(build, build.getWorkspace(), launcher, new StreamTaskListener(log));
+				return(null);
+			    } catch (AbortException e) {
+				return(log.toString("UTF-8"));
+			    }
+			}
+		    }));
+	    }
+	    start.countDown();
+	    for (Future<String> failure : failures) {
+		assertNull(failure.get(5, TimeUnit.MINUTES));
+	    }
+	} finally {
+	    executor.shutdownNow();
+	}
+
+	Set<String> euids = new HashSet<String>();
+	for (FreeStyleBuild build : builds) {
+	    AnchoreAction action = build.getAction(AnchoreAction.class);
+	    String url = action.getGateReportUrl();
+	    String euid = url.substring(url.indexOf("AnchoreReport.") + "AnchoreReport.".length(), url.lastIndexOf('/'));
+	    assertEquals(build.getParent().getFullName().replace('/', '_') + "_" + build.getNumber(), euid);
+	    assertTrue("euid used twice: " + euid, euids.add(euid));
+
+	    // a scan that shared its report directory with another one would archive its reports, or none
+	    File artifactsDir = build.getArtifactsDir();
+	    assertEquals(Collections.singletonList("AnchoreReport." + euid), Arrays.asList(artifactsDir.list()));
+	    assertTrue(new File(artifactsDir, "AnchoreReport." + euid + "/anchore.css").isFile());
+	}
+	assertEquals(euids, launcher.getEuids());
+
+	Set<String> slots = new HashSet<String>();
+	for (int slot=0; slot<POOL_SIZE; slot++) {
+	    slots.add(AnchoreContainerPool.getSlotContainerId(CONTAINER, slot));
+	}
+	assertTrue("containers outside the pool: " + launcher.getContainers(), slots.containsAll(launcher.getContainers()));
+	assertEquals(Collections.<String>emptyList(), launcher.getOverlaps());
+	assertEquals(0, AnchoreContainerPool.get("", CONTAINER, false).getLeased());
+    }
+
+    @Test
+    public void scanIndexFollowsTheReportsOfTheBuild() throws Exception {
+	FreeStyleBuild build = j.buildAndAssertSuccess(j.createFreeStyleProject("indexed"));
+	TreeMap<String, String> noQueries = new TreeMap<String, String>();
+
+	int first = AnchoreBuilder.claimScanIndex(build);
+	int second = AnchoreBuilder.claimScanIndex(build);
+	assertEquals(0, first);
+	assertEquals(1, second);
+
+	// the first scan added its report, the second one still runs
+	build.addAction(new AnchoreAction(build, "GO", "indexed_1", noQueries, null, first));
+	AnchoreBuilder.releaseScanIndex(build, first);
+	assertEquals(2, AnchoreBuilder.claimScanIndex(build));
+	AnchoreBuilder.releaseScanIndex(build, 2);
+
+	// the second scan failed before adding a report, its index is free again
+	AnchoreBuilder.releaseScanIndex(build, second);
+	assertEquals(1, AnchoreBuilder.claimScanIndex(build));
+	AnchoreBuilder.releaseScanIndex(build, 1);
+
+	assertEquals(1, new AnchoreAction(build, "GO", "indexed_1_2", noQueries, null, 1).getScanIndex());
+    }
+
+    private void configure() throws Exception {
+	JSONObject form = new JSONObject();
+	form.element("debug", false);
+	form.element("enabled", true);
+	form.element("useSudo", false);
+	form.element("useSession", false);
+	form.element("containerImageId", "anchore/jenkins:latest");
+	form.element("containerId", CONTAINER);
+	form.element("localVol", "");
+	form.element("modulesVol", "");
+	form.element("poolSize", POOL_SIZE);
+	form.element("deferCleanup", false);
+	form.element("runOnAgent", false);
+	form.element("storeReports", false);
+	form.element("containerCpus", "");
+	form.element("containerMemory", "");
+	form.element("warmup", false);
+	j.jenkins.getDescriptorByType(AnchoreBuilder.DescriptorImpl.class).configure(null, form);
+    }
+
+    private List<FreeStyleBuild> runBuilds(FreeStyleProject project) throws Exception {
+	List<FreeStyleBuild> builds = new ArrayList<FreeStyleBuild>();
+	for (int i=0; i<BUILDS_PER_JOB; i++) {
+	    builds.add(j.buildAndAssertSuccess(project));
+	}
+	FilePath workspace = builds.get(0).getWorkspace();
+	workspace.child("anchore_images").write("alpine:3\ndebian:9\nalpine:3\n", "UTF-8");
+	return(builds);
+    }
+
+    /**
+     * Answers every command with exit code 0 and no output.  For each container it records the time span
+     * in which the commands of each build directory ran; a scan only runs commands while it holds its lease,
+     * so the spans of two scans on one container must not overlap.
+     */
+    private static class RecordingLauncher extends Launcher {
+	// container -> euid -> {first start, last end} in nanoseconds
+	private final Map<String, Map<String, long[]>> spans = new HashMap<String, Map<String, long[]>>();
+
+	RecordingLauncher() {
+	    super(TaskListener.NULL, null);
+	}
+
+	@Override
+	public Proc launch(ProcStarter starter) throws IOException {
+	    List<String> cmd = starter.cmds();
+	    String container = null;
+	    String euid = null;
+	    for (int i=0; i<cmd.size(); i++) {
+		String arg = cmd.get(i);
+		if (arg.equals("exec") && i + 1 < cmd.size() && container == null) {
+		    container = cmd.get(i + 1);
+		} else if (arg.contains(":/root/anchore.")) {
+		    container = arg.substring(0, arg.indexOf(':'));
+		}
+		Matcher m = BUILD_DIR.matcher(arg);
+		if (euid == null && m.find()) {
+		    euid = m.group(1);
+		}
+	    }
+
+	    long begin = System.nanoTime();
+	    try {
+		// long enough for scans to interleave if they could
+		Thread.sleep(2);
+	    } catch (InterruptedException e) {
+		Thread.currentThread().interrupt();
+	    }
+	    if (container != null && euid != null) {
+		record(container, euid, begin, System.nanoTime());
+	    }
+	    return(new ExitedProc());
+	}
+
+	private synchronized void record(String container, String euid, long begin, long end) {
+	    Map<String, long[]> containerSpans = spans.get(container);
+	    if (containerSpans == null) {
+		containerSpans = new HashMap<String, long[]>();
+		spans.put(container, containerSpans);
+	    }
+	    long[] span = containerSpans.get(euid);
+	    if (span == null) {
+		containerSpans.put(euid, new long[] {begin, end});
+	    } else {
+		span[0] = Math.min(span[0], begin);
+		span[1] = Math.max(span[1], end);
+	    }
+	}
+
+	synchronized Set<String> getContainers() {
+	    return(new HashSet<String>(spans.keySet()));
+	}
+
+	synchronized Set<String> getEuids() {
+	    Set<String> euids = new HashSet<String>();
+	    for (Map<String, long[]> containerSpans : spans.values()) {
+		euids.addAll(containerSpans.keySet());
+	    }
+	    return(euids);
+	}
+
+	// pairs of scans that used one container at the same time
+	synchronized List<String> getOverlaps() {
+	    List<String> overlaps = new ArrayList<String>();
+	    for (Map.Entry<String, Map<String, long[]>> entry : spans.entrySet()) {
+		TreeMap<Long, String> byStart = new TreeMap<Long, String>();
+		for (Map.Entry<String, long[]> span : entry.getValue().entrySet()) {
+		    byStart.put(span.getValue()[0], span.getKey());
+		}
+		String previous = null;
+		for (String euid : byStart.values()) {
+		    if (previous != null && entry.getValue().get(euid)[0] < entry.getValue().get(previous)[1]) {
+			overlaps.add(entry.getKey() + ": " + previous + " and " + euid);
+		    }
+		    if (previous == null || entry.getValue().get(euid)[1] > entry.getValue().get(previous)[1]) {
+			previous = euid;
+		    }
+		}
+	    }
+	    return(overlaps);
+	}
+
+	@Override
+	public Channel launchChannel(String[] cmd, OutputStream out, FilePath workDir, Map<String, String> envVars) throws IOException {
+	    throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void kill(Map<String, String> modelEnvVars) {
+	}
+    }
+
+    private static class ExitedProc extends Proc {
+	@Override
+	public boolean isAlive() {
+	    return(false);
+	}
+
+	@Override
+	public void kill() {
+	}
+
+	@Override
+	public int join() {
+	    return(0);
+	}
+
+	@Override
+	public InputStream getStdout() {
+	    return(new ByteArrayInputStream(new byte[0]));
+	}
+
+	@Override
+	public InputStream getStderr() {
+	    return(new ByteArrayInputStream(new byte[0]));
+	}
+
+	@Override
+	public OutputStream getStdin() {
+	    return(null);
+	}
+    }
+}
@@ -0,0 +1,51 @@
+package com.anchore.jenkins.plugins.anchore;
+
+import hudson.util.StreamTaskListener;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AnchoreCleanupQueueTest {
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Test
+    public void skippedBatchRunsWhenTheContainerIsReleased() throws Exception {
+	// the node is gone, so the batch never completes and stays pending; what is counted is how often the
+	// queue takes the container's lease to run it
+	AnchoreContainerPool pool = AnchoreContainerPool.get("gone", "anchore", false);
+	AnchoreCleanupQueue.submit(new AnchoreCleanupQueue.Task("gone", "anchore", false, "job_1", null, Collections.<String>emptyList()), pool.lease(1));
+	waitForLeases(pool, 0);
+
+	// a scan has the container when the queue runs again, the batch is skipped
+	AnchoreContainerPool.Lease scan = pool.lease(1);
+	long leases = pool.getLeaseCount();
+	new AnchoreCleanupQueue.Sweeper().execute(new StreamTaskListener(new ByteArrayOutputStream()));
+	Thread.sleep(200);
+	assertEquals(leases, pool.getLeaseCount());
+
+	// and runs once the scan is done with it, without waiting for the next sweep
+	scan.release();
+	long deadline = System.currentTimeMillis() + 10000;
+	while (pool.getLeaseCount() == leases && System.currentTimeMillis() < deadline) {
+	    Thread.sleep(10);
+	}
+	assertTrue(pool.getLeaseCount() > leases);
+	waitForLeases(pool, 0);
+	assertEquals(1, AnchoreCleanupQueue.getPendingCount());
+    }
+
+    private static void waitForLeases(AnchoreContainerPool pool, int leased) throws InterruptedException {
+	long deadline = System.currentTimeMillis() + 10000;
+	while (pool.getLeased() != leased && System.currentTimeMillis() < deadline) {
+	    Thread.sleep(10);
+	}
+	assertEquals(leased, pool.getLeased());
+    }
+}
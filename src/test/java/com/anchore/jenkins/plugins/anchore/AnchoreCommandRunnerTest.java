@@ -0,0 +1,248 @@
+package com.anchore.jenkins.plugins.anchore;
+
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Proc;
+import hudson.model.TaskListener;
+import hudson.remoting.Channel;
+import hudson.util.StreamTaskListener;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AnchoreCommandRunnerTest {
+    private static final String CONTAINER = "anchore";
+
+    private FakeLauncher launcher;
+    private ByteArrayOutputStream log;
+    private AnchoreCommandRunner runner;
+
+    @Before
+    public void setUp() {
+	launcher = new FakeLauncher();
+	log = new ByteArrayOutputStream();
+	runner = new AnchoreCommandRunner(launcher, false, CONTAINER, "job_1", new StreamTaskListener(log));
+    }
+
+    @After
+    public void tearDown() {
+	runner.close();
+    }
+
+    @Test
+    public void hungCommandTimesOutAndIsKilledInTheContainer() throws Exception {
+	FakeProc gate = launcher.next(FakeProc.hanging());
+	int exitCode = runner.run(50, log, log, "docker", "exec", CONTAINER, "anchore", "gate", "--imagefile", "/root/anchore.job_1/images");
+
+	assertEquals(AnchoreCommandRunner.TIMED_OUT, exitCode);
+	assertTrue(gate.killed);
+	// the gate ran under the pid file shell, and that pid is what gets killed in the container
+	assertTrue(launcher.commands.get(0).contains("echo $$ > /root/anchore.job_1.pid.1;"));
+	assertEquals(2, launcher.commands.size());
+	assertTrue(launcher.commands.get(1).startsWith("docker exec anchore sh -c "));
+	assertTrue(launcher.commands.get(1).contains("for f in /root/anchore.job_1.pid.1;"));
+	assertTrue(log.toString("UTF-8").contains("did not finish within"));
+    }
+
+    @Test
+    public void commandFailingOnItsOwnIsNotATimeout() throws Exception {
+	FakeProc gate = launcher.next(FakeProc.exited(3));
+	assertEquals(3, runner.run(50, log, log, "docker", "exec", CONTAINER, "anchore", "gate"));
+	// the killer would have fired by now if it was still scheduled
+	Thread.sleep(150);
+
+	assertFalse(gate.killed);
+	assertEquals(1, launcher.commands.size());
+	assertFalse(log.toString("UTF-8").contains("did not finish within"));
+    }
+
+    @Test
+    public void commandOnTheNodeIsOnlyKilledOnTheNode() throws Exception {
+	FakeProc copy = launcher.next(FakeProc.hanging());
+	assertEquals(AnchoreCommandRunner.TIMED_OUT, runner.run(50, log, log, "docker", "cp", "/tmp/export", CONTAINER + ":/root/anchore.job_1/import"));
+
+	assertTrue(copy.killed);
+	assertEquals(1, launcher.commands.size());
+    }
+
+    @Test
+    public void abortedCommandIsKilledInTheContainer() throws Exception {
+	final FakeProc analyze = launcher.next(FakeProc.hanging());
+	ExecutorService executor = Executors.newSingleThreadExecutor();
+	try {
+	    Future<Integer> exitCode = executor.submit(new Callable<Integer>() {
+		    public Integer call() {
+			int exitCode = runner.run(0, log, log, "docker", "exec", CONTAINER, "anchore", "analyze");
+			// the interrupt is kept for the caller
+			assertTrue(Thread.currentThread().isInterrupted());
+			return(exitCode);
+		    }
+		});
+	    assertTrue(analyze.started.await(10, TimeUnit.SECONDS));
+	    executor.shutdownNow();
+	    assertEquals(AnchoreCommandRunner.ABORTED, (int) exitCode.get(10, TimeUnit.SECONDS));
+	} finally {
+	    executor.shutdownNow();
+	}
+	assertEquals(2, launcher.commands.size());
+	assertTrue(launcher.commands.get(1).contains("for f in /root/anchore.job_1.pid.1;"));
+
+	// an aborted build starts nothing new
+	Thread.currentThread().interrupt();
+	try {
+	    assertEquals(AnchoreCommandRunner.ABORTED, runner.run(0, log, log, "docker", "exec", CONTAINER, "anchore", "query"));
+	} finally {
+	    Thread.interrupted();
+	}
+	assertEquals(2, launcher.commands.size());
+    }
+
+    @Test
+    public void commandThatCannotBeStartedFails() {
+	launcher.failNext = true;
+	assertEquals(AnchoreCommandRunner.FAILED, runner.run(50, log, log, "docker", "exec", CONTAINER, "anchore", "gate"));
+    }
+
+    @Test
+    public void cancelKillsTheRunningCommands() throws Exception {
+	final FakeProc first = launcher.next(FakeProc.hanging());
+	final FakeProc second = launcher.next(FakeProc.hanging());
+	ExecutorService executor = Executors.newFixedThreadPool(2);
+	try {
+	    for (int i=0; i<2; i++) {
+		executor.submit(new Callable<Integer>() {
+			public Integer call() {
+			    return(runner.run(0, log, log, "docker", "exec", CONTAINER, "anchore", "analyze"));
+			}
+		    });
+	    }
+	    assertTrue(first.started.await(10, TimeUnit.SECONDS));
+	    assertTrue(second.started.await(10, TimeUnit.SECONDS));
+	    runner.cancelAll();
+	} finally {
+	    executor.shutdownNow();
+	}
+	// one kill for both, by their pid files; nothing is matched by command line
+	String kill = launcher.commands.get(2);
+	assertTrue(kill.contains("/root/anchore.job_1.pid.1"));
+	assertTrue(kill.contains("/root/anchore.job_1.pid.2"));
+	assertFalse(kill.contains("pkill"));
+    }
+
+    /**
+     * Hands out the queued procs in order, and exited ones once the queue is empty.
+     */
+    private static class FakeLauncher extends Launcher {
+	final List<String> commands = new ArrayList<String>();
+	private final List<FakeProc> procs = new ArrayList<FakeProc>();
+	volatile boolean failNext;
+
+	FakeLauncher() {
+	    super(TaskListener.NULL, null);
+	}
+
+	synchronized FakeProc next(FakeProc proc) {
+	    procs.add(proc);
+	    return(proc);
+	}
+
+	@Override
+	public synchronized Proc launch(ProcStarter starter) throws IOException {
+	    if (failNext) {
+		failNext = false;
+		throw new IOException("docker not found");
+	    }
+	    StringBuilder cmd = new StringBuilder();
+	    for (String arg : starter.cmds()) {
+		cmd.append((cmd.length() > 0) ? " " : "").append(arg);
+	    }
+	    commands.add(cmd.toString());
+	    FakeProc proc = procs.isEmpty() ? FakeProc.exited(0) : procs.remove(0);
+	    proc.started.countDown();
+	    return(proc);
+	}
+
+	@Override
+	public Channel launchChannel(String[] cmd, OutputStream out, FilePath workDir, Map<String, String> envVars) {
+	    throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void kill(Map<String, String> modelEnvVars) {
+	}
+    }
+
+    /**
+     * Either exits right away, or runs until it is killed.
+     */
+    private static class FakeProc extends Proc {
+	final CountDownLatch started = new CountDownLatch(1);
+	private final CountDownLatch done;
+	private final int exitCode;
+	volatile boolean killed;
+
+	private FakeProc(boolean hang, int exitCode) {
+	    this.done = new CountDownLatch(hang ? 1 : 0);
+	    this.exitCode = exitCode;
+	}
+
+	static FakeProc hanging() {
+	    return(new FakeProc(true, 0));
+	}
+
+	static FakeProc exited(int exitCode) {
+	    return(new FakeProc(false, exitCode));
+	}
+
+	@Override
+	public boolean isAlive() {
+	    return(done.getCount() > 0);
+	}
+
+	@Override
+	public void kill() {
+	    killed = true;
+	    done.countDown();
+	}
+
+	@Override
+	public int join() throws InterruptedException {
+	    done.await();
+	    return(killed ? 143 : exitCode);
+	}
+
+	@Override
+	public InputStream getStdout() {
+	    return(new ByteArrayInputStream(new byte[0]));
+	}
+
+	@Override
+	public InputStream getStderr() {
+	    return(new ByteArrayInputStream(new byte[0]));
+	}
+
+	@Override
+	public OutputStream getStdin() {
+	    return(null);
+	}
+    }
+}
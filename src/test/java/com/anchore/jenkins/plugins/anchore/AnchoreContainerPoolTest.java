@@ -0,0 +1,138 @@
+package com.anchore.jenkins.plugins.anchore;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class AnchoreContainerPoolTest {
+    // pools are registered globally, every test uses a container name of its own
+    private static AnchoreContainerPool pool(String containerId) {
+	return(AnchoreContainerPool.get("node1", containerId, false));
+    }
+
+    @Test
+    public void slotsAreNamedAfterTheConfiguredContainer() {
+	assertEquals("anchore", AnchoreContainerPool.getSlotContainerId("anchore", 0));
+	assertEquals("anchore_2", AnchoreContainerPool.getSlotContainerId("anchore", 2));
+	assertEquals("anchoredb", AnchoreContainerPool.getSlotLocalVol("anchoredb", 0));
+	assertEquals("anchoredb_1", AnchoreContainerPool.getSlotLocalVol("anchoredb", 1));
+	assertNull(AnchoreContainerPool.getSlotLocalVol(null, 1));
+    }
+
+    @Test
+    public void leasesTheLowestFreeSlot() throws Exception {
+	AnchoreContainerPool pool = pool("lowest");
+	assertSame(pool, pool("lowest"));
+
+	AnchoreContainerPool.Lease first = pool.lease(3);
+	AnchoreContainerPool.Lease second = pool.lease(3);
+	assertEquals(0, first.getSlot());
+	assertEquals("lowest", first.getContainerId());
+	assertEquals(1, second.getSlot());
+	assertEquals("lowest_1", second.getContainerId());
+	assertEquals("lowest", second.getPoolContainerId());
+	assertEquals(2, pool.getLeased());
+
+	first.release();
+	// releasing twice must not free a slot leased again in the meantime
+	AnchoreContainerPool.Lease third = pool.lease(3);
+	first.release();
+	assertEquals(0, third.getSlot());
+	assertEquals(2, pool.getLeased());
+	assertEquals(3, pool.getSlotCount());
+	assertEquals(3, pool.getLeaseCount());
+
+	second.release();
+	third.release();
+	assertEquals(0, pool.getLeased());
+    }
+
+    @Test
+    public void leaseWaitsForRelease() throws Exception {
+	final AnchoreContainerPool pool = pool("wait");
+	AnchoreContainerPool.Lease held = pool.lease(1);
+
+	final AtomicReference<AnchoreContainerPool.Lease> waited = new AtomicReference<AnchoreContainerPool.Lease>();
+	Thread waiter = new Thread() {
+		public void run() {
+		    try {
+			waited.set(pool.lease(1));
+		    } catch (InterruptedException e) {
+			// the test fails on the missing lease
+		    }
+		}
+	    };
+	waiter.start();
+	long deadline = System.currentTimeMillis() + 5000;
+	while (pool.getWaiting() == 0 && System.currentTimeMillis() < deadline) {
+	    Thread.sleep(10);
+	}
+	assertEquals(1, pool.getWaiting());
+	assertNull(waited.get());
+
+	held.release();
+	waiter.join(5000);
+	assertNotNull(waited.get());
+	assertEquals(0, waited.get().getSlot());
+	assertEquals(0, pool.getWaiting());
+	assertEquals(1, pool.getWaitCount());
+	waited.get().release();
+    }
+
+    @Test
+    public void tryLeaseDoesNotWait() throws Exception {
+	AnchoreContainerPool pool = pool("try");
+	AnchoreContainerPool.Lease lease = pool.lease(2);
+	assertNull(pool.tryLease(0));
+
+	AnchoreContainerPool.Lease other = pool.tryLease(1);
+	assertNotNull(other);
+	assertEquals("try_1", other.getContainerId());
+	assertNull(pool.tryLease(1));
+
+	other.release();
+	lease.release();
+	AnchoreContainerPool.Lease again = pool.tryLease(0);
+	assertNotNull(again);
+	again.release();
+	assertEquals(0, pool.getLeased());
+	assertEquals(3, pool.getLeaseCount());
+    }
+
+    @Test
+    public void leaseSlotWaitsForThatSlot() throws Exception {
+	final AnchoreContainerPool pool = pool("slot");
+	AnchoreContainerPool.Lease held = pool.lease(2);
+
+	final AtomicReference<AnchoreContainerPool.Lease> waited = new AtomicReference<AnchoreContainerPool.Lease>();
+	Thread waiter = new Thread() {
+		public void run() {
+		    try {
+			waited.set(pool.leaseSlot(0));
+		    } catch (InterruptedException e) {
+			// the test fails on the missing lease
+		    }
+		}
+	    };
+	waiter.start();
+	long deadline = System.currentTimeMillis() + 5000;
+	while (waiter.getState() != Thread.State.WAITING && System.currentTimeMillis() < deadline) {
+	    Thread.sleep(10);
+	}
+	// slot 1 is free, but the waiter only takes slot 0
+	assertEquals(Thread.State.WAITING, waiter.getState());
+	assertNull(waited.get());
+
+	held.release();
+	waiter.join(5000);
+	assertNotNull(waited.get());
+	assertEquals(0, waited.get().getSlot());
+	assertEquals(1, pool.getLeased());
+	waited.get().release();
+    }
+}
@@ -0,0 +1,135 @@
+package com.anchore.jenkins.plugins.anchore;
+
+import hudson.util.StreamTaskListener;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AnchoreFailFastScanTest {
+    private final ByteArrayOutputStream log = new ByteArrayOutputStream();
+
+    /**
+     * Per image analyze and gate exit codes; a gate exit code of null throws, and one of HANGS waits
+     * for the cancel.
+     */
+    private static class FakeSteps implements AnchoreFailFastScan.Steps {
+	private final int[] analyzeExitCodes;
+	private final Integer[] gateExitCodes;
+	private final CountDownLatch cancelled = new CountDownLatch(1);
+	int cancels;
+
+	FakeSteps(int[] analyzeExitCodes, Integer[] gateExitCodes) {
+	    this.analyzeExitCodes = analyzeExitCodes;
+	    this.gateExitCodes = gateExitCodes;
+	}
+
+	public int analyze(int image) {
+	    return(analyzeExitCodes[image]);
+	}
+
+	public int gate(int image) throws IOException, InterruptedException {
+	    if (gateExitCodes[image] == null) {
+		throw new IOException("gate output went missing");
+	    }
+	    if (gateExitCodes[image].equals(HANGS)) {
+		cancelled.await();
+		return(AnchoreCommandRunner.ABORTED);
+	    }
+	    return(gateExitCodes[image]);
+	}
+
+	public synchronized void cancel() {
+	    cancels++;
+	    cancelled.countDown();
+	}
+    }
+
+    // stands in for an image that runs until the scan is cancelled
+    private static final Integer HANGS = Integer.MIN_VALUE + 1;
+
+    private AnchoreFailFastScan scan(FakeSteps steps, int workers, boolean bailOnFail, String... imgIds) {
+	return(new AnchoreFailFastScan(Arrays.asList(imgIds), workers, bailOnFail, steps, new StreamTaskListener(log)));
+    }
+
+    @Test
+    public void goAndWarnCombineToWarn() throws Exception {
+	FakeSteps steps = new FakeSteps(new int[] {0, 0, 0}, new Integer[] {0, 2, 0});
+	AnchoreFailFastScan scan = scan(steps, 2, true, "alpine:3", "debian:9", "centos:7");
+	assertEquals(2, scan.run());
+	assertFalse(scan.isStopped());
+	assertFalse(scan.isGateFailed());
+	assertTrue(scan.isEvaluated(1));
+	assertEquals(0, steps.cancels);
+    }
+
+    @Test
+    public void imageThatWasNotAnalyzedCountsAsStop() throws Exception {
+	FakeSteps steps = new FakeSteps(new int[] {1, 0}, new Integer[] {0, 0});
+	AnchoreFailFastScan scan = scan(steps, 2, false, "alpine:3", "debian:9");
+	// the other image passing must not turn the build GO
+	assertEquals(1, scan.run());
+	assertFalse(scan.isEvaluated(0));
+	assertTrue(scan.isEvaluated(1));
+	assertEquals(1, scan.getAnalyzerExitCode());
+	assertFalse(scan.isGateFailed());
+	assertTrue(log.toString("UTF-8").contains("analysis did not complete for image, it counts as STOP: alpine:3"));
+    }
+
+    @Test
+    public void imageThatWasNotAnalyzedStopsTheScan() throws Exception {
+	FakeSteps steps = new FakeSteps(new int[] {1, 0}, new Integer[] {0, HANGS});
+	AnchoreFailFastScan scan = scan(steps, 2, true, "alpine:3", "debian:9");
+	assertEquals(1, scan.run());
+	assertTrue(scan.isStopped());
+	assertFalse(scan.isEvaluated(1));
+	assertEquals(1, steps.cancels);
+    }
+
+    @Test
+    public void stopCancelsTheRemainingImages() throws Exception {
+	FakeSteps steps = new FakeSteps(new int[] {0, 0}, new Integer[] {1, HANGS});
+	AnchoreFailFastScan scan = scan(steps, 2, true, "alpine:3", "debian:9");
+	assertEquals(1, scan.run());
+	assertTrue(scan.isStopped());
+	assertTrue(scan.isEvaluated(0));
+	assertFalse(scan.isEvaluated(1));
+	assertFalse(scan.isGateFailed());
+	assertTrue(log.toString("UTF-8").contains("policy evaluation was cancelled for image: debian:9"));
+    }
+
+    @Test
+    public void exceptionIsAPluginFailureNotAStop() throws Exception {
+	FakeSteps steps = new FakeSteps(new int[] {0, 0}, new Integer[] {null, 0});
+	AnchoreFailFastScan scan = scan(steps, 1, true, "alpine:3", "debian:9");
+	// the image that was evaluated decides the verdict, the failure goes to the plugin failure handling
+	assertEquals(0, scan.run());
+	assertTrue(scan.isGateFailed());
+	assertFalse(scan.isStopped());
+	assertFalse(scan.isEvaluated(0));
+	assertEquals(0, steps.cancels);
+    }
+
+    @Test
+    public void timedOutGatesAreNoVerdict() throws Exception {
+	FakeSteps steps = new FakeSteps(new int[] {0, 0}, new Integer[] {AnchoreCommandRunner.TIMED_OUT, AnchoreCommandRunner.FAILED});
+	AnchoreFailFastScan scan = scan(steps, 2, true, "alpine:3", "debian:9");
+	assertEquals(AnchoreCommandRunner.FAILED, scan.run());
+	assertTrue(scan.isGateFailed());
+	assertFalse(scan.isStopped());
+	assertEquals(0, steps.cancels);
+    }
+
+    @Test
+    public void errorExitOfTheGatesIsAStop() throws Exception {
+	// anchore itself failing the gate command is a STOP, as it is for the gates of all images at once
+	FakeSteps steps = new FakeSteps(new int[] {0}, new Integer[] {3});
+	assertEquals(1, scan(steps, 1, false, "alpine:3").run());
+    }
+}
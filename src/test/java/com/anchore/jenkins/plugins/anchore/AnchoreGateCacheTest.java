@@ -0,0 +1,93 @@
+package com.anchore.jenkins.plugins.anchore;
+
+import hudson.FilePath;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AnchoreGateCacheTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File cacheDir;
+    private FilePath output;
+
+    private static String key(String name) {
+	return(AnchoreGateCache.key(Arrays.asList(name)));
+    }
+
+    @Before
+    public void setUp() throws Exception {
+	cacheDir = new File(tmp.getRoot(), "gate-cache");
+	output = new FilePath(tmp.newFile("anchore_gates.json"));
+    }
+
+    @Test
+    public void keyDependsOnEveryPartAndItsOrder() {
+	String key = AnchoreGateCache.key(Arrays.asList("policy", "sha256:a", "none"));
+	assertEquals(key, AnchoreGateCache.key(Arrays.asList("policy", "sha256:a", "none")));
+	assertEquals(64, key.length());
+	assertNotEquals(key, AnchoreGateCache.key(Arrays.asList("policy", "none", "sha256:a")));
+	assertNotEquals(key, AnchoreGateCache.key(Arrays.asList("policy", "sha256:anone")));
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+	AnchoreGateCache cache = new AnchoreGateCache(new FilePath(cacheDir), 10, 0);
+	assertNull(cache.get(key("k"), output));
+
+	output.write("{\"result\": \"STOP\"}\n", "UTF-8");
+	cache.put(key("k"), output, 1);
+	output.write("overwritten", "UTF-8");
+
+	assertEquals(Integer.valueOf(1), cache.get(key("k"), output));
+	assertEquals("{\"result\": \"STOP\"}\n", output.readToString());
+    }
+
+    @Test
+    public void expiredEntriesAreDropped() throws Exception {
+	AnchoreGateCache cache = new AnchoreGateCache(new FilePath(cacheDir), 10, 60 * 1000L);
+	output.write("report", "UTF-8");
+	cache.put(key("fresh"), output, 0);
+	assertEquals(Integer.valueOf(0), cache.get(key("fresh"), output));
+
+	// an entry written two minutes ago
+	new FilePath(new File(cacheDir, "old")).write("2 " + (System.currentTimeMillis() - 2 * 60 * 1000L) + "\nreport", "UTF-8");
+	assertNull(cache.get("old", output));
+	assertFalse(new File(cacheDir, "old").exists());
+
+	new FilePath(new File(cacheDir, "broken")).write("not a header\nreport", "UTF-8");
+	assertNull(cache.get("broken", output));
+	assertFalse(new File(cacheDir, "broken").exists());
+    }
+
+    @Test
+    public void leastRecentlyUsedEntriesAreEvicted() throws Exception {
+	AnchoreGateCache cache = new AnchoreGateCache(new FilePath(cacheDir), 2, 0);
+	output.write("report", "UTF-8");
+	long now = System.currentTimeMillis();
+
+	cache.put(key("a"), output, 0);
+	new File(cacheDir, key("a")).setLastModified(now - 30000);
+	cache.put(key("b"), output, 0);
+	new File(cacheDir, key("b")).setLastModified(now - 20000);
+	// a hit makes "a" the most recently used entry
+	assertEquals(Integer.valueOf(0), cache.get(key("a"), output));
+	cache.put(key("c"), output, 2);
+
+	assertTrue(new File(cacheDir, key("a")).exists());
+	assertFalse(new File(cacheDir, key("b")).exists());
+	assertEquals(Integer.valueOf(2), cache.get(key("c"), output));
+	assertEquals(2, cacheDir.list().length);
+    }
+}
@@ -0,0 +1,80 @@
+package com.anchore.jenkins.plugins.anchore;
+
+import hudson.FilePath;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AnchoreGateResultTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static final String HEADER = "\"header\": [\"Image_Id\", \"Repo_Tag\", \"Gate\", \"Trigger\", \"Check_Output\", \"Gate_Action\"]";
+
+    private List<AnchoreGateResult> parse(String json) throws Exception {
+	FilePath gatesJsonFile = new FilePath(tmp.newFile("anchore_gates.json"));
+	gatesJsonFile.write(json, "UTF-8");
+	return(AnchoreGateResult.parse(gatesJsonFile));
+    }
+
+    private static String image(String imageId, String... rows) {
+	StringBuilder sb = new StringBuilder();
+	sb.append("\"").append(imageId).append("\": {\"result\": {").append(HEADER).append(", \"rows\": [");
+	for (int i=0; i<rows.length; i++) {
+	    sb.append((i > 0) ? ", " : "").append(rows[i]);
+	}
+	return(sb.append("]}}").toString());
+    }
+
+    private static String row(String imageId, String gate, String trigger, String action) {
+	return("[\"" + imageId + "\", \"alpine:3\", \"" + gate + "\", \"" + trigger + "\", \"output of " + trigger + "\", \"" + action + "\"]");
+    }
+
+    @Test
+    public void countsActionsAndKeepsFailedTriggers() throws Exception {
+	List<AnchoreGateResult> results = parse("{" + image("abc",
+							  row("abc", "DOCKERFILECHECK", "NOFROM", "GO"),
+							  row("abc", "ANCHORESEC", "VULNHIGH", "STOP"),
+							  row("abc", "PKGBLACKLIST", "PKGNAMEMATCH", "WARN"),
+							  row("abc", "FINAL", "FINAL", "STOP")) + "}");
+
+	assertEquals(1, results.size());
+	AnchoreGateResult result = results.get(0);
+	assertEquals("abc", result.getImageId());
+	assertEquals("alpine:3", result.getRepoTag());
+	assertEquals("STOP", result.getFinalAction());
+	assertEquals(1, result.getGoCount());
+	assertEquals(1, result.getWarnCount());
+	assertEquals(1, result.getStopCount());
+	assertEquals(2, result.getTriggers().size());
+	assertEquals("VULNHIGH", result.getTriggers().get(0).getTrigger());
+	assertEquals("output of VULNHIGH", result.getTriggers().get(0).getOutput());
+	assertEquals("WARN", result.getTriggers().get(1).getAction());
+    }
+
+    @Test
+    public void derivesFinalActionWithoutFinalRow() throws Exception {
+	List<AnchoreGateResult> results = parse("[{" + image("abc", row("abc", "ANCHORESEC", "VULNMEDIUM", "WARN")) + "}, {"
+						+ image("def", row("def", "ANCHORESEC", "VULNLOW", "GO")) + "}]");
+
+	assertEquals(2, results.size());
+	assertEquals("WARN", results.get(0).getFinalAction());
+	assertEquals("GO", results.get(1).getFinalAction());
+	assertTrue(results.get(1).getTriggers().isEmpty());
+    }
+
+    @Test
+    public void skipsImagesWithoutResult() throws Exception {
+	List<AnchoreGateResult> results = parse("{\"abc\": {\"error\": \"not analyzed\"}, \"def\": {\"result\": {\"rows\": []}}}");
+
+	// def has no header, so nothing can be read from it apart from the image
+	assertEquals(1, results.size());
+	assertEquals("def", results.get(0).getImageId());
+	assertEquals("GO", results.get(0).getFinalAction());
+    }
+}
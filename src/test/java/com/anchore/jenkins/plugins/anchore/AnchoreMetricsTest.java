@@ -0,0 +1,71 @@
+package com.anchore.jenkins.plugins.anchore;
+
+import hudson.security.FullControlOnceLoggedInAuthorizationStrategy;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The metrics name nodes and containers, so only administrators get to see them.
+ */
+public class AnchoreMetricsTest {
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Test
+    public void timingsAreAggregatedIntoOneHistogramPerPhase() {
+	for (long millis : new long[] {50, 300, 300, 4000, 700000}) {
+	    LinkedHashMap<String, Long> phaseTimings = new LinkedHashMap<String, Long>();
+	    phaseTimings.put("histogram_analyze", millis);
+	    phaseTimings.put("histogram_gate", 10L);
+	    AnchoreMetrics.record(phaseTimings);
+	}
+
+	AnchoreMetrics.Histogram analyze = getPhase("histogram_analyze");
+	assertEquals(5, analyze.getCount());
+	assertEquals(50, analyze.getMinMillis());
+	assertEquals(700000, analyze.getMaxMillis());
+	assertEquals(704650, analyze.getTotalMillis());
+	assertEquals(140930, analyze.getMeanMillis());
+	// percentiles are the upper bound of their bucket, capped at the largest duration seen
+	assertEquals(500, analyze.getP50Millis());
+	assertEquals(700000, analyze.getP95Millis());
+	assertArrayEquals(new long[] {1, 0, 2, 0, 0, 1, 0, 0, 0, 0, 0, 0, 1, 0}, analyze.getBuckets());
+	assertEquals(analyze.getBuckets().length, analyze.getBucketBounds().length + 1);
+
+	assertEquals(5, getPhase("histogram_gate").getCount());
+	assertEquals(10, getPhase("histogram_gate").getP95Millis());
+    }
+
+    @Test
+    public void onlyAdministratorsSeeTheMetrics() throws Exception {
+	j.jenkins.setSecurityRealm(j.createDummySecurityRealm());
+	// anonymous users may read, logged in users administer
+	j.jenkins.setAuthorizationStrategy(new FullControlOnceLoggedInAuthorizationStrategy());
+	AnchoreMetrics.record(Collections.singletonMap("analyze", 1200L));
+
+	JenkinsRule.WebClient wc = j.createWebClient();
+	wc.assertFails("anchore-metrics/", 404);
+	wc.assertFails("anchore-metrics/api/json", 404);
+
+	wc.login("admin");
+	String json = wc.goTo("anchore-metrics/api/json", "application/json").getWebResponse().getContentAsString();
+	assertTrue(json, json.contains("\"phase\":\"analyze\""));
+    }
+
+    private AnchoreMetrics.Histogram getPhase(String phase) {
+	for (AnchoreMetrics.Histogram histogram : new AnchoreMetrics().getPhases()) {
+	    if (histogram.getPhase().equals(phase)) {
+		return(histogram);
+	    }
+	}
+	throw new AssertionError("no histogram for " + phase);
+    }
+}
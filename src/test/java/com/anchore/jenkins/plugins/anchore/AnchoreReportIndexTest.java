@@ -0,0 +1,119 @@
+package com.anchore.jenkins.plugins.anchore;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AnchoreReportIndexTest {
+    private static final String HEADER = "<tr><th>Image_Id</th><th>Repo_Tag</th><th>Gate</th><th>Gate_Action</th></tr>\n";
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File writeReport(String html) throws Exception {
+	File report = new File(tmp.getRoot(), "anchore_gates_format.html");
+	OutputStream out = new FileOutputStream(report);
+	try {
+	    out.write(html.getBytes(StandardCharsets.UTF_8));
+	} finally {
+	    out.close();
+	}
+	return(report);
+    }
+
+    private static String row(String id, String tag, String gate, String action) {
+	return("<tr><td>" + id + "</td><td>" + tag + "</td><td>" + gate + "</td><td>" + action + "</td></tr>\n");
+    }
+
+    @Test
+    public void encodeDecodeRoundTrip() {
+	List<String> row = Arrays.asList("plain", "tab\there", "new\nline\r", "back\\slash\\t", "");
+	String line = AnchoreReportIndex.encodeRow(row);
+	assertTrue(line.indexOf('\n') < 0);
+	assertEquals(5, line.split("\t", -1).length);
+	assertEquals(row, AnchoreReportIndex.decodeRow(line));
+    }
+
+    @Test
+    public void compareCellsNumericThenText() {
+	assertTrue(AnchoreReportIndex.compareCells("9", "10") < 0);
+	assertTrue(AnchoreReportIndex.compareCells("abc", "ABD") < 0);
+	assertEquals(0, AnchoreReportIndex.compareCells("Go", "go"));
+    }
+
+    @Test
+    public void writerIndexesRowsAndSkipsRepeatedHeaders() throws Exception {
+	StringBuilder html = new StringBuilder("<html><body><table>\n").append(HEADER);
+	html.append(row("1", "alpine:3", "ANCHORESEC", "STOP"));
+	html.append(row("2", "debian:9", "DOCKERFILECHECK", "WARN"));
+	// a second anchore run merged into the same report repeats the header
+	html.append(HEADER);
+	html.append(row("10", "a &amp; b", "<b>PKGBLACKLIST</b>", "GO"));
+	html.append("</table></body></html>\n");
+	File report = writeReport(html.toString());
+
+	assertEquals(Integer.valueOf(3), new AnchoreReportIndex.Writer("anchore_gates").invoke(report, null));
+	AnchoreReportIndex index = AnchoreReportIndex.open(tmp.getRoot(), "anchore_gates");
+	assertEquals(Arrays.asList("Image_Id", "Repo_Tag", "Gate", "Gate_Action"), index.getHeader());
+	assertEquals(3, index.getRowCount());
+
+	AnchoreReportIndex.Page page = index.getPage(1, 2, null, -1, false);
+	assertEquals(2, page.getSize());
+	assertEquals(Arrays.asList("2", "debian:9", "DOCKERFILECHECK", "WARN"), page.getRows().get(0));
+	assertEquals(Arrays.asList("10", "a & b", "PKGBLACKLIST", "GO"), page.getRows().get(1));
+
+	page = index.getPage(0, 10, "stop", -1, false);
+	assertEquals(1, page.getTotal());
+	assertEquals(3, page.getRowCount());
+	assertEquals("alpine:3", page.getRows().get(0).get(1));
+
+	page = index.getPage(0, 10, null, 0, true);
+	assertEquals("10", page.getRows().get(0).get(0));
+	assertEquals("1", page.getRows().get(2).get(0));
+    }
+
+    @Test
+    public void writerWithoutTable() throws Exception {
+	File report = writeReport("<html><body>no results</body></html>\n");
+	assertEquals(Integer.valueOf(-1), new AnchoreReportIndex.Writer("query1").invoke(report, null));
+	assertNull(AnchoreReportIndex.open(tmp.getRoot(), "query1"));
+    }
+
+    @Test
+    public void writerSkipsLongTextOutsideRows() throws Exception {
+	File report = new File(tmp.getRoot(), "query1_format.html");
+	Writer out = new OutputStreamWriter(new FileOutputStream(report), StandardCharsets.UTF_8);
+	try {
+	    // far more text without a row end than a row may hold
+	    out.write("<html><body><pre>");
+	    char[] text = new char[8192];
+	    Arrays.fill(text, 'x');
+	    for (int i=0; i<(AnchoreReportIndex.Writer.MAX_ROW_CHARS / text.length) * 3; i++) {
+		out.write(text);
+	    }
+	    out.write("</pre><table>\n" + HEADER + row("1", "alpine:3", "ANCHORESEC", "GO"));
+	    // an unterminated row at the end of a truncated report
+	    out.write("<tr><td>2</td>");
+	} finally {
+	    out.close();
+	}
+
+	assertEquals(Integer.valueOf(1), new AnchoreReportIndex.Writer("query1").invoke(report, null));
+	AnchoreReportIndex index = AnchoreReportIndex.open(tmp.getRoot(), "query1");
+	assertEquals("Image_Id", index.getHeader().get(0));
+	assertEquals(Arrays.asList("1", "alpine:3", "ANCHORESEC", "GO"), index.getPage(0, 10, null, -1, false).getRows().get(0));
+    }
+}
@@ -0,0 +1,97 @@
+package com.anchore.jenkins.plugins.anchore;
+
+import hudson.FilePath;
+import hudson.model.FreeStyleBuild;
+import hudson.util.StreamTaskListener;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AnchoreReportStoreTest {
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void identicalReportsAreStoredOnceCompressed() throws Exception {
+	FilePath first = reportDir("first", "<p>all images pass</p>", "<p>openssl 1.0.2</p>");
+	FilePath second = reportDir("second", "<p>all images pass</p>", "<p>openssl 1.1.0</p>");
+	File firstManifest = new File(tmp.getRoot(), "first.manifest");
+	File secondManifest = new File(tmp.getRoot(), "second.manifest");
+
+	assertEquals(2, AnchoreReportStore.store(first, firstManifest));
+	assertEquals(0, AnchoreReportStore.store(first, new File(tmp.getRoot(), "again.manifest")));
+	// only the query report differs
+	assertEquals(1, AnchoreReportStore.store(second, secondManifest));
+
+	Map<String, String> firstReports = AnchoreReportStore.readManifest(firstManifest);
+	Map<String, String> secondReports = AnchoreReportStore.readManifest(secondManifest);
+	// the stylesheet is served from the plugin
+	assertEquals(Arrays.asList("anchore_gates_format.html", "query1_format.html"), new ArrayList<String>(firstReports.keySet()));
+	assertEquals(firstReports.get("anchore_gates_format.html"), secondReports.get("anchore_gates_format.html"));
+	assertNotEquals(firstReports.get("query1_format.html"), secondReports.get("query1_format.html"));
+
+	assertEquals("<p>openssl 1.1.0</p>", gunzip(AnchoreReportStore.getObject(secondReports.get("query1_format.html"))));
+	assertEquals("<p>all images pass</p>", gunzip(AnchoreReportStore.getObject(firstReports.get("anchore_gates_format.html"))));
+    }
+
+    @Test
+    public void sweepKeepsTheReportsOfExistingBuilds() throws Exception {
+	FreeStyleBuild build = j.buildAndAssertSuccess(j.createFreeStyleProject("reports"));
+	File buildManifest = new File(build.getRootDir(), "anchore/anchore-results/" + AnchoreReportStore.MANIFEST);
+	File goneManifest = new File(tmp.getRoot(), "gone.manifest");
+	AnchoreReportStore.store(reportDir("kept", "<p>kept gates</p>", "<p>shared query</p>"), buildManifest);
+	AnchoreReportStore.store(reportDir("gone", "<p>gone gates</p>", "<p>shared query</p>"), goneManifest);
+
+	// objects are only swept once they are older than the grace period
+	for (String digest : AnchoreReportStore.readManifest(goneManifest).values()) {
+	    assertTrue(AnchoreReportStore.getObject(digest).setLastModified(System.currentTimeMillis() - 2 * 24 * 3600 * 1000L));
+	}
+	assertEquals(1, AnchoreReportStore.sweep(new StreamTaskListener(new ByteArrayOutputStream())));
+
+	for (String digest : AnchoreReportStore.readManifest(buildManifest).values()) {
+	    assertTrue(AnchoreReportStore.getObject(digest).isFile());
+	}
+	assertFalse(AnchoreReportStore.getObject(AnchoreReportStore.readManifest(goneManifest).get("anchore_gates_format.html")).exists());
+    }
+
+    private FilePath reportDir(String name, String gates, String query) throws Exception {
+	FilePath dir = new FilePath(tmp.newFolder(name));
+	dir.child("anchore.css").write("body {}", "UTF-8");
+	dir.child("anchore_gates_format.html").write(gates, "UTF-8");
+	dir.child("query1_format.html").write(query, "UTF-8");
+	return(dir);
+    }
+
+    private static String gunzip(File object) throws Exception {
+	InputStream in = new GZIPInputStream(new FileInputStream(object));
+	try {
+	    ByteArrayOutputStream out = new ByteArrayOutputStream();
+	    byte[] buf = new byte[8192];
+	    int n;
+	    while ((n = in.read(buf)) >= 0) {
+		out.write(buf, 0, n);
+	    }
+	    return(out.toString("UTF-8"));
+	} finally {
+	    in.close();
+	}
+    }
+}
@@ -0,0 +1,51 @@
+package com.anchore.jenkins.plugins.anchore;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AnchoreScanCoordinatorTest {
+    @Test
+    public void keysDoNotNameTheContainer() {
+	// two scans leasing different containers of one node must meet on the same keys
+	assertEquals("analyze/node1/sha256:anchore/sha256:image", AnchoreScanCoordinator.analysisKey("node1", "sha256:anchore", "sha256:image"));
+	assertEquals("gate/node1/abc", AnchoreScanCoordinator.gateKey("node1", "abc"));
+    }
+
+    @Test
+    public void waitersGetTheOwnersExport() throws Exception {
+	String key = AnchoreScanCoordinator.analysisKey("node1", "sha256:anchore", "sha256:export");
+	assertNull(AnchoreScanCoordinator.join(key));
+	assertEquals(0, AnchoreScanCoordinator.getWaiters(key));
+
+	AnchoreScanCoordinator.Flight first = AnchoreScanCoordinator.join(key);
+	AnchoreScanCoordinator.Flight second = AnchoreScanCoordinator.join(key);
+	assertNotNull(first);
+	assertEquals(2, AnchoreScanCoordinator.getWaiters(key));
+	assertFalse(first.await(10));
+
+	AnchoreScanCoordinator.complete(key, true, "sha256_export.job_1");
+	assertTrue(first.await(10));
+	assertEquals("sha256_export.job_1", second.getExport());
+	assertFalse(first.release());
+	assertTrue(second.release());
+
+	// the key is free again once completed
+	assertNull(AnchoreScanCoordinator.join(key));
+	AnchoreScanCoordinator.complete(key, false);
+    }
+
+    @Test
+    public void failedFlightHasNoResult() throws Exception {
+	String key = AnchoreScanCoordinator.gateKey("node1", "failed");
+	assertNull(AnchoreScanCoordinator.join(key));
+	AnchoreScanCoordinator.Flight flight = AnchoreScanCoordinator.join(key);
+	AnchoreScanCoordinator.complete(key, false);
+	assertFalse(flight.await(10));
+	assertNull(flight.getExport());
+    }
+}
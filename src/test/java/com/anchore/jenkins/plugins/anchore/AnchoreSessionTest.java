@@ -0,0 +1,192 @@
+package com.anchore.jenkins.plugins.anchore;
+
+import hudson.Proc;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+public class AnchoreSessionTest {
+    private static final byte[] MARKER = "#ANCHOREabc".getBytes(StandardCharsets.UTF_8);
+
+    private ShellProc shell;
+    private AnchoreSession session;
+
+    @After
+    public void tearDown() throws Exception {
+	if (session != null) {
+	    session.close();
+	}
+	if (shell != null) {
+	    shell.kill();
+	}
+    }
+
+    private static String copy(String input, ByteArrayOutputStream out, boolean expectMarker) throws IOException {
+	InputStream in = new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8));
+	assertEquals(expectMarker, AnchoreSession.copyUntilMarker(in, out, MARKER));
+	ByteArrayOutputStream rest = new ByteArrayOutputStream();
+	int b;
+	while ((b = in.read()) != -1) {
+	    rest.write(b);
+	}
+	return(new String(rest.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void copyUntilMarkerSplitsTheStream() throws IOException {
+	ByteArrayOutputStream out = new ByteArrayOutputStream();
+	assertEquals(" 0\nnext", copy("line one\nline two\n#ANCHOREabc 0\nnext", out, true));
+	assertEquals("line one\nline two\n", out.toString("UTF-8"));
+    }
+
+    @Test
+    public void copyUntilMarkerKeepsPartialMatches() throws IOException {
+	// marker prefixes, a restart of the marker within a partial match, and a '#' right before the marker
+	ByteArrayOutputStream out = new ByteArrayOutputStream();
+	assertEquals(" 3\n", copy("#ANCH #ANCHORE#ANCHOREab##ANCHOREabc 3\n", out, true));
+	assertEquals("#ANCH #ANCHORE#ANCHOREab#", out.toString("UTF-8"));
+    }
+
+    @Test
+    public void copyUntilMarkerAtEndOfStream() throws IOException {
+	ByteArrayOutputStream out = new ByteArrayOutputStream();
+	assertEquals("", copy("output#ANCHOREa", out, false));
+	assertEquals("output#ANCHOREa", out.toString("UTF-8"));
+
+	// output is only needed from the stream that carries it
+	assertEquals("", copy("#ANCHOREabc", null, true));
+    }
+
+    @Test
+    public void quote() {
+	assertEquals("'plain'", AnchoreSession.quote("plain"));
+	assertEquals("'it'\\''s a \"test\" $HOME'", AnchoreSession.quote("it's a \"test\" $HOME"));
+    }
+
+    private void openShell() throws IOException {
+	assumeTrue(new File("/bin/sh").canExecute());
+	shell = new ShellProc();
+	session = new AnchoreSession(shell);
+    }
+
+    @Test
+    public void execFramesOutputAndExitCode() throws Exception {
+	openShell();
+	ByteArrayOutputStream out = new ByteArrayOutputStream();
+	ByteArrayOutputStream err = new ByteArrayOutputStream();
+
+	assertEquals(Integer.valueOf(0), session.tryExec(Arrays.asList("echo", "it's", "$HOME"), out, err));
+	assertEquals("it's $HOME\n", out.toString("UTF-8"));
+	assertEquals("", err.toString("UTF-8"));
+
+	// output without a trailing newline, and stderr, are split off the same way
+	out.reset();
+	assertEquals(Integer.valueOf(3), session.tryExec(Arrays.asList("sh", "-c", "echo oops >&2; printf partial; exit 3"), out, err));
+	assertEquals("partial", out.toString("UTF-8"));
+	assertEquals("oops\n", err.toString("UTF-8"));
+
+	// commands do not get the session's stdin
+	out.reset();
+	assertEquals(Integer.valueOf(0), session.tryExec(Arrays.asList("cat"), out, err));
+	assertEquals("", out.toString("UTF-8"));
+    }
+
+    @Test
+    public void execIsInterruptible() throws Exception {
+	openShell();
+	final ByteArrayOutputStream out = new ByteArrayOutputStream();
+	ExecutorService executor = Executors.newSingleThreadExecutor();
+	try {
+	    Future<Integer> running = executor.submit(new Callable<Integer>() {
+		    public Integer call() throws Exception {
+			return(session.tryExec(Arrays.asList("sleep", "30"), out, out));
+		    }
+		});
+	    Thread.sleep(500);
+	    // the session is busy, so other commands run elsewhere
+	    assertNull(session.tryExec(Arrays.asList("true"), out, out));
+
+	    long start = System.currentTimeMillis();
+	    executor.shutdownNow();
+	    try {
+		running.get(10, TimeUnit.SECONDS);
+		fail("interrupted command returned normally");
+	    } catch (ExecutionException e) {
+		assertTrue(e.getCause() instanceof InterruptedException);
+	    }
+	    session.close();
+	    assertTrue(System.currentTimeMillis() - start < 5000);
+	    assertFalse(shell.isAlive());
+	    // the session is not used again
+	    assertNull(session.tryExec(Arrays.asList("true"), out, out));
+	} finally {
+	    executor.shutdownNow();
+	}
+    }
+
+    // a local shell standing in for 'docker exec -i <container> sh'
+    private static class ShellProc extends Proc {
+	private final Process process;
+
+	ShellProc() throws IOException {
+	    process = new ProcessBuilder("/bin/sh").start();
+	}
+
+	@Override
+	public boolean isAlive() {
+	    try {
+		process.exitValue();
+		return(false);
+	    } catch (IllegalThreadStateException e) {
+		return(true);
+	    }
+	}
+
+	@Override
+	public void kill() throws InterruptedException {
+	    process.destroy();
+	    process.waitFor();
+	}
+
+	@Override
+	public int join() throws InterruptedException {
+	    return(process.waitFor());
+	}
+
+	@Override
+	public InputStream getStdout() {
+	    return(process.getInputStream());
+	}
+
+	@Override
+	public InputStream getStderr() {
+	    return(process.getErrorStream());
+	}
+
+	@Override
+	public OutputStream getStdin() {
+	    return(process.getOutputStream());
+	}
+    }
+}
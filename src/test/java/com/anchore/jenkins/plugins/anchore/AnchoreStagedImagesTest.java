@@ -0,0 +1,71 @@
+package com.anchore.jenkins.plugins.anchore;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AnchoreStagedImagesTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File file;
+    private AnchoreStagedImages images;
+
+    @Before
+    public void setUp() {
+	file = new File(tmp.getRoot(), "AnchoreReport.test.images");
+	images = new AnchoreStagedImages(file);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+	images.close();
+    }
+
+    @Test
+    public void spillsLinesAndDedupesByImageId() throws Exception {
+	assertFalse(file.exists());
+	assertTrue(images.addImage("alpine:3", "alpine:3 "));
+	assertTrue(images.addImage("debian:9", "debian:9 /root/anchore.test/dfile.debian:9"));
+	assertFalse(images.addImage("alpine:3", "alpine:3 /root/anchore.test/dfile.alpine:3"));
+	assertTrue(file.exists());
+
+	assertEquals(2, images.size());
+	assertTrue(images.containsImage("debian:9"));
+	assertFalse(images.containsImage("debian"));
+	assertEquals("alpine:3 ", images.get(0));
+	assertEquals("debian:9 /root/anchore.test/dfile.debian:9", images.get(1));
+    }
+
+    @Test
+    public void readsBackAcrossWindowsInOrder() throws Exception {
+	// long enough to be flushed several times and read through more than one window
+	List<String> expected = new ArrayList<String>();
+	for (int i=0; i<20000; i++) {
+	    String imgId = "registry.example.com/team/image" + i + ":latest";
+	    expected.add(imgId + " /root/anchore.test/dfile." + i);
+	    assertTrue(images.addImage(imgId, expected.get(i)));
+	}
+	assertFalse(images.addImage("registry.example.com/team/image123:latest", "dup"));
+	assertEquals(expected, new ArrayList<String>(images));
+	assertEquals(expected.get(19999), images.get(19999));
+	assertEquals(expected.get(7), images.get(7));
+    }
+
+    @Test
+    public void closeDeletesTheFile() throws Exception {
+	images.addImage("alpine:3", "alpine:3 ");
+	images.close();
+	assertFalse(file.exists());
+    }
+}
@@ -0,0 +1,79 @@
+package com.anchore.jenkins.plugins.anchore;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class AnchoreTrendTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static AnchoreTrend.Entry entry(int build, String status, String image) {
+	return(new AnchoreTrend.Entry(build, 1000L * build, status, image, image + ":latest", "WARN".equals(status) ? 1 : 0, "STOP".equals(status) ? 1 : 0));
+    }
+
+    private static String builds(AnchoreTrend.Summary summary) {
+	StringBuilder sb = new StringBuilder();
+	for (AnchoreTrend.BuildTrend build : summary.getBuilds()) {
+	    sb.append(build.getBuild()).append(":").append(build.getTotal()).append(" ");
+	}
+	return(sb.toString().trim());
+    }
+
+    @Test
+    public void recordsOutOfOrderBuildsOnce() throws Exception {
+	File trendFile = new File(tmp.getRoot(), AnchoreTrend.TREND_FILE);
+	AnchoreTrend.Summary summary = new AnchoreTrend.Summary(trendFile);
+	summary.append(Arrays.asList(entry(1, "GO", "a"), entry(1, "GO", "b")));
+	summary.append(Arrays.asList(entry(3, "STOP", "a")));
+	// build 2 finishes after build 3
+	summary.append(Arrays.asList(entry(2, "WARN", "a"), entry(2, "GO", "b")));
+	// build 3 completes again after a restart
+	summary.append(Arrays.asList(entry(3, "STOP", "a")));
+
+	assertEquals("1:2 2:2 3:1", builds(summary));
+	List<AnchoreTrend.ImageTrend> images = summary.getImages();
+	AnchoreTrend.ImageTrend a = images.get(images.get(0).getImage().equals("a") ? 0 : 1);
+	assertEquals("STOP", a.getStatus());
+	assertEquals(3, a.getSince());
+	assertEquals(3, a.getLastBuild());
+	assertEquals(3, a.getBuilds());
+
+	// the file holds every build once, and reads back to the same summary
+	AnchoreTrend.Summary reloaded = new AnchoreTrend.Summary(trendFile);
+	reloaded.load();
+	assertEquals("1:2 2:2 3:1", builds(reloaded));
+	reloaded.append(Arrays.asList(entry(2, "GO", "a")));
+	assertEquals("1:2 2:2 3:1", builds(reloaded));
+    }
+
+    @Test
+    public void keepsTheMostRecentBuilds() throws Exception {
+	AnchoreTrend.Summary summary = new AnchoreTrend.Summary(new File(tmp.getRoot(), AnchoreTrend.TREND_FILE));
+	for (int build=150; build>=1; build--) {
+	    summary.append(Arrays.asList(entry(build, "GO", "a")));
+	}
+	List<AnchoreTrend.BuildTrend> builds = summary.getBuilds();
+	assertEquals(100, builds.size());
+	assertEquals(51, builds.get(0).getBuild());
+	assertEquals(150, builds.get(99).getBuild());
+    }
+
+    @Test
+    public void parseSkipsBrokenLines() {
+	AnchoreTrend.Entry entry = entry(7, "WARN", "a");
+	AnchoreTrend.Entry parsed = AnchoreTrend.Entry.parse(entry.format().trim());
+	assertEquals(7, parsed.getBuild());
+	assertEquals("WARN", parsed.getStatus());
+	assertEquals("a:latest", parsed.getRepoTag());
+	assertEquals(1, parsed.getWarnCount());
+	assertEquals(null, AnchoreTrend.Entry.parse("7\tnot-a-time\tGO\ta\t-\t0\t0"));
+	assertEquals(null, AnchoreTrend.Entry.parse("truncated"));
+    }
+}
@@ -0,0 +1,335 @@
+package com.anchore.jenkins.plugins.anchore;
+
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Proc;
+import hudson.model.TaskListener;
+import hudson.remoting.Channel;
+import hudson.util.StreamTaskListener;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the steps of one scan against a launcher that answers the docker commands from a script, in a
+ * workspace on the local disk.
+ */
+public class BuildWorkerTest {
+    private static final String CONTAINER = "anchore";
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private FilePath workspace;
+    private ByteArrayOutputStream log;
+
+    @Before
+    public void setUp() {
+	workspace = new FilePath(tmp.getRoot());
+	log = new ByteArrayOutputStream();
+    }
+
+    @Test
+    public void shardsAreAnalyzedInParallelAndFailuresMapBackToTheirImages() throws Exception {
+	workspace.child("anchore_images").write("img0\nimg1\nimg2\nimg3\nimg4\n", "UTF-8");
+	final CountDownLatch running = new CountDownLatch(3);
+	ScriptedLauncher launcher = new ScriptedLauncher() {
+		@Override
+		int answer(String cmd, OutputStream stdout) throws Exception {
+		    if (cmd.contains(" analyze --imagefile ")) {
+			// no shard finishes before all of them have started
+			running.countDown();
+			running.await(10, TimeUnit.SECONDS);
+			return(cmd.endsWith("/images.1") ? 1 : 0);
+		    }
+		    return(0);
+		}
+	    };
+	AnchoreBuilder builder = builder();
+	builder.setWorkers(3);
+
+	BuildWorker worker = worker(builder, "shards_1", launcher);
+	try {
+	    assertTrue(worker.setup(null));
+	    // round robin, so a slow stretch of the image list is spread over all workers
+	    assertEquals("img1 \nimg4 \n", workspace.child("AnchoreReport.shards_1/staged_images.shards_1.1").readToString());
+	    assertEquals(1, worker.runAnalyzer());
+	} finally {
+	    worker.close();
+	}
+
+	assertEquals(0, running.getCount());
+	assertEquals(3, launcher.matching(" analyze --imagefile ").size());
+	String output = log.toString("UTF-8");
+	assertTrue(output.contains("analysis did not complete for image: img1"));
+	assertTrue(output.contains("analysis did not complete for image: img4"));
+	assertFalse(output.contains("analysis did not complete for image: img0"));
+	assertEquals(1, worker.getAnalyzerExitCode());
+    }
+
+    @Test
+    public void queriesAndGatesRunAsOneStageAndReportInConfigurationOrder() throws Exception {
+	workspace.child("anchore_images").write("img0\n", "UTF-8");
+	final CountDownLatch running = new CountDownLatch(4);
+	final CountDownLatch othersDone = new CountDownLatch(3);
+	ScriptedLauncher launcher = new ScriptedLauncher() {
+		@Override
+		int answer(String cmd, OutputStream stdout) throws Exception {
+		    boolean gate = cmd.contains(" gate --imagefile ");
+		    if (!gate && !cmd.contains(" query --imagefile ")) {
+			return(0);
+		    }
+		    // nothing finishes before all four have started
+		    running.countDown();
+		    running.await(10, TimeUnit.SECONDS);
+		    if (cmd.endsWith(" cve-scan all")) {
+			// and the first query finishes last
+			othersDone.await(10, TimeUnit.SECONDS);
+		    }
+		    try {
+			if (!cmd.endsWith(" list-packages all")) {
+			    stdout.write("<p>report</p>".getBytes("UTF-8"));
+			}
+			return(gate ? 2 : 0);
+		    } finally {
+			othersDone.countDown();
+		    }
+		}
+	    };
+	AnchoreBuilder builder = new AnchoreBuilder("anchore_images", "anchore_policy", false, false, true, false, true, "cve-scan all", "list-packages all", "show-dockerfile all", "");
+	builder.setWorkers(4);
+
+	BuildWorker worker = worker(builder, "stage_1", launcher);
+	try {
+	    assertTrue(worker.setup(null));
+	    assertEquals(2, worker.runQueriesAndGates());
+	} finally {
+	    worker.close();
+	}
+
+	assertEquals(0, running.getCount());
+	assertEquals(3, launcher.matching(" query --imagefile ").size());
+	assertEquals(1, launcher.matching(" gate --imagefile ").size());
+	// the query without output has no report
+	assertEquals(Arrays.asList("query1", "query3"), new ArrayList<String>(worker.getQueriesOutput().keySet()));
+	assertTrue(workspace.child("AnchoreReport.stage_1/query1_format.html").readToString().endsWith("<p>report</p>"));
+	assertTrue(workspace.child("AnchoreReport.stage_1/anchore_gates_format.html").readToString().endsWith("<p>report</p>"));
+
+	// results are taken in the order of the configuration, not in the order the commands finished
+	String output = log.toString("UTF-8");
+	int query1 = output.indexOf("Done Running Anchore Query (query1): exitcode=0");
+	int query2 = output.indexOf("Done Running Anchore Query (query2): exitcode=0");
+	int query3 = output.indexOf("Done Running Anchore Query (query3): exitcode=0");
+	int gates = output.indexOf("Done Running Anchore Gates: exitcode=2");
+	assertTrue(output, 0 <= query1 && query1 < query2 && query2 < query3 && query3 < gates);
+    }
+
+    @Test
+    public void batchStagingCopiesAllInputsWithOneDockerCp() throws Exception {
+	workspace.child("anchore_images").write("repo/app:1 Dockerfile.app\nimg0\n", "UTF-8");
+	workspace.child("Dockerfile.app").write("FROM alpine:3\n", "UTF-8");
+	workspace.child("anchore_policy").write("ANCHORESEC:VULNHIGH:STOP\n", "UTF-8");
+	final TreeMap<String, String> copied = new TreeMap<String, String>();
+	ScriptedLauncher launcher = new ScriptedLauncher() {
+		@Override
+		int answer(String cmd, OutputStream stdout) throws Exception {
+		    if (cmd.startsWith("docker cp ") && cmd.contains("/staging/. ")) {
+			// the staging directory is gone once setup returns
+			File stagingDir = new File(cmd.split(" ")[2]).getParentFile();
+			for (File file : stagingDir.listFiles()) {
+			    copied.put(file.getName(), new FilePath(file).readToString());
+			}
+		    }
+		    return(0);
+		}
+	    };
+	AnchoreBuilder builder = builder();
+	builder.setBatchStaging(true);
+
+	BuildWorker worker = worker(builder, "batch_1", launcher);
+	try {
+	    assertTrue(worker.setup(null));
+	} finally {
+	    worker.close();
+	}
+
+	List<String> copies = launcher.matching("docker cp ");
+	assertEquals(copies.toString(), 1, copies.size());
+	assertTrue(copies.get(0).endsWith(" " + CONTAINER + ":/root/anchore.batch_1"));
+	// docker cp creates the build directory
+	assertTrue(launcher.matching(" mkdir ").isEmpty());
+
+	assertEquals(Arrays.asList("dfile.repo_app:1", "images", "policy"), new ArrayList<String>(copied.keySet()));
+	assertEquals("repo/app:1 /root/anchore.batch_1/dfile.repo_app:1\nimg0 \n", copied.get("images"));
+	assertEquals("FROM alpine:3\n", copied.get("dfile.repo_app:1"));
+	assertEquals("ANCHORESEC:VULNHIGH:STOP\n", copied.get("policy"));
+	assertFalse(workspace.child("AnchoreReport.batch_1/staging").exists());
+    }
+
+    @Test
+    public void healthyContainerIsNotStartedAgainUntilACommandInItFails() throws Exception {
+	workspace.child("anchore_images").write("img0\n", "UTF-8");
+	AnchoreContainerHealth.invalidate("", "health");
+	final AtomicBoolean failMkdir = new AtomicBoolean();
+	ScriptedLauncher launcher = new ScriptedLauncher() {
+		@Override
+		int answer(String cmd, OutputStream stdout) throws Exception {
+		    if (cmd.contains(" mkdir -p ") && failMkdir.getAndSet(false)) {
+			return(1);
+		    }
+		    return(0);
+		}
+	    };
+
+	assertTrue(setup(worker(builder(), "health_1", "health", launcher)));
+	assertEquals(1, launcher.matching("docker start health").size());
+
+	// the next scan trusts the cached state and spawns no docker process for it
+	assertTrue(setup(worker(builder(), "health_2", "health", launcher)));
+	assertEquals(1, launcher.matching("docker start health").size());
+	assertTrue(log.toString("UTF-8").contains("anchore container is running (cached health state)"));
+
+	// a failed command drops the cached state, the container is checked again and the command retried
+	failMkdir.set(true);
+	assertTrue(setup(worker(builder(), "health_3", "health", launcher)));
+	assertEquals(2, launcher.matching("docker start health").size());
+	assertEquals(2, launcher.matching(" mkdir -p /root/anchore.health_3").size());
+
+	assertTrue(setup(worker(builder(), "health_4", "health", launcher)));
+	assertEquals(2, launcher.matching("docker start health").size());
+    }
+
+    private AnchoreBuilder builder() {
+	return(new AnchoreBuilder("anchore_images", "anchore_policy", false, false, false, false, true, "", "", "", ""));
+    }
+
+    private BuildWorker worker(AnchoreBuilder builder, String euid, Launcher launcher) {
+	return(worker(builder, euid, CONTAINER, launcher));
+    }
+
+    private BuildWorker worker(AnchoreBuilder builder, String euid, String containerId, Launcher launcher) {
+	BuildConfig config = new BuildConfig(builder, j.jenkins.getDescriptorByType(AnchoreBuilder.DescriptorImpl.class));
+	return(new BuildWorker(config, euid, "", containerId, "", workspace, launcher, new StreamTaskListener(log)));
+    }
+
+    private static boolean setup(BuildWorker worker) {
+	try {
+	    return(worker.setup(null));
+	} finally {
+	    worker.close();
+	}
+    }
+
+    /**
+     * Records every command line and answers it through answer(), by default with exit code 0 and no output.
+     */
+    private static class ScriptedLauncher extends Launcher {
+	private final List<String> commands = new ArrayList<String>();
+
+	ScriptedLauncher() {
+	    super(TaskListener.NULL, null);
+	}
+
+	int answer(String cmd, OutputStream stdout) throws Exception {
+	    return(0);
+	}
+
+	synchronized List<String> matching(String part) {
+	    List<String> ret = new ArrayList<String>();
+	    for (String cmd : commands) {
+		if (cmd.contains(part)) {
+		    ret.add(cmd);
+		}
+	    }
+	    return(ret);
+	}
+
+	@Override
+	public Proc launch(ProcStarter starter) throws IOException {
+	    StringBuilder cmd = new StringBuilder();
+	    for (String arg : starter.cmds()) {
+		cmd.append((cmd.length() > 0) ? " " : "").append(arg);
+	    }
+	    synchronized (this) {
+		commands.add(cmd.toString());
+	    }
+	    try {
+		return(new ExitedProc(answer(cmd.toString(), starter.stdout())));
+	    } catch (IOException e) {
+		throw e;
+	    } catch (Exception e) {
+		throw new IOException(e);
+	    }
+	}
+
+	@Override
+	public Channel launchChannel(String[] cmd, OutputStream out, FilePath workDir, Map<String, String> envVars) throws IOException {
+	    throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void kill(Map<String, String> modelEnvVars) {
+	}
+    }
+
+    private static class ExitedProc extends Proc {
+	private final int exitCode;
+
+	ExitedProc(int exitCode) {
+	    this.exitCode = exitCode;
+	}
+
+	@Override
+	public boolean isAlive() {
+	    return(false);
+	}
+
+	@Override
+	public void kill() {
+	}
+
+	@Override
+	public int join() {
+	    return(exitCode);
+	}
+
+	@Override
+	public InputStream getStdout() {
+	    return(new ByteArrayInputStream(new byte[0]));
+	}
+
+	@Override
+	public InputStream getStderr() {
+	    return(new ByteArrayInputStream(new byte[0]));
+	}
+
+	@Override
+	public OutputStream getStdin() {
+	    return(null);
+	}
+    }
+}